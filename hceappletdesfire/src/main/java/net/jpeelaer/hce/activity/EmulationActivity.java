@@ -23,15 +23,18 @@ import android.view.Window;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
+import net.jpeelaer.hce.BuildConfig;
 import net.jpeelaer.hce.R;
 import net.jpeelaer.hce.desfire.DesFireInstruction;
 import net.jpeelaer.hce.desfire.DesfireApplet;
 import net.jpeelaer.hce.desfire.MasterFile;
+import net.jpeelaer.hce.service.EmulatedCard;
+import org.kevinvalk.hce.framework.ApduTrace;
 import org.kevinvalk.hce.framework.AppletThread;
 import org.kevinvalk.hce.framework.HceFramework;
+import org.kevinvalk.hce.framework.Iso7816;
 import org.kevinvalk.hce.framework.TagWrapper;
-import org.kevinvalk.hce.framework.apdu.Apdu;
-import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.Util;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.introspector.BeanAccess;
 
@@ -71,28 +74,60 @@ public class EmulationActivity extends Activity implements SavableActivity {
     private String sessionName;
 
 
-    private final PropertyChangeListener APDU_LISTENER = new PropertyChangeListener() {
+    // Interval at which the APDU trace is drained while the activity is in front
+    private static final long TRACE_DRAIN_INTERVAL = 200;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long tracesDropped = 0;
+
+    private final PropertyChangeListener ERROR_LISTENER = new PropertyChangeListener() {
 
         @Override
         public void propertyChange(PropertyChangeEvent event) {
-            if (AppletThread.LAST_APDUS.equals(event.getPropertyName())) {
-                publishApdu((Apdu[]) event.getNewValue(), event.getPropertyName());
-            } else if (AppletThread.LAST_ERROR.equals(event.getPropertyName())) {
+            if (AppletThread.LAST_ERROR.equals(event.getPropertyName())) {
                 publishError((Exception) event.getNewValue());
             }
         }
 
     };
 
+    private final ApduTrace.Observer TRACE_OBSERVER = new ApduTrace.Observer() {
+
+        @Override
+        public void onApdu(long timestamp, int direction, byte[] data, int length) {
+            publishApdu(direction, data, Math.min(length, data.length));
+        }
+
+    };
+
+    private final Runnable TRACE_DRAINER = new Runnable() {
+
+        @Override
+        public void run() {
+            if (framework != null) {
+                ApduTrace trace = framework.getTrace();
+                trace.drain(TRACE_OBSERVER, Integer.MAX_VALUE);
+                long dropped = trace.getDropped();
+                if (dropped != tracesDropped) {
+                    appendColoredText((TextView) findViewById(R.id.apduView), (dropped - tracesDropped) + " APDUs not shown", R.color.red);
+                    tracesDropped = dropped;
+                }
+            }
+            handler.postDelayed(this, TRACE_DRAIN_INTERVAL);
+        }
+
+    };
+
     private void initFramework() throws NoSuchAlgorithmException, NoSuchPaddingException
 	{
 		if (desfireApplet == null) {
-			desfireApplet = new DesfireApplet();
+			desfireApplet = new DesfireApplet(EmulatedCard.get());
 		}
 		
 		// Enable NFC HCE and register our appletsAF
 		if (framework == null) {
-			framework = new HceFramework(APDU_LISTENER);
+			Util.setLogLevel(BuildConfig.DEBUG ? Log.DEBUG : Log.INFO);
+			framework = new HceFramework(ERROR_LISTENER);
         }
 		framework.register(desfireApplet);
 	}
@@ -112,7 +147,6 @@ public class EmulationActivity extends Activity implements SavableActivity {
     }
 
     private void publishMessage(final String message, final int color) {
-        Handler handler = new Handler(Looper.getMainLooper());
         handler.post(new Runnable() {
 
             @Override
@@ -123,29 +157,22 @@ public class EmulationActivity extends Activity implements SavableActivity {
         });
     }
 
-    private  void publishApdu(final Apdu[] apdus, final String apduType) {
-        Handler handler = new Handler(Looper.getMainLooper());
-        handler.post(new Runnable() {
-
-            @Override
-            public void run() {
-                TextView tv = (TextView) findViewById(R.id.apduView);
-                for (Apdu apdu : apdus) {
-                    String s = String.valueOf(apdu.getBuffer());
-                    boolean isCommandApdu = Apdu.COMMAND_APDU.equals(apduType);
-
-                    if (isCommandApdu) {
-                        CommandApdu commandApdu = (CommandApdu) apdu;
-                        DesFireInstruction desFireInstruction = DesFireInstruction.parseInstruction(commandApdu.ins);
-                        appendColoredText(tv, " *** " + desFireInstruction.name() + " ***", R.color.yellow);
-                    }
-                    String prefix = isCommandApdu ? "--> " : "<-- ";
-                    String text = prefix + " " + s;
-                    appendColoredText(tv, text, isCommandApdu ? R.color.dark_green : R.color.red);
-                }
-
-            }
-        });
+    /**
+     * Shows a traced frame, runs on the main thread
+     */
+    private void publishApdu(int direction, byte[] data, int length) {
+        TextView tv = (TextView) findViewById(R.id.apduView);
+        boolean isCommandApdu = direction == ApduTrace.COMMAND;
+        DesFireInstruction desFireInstruction = null;
+        if (isCommandApdu && length > Iso7816.OFFSET_INS) {
+            desFireInstruction = DesFireInstruction.parseInstruction(data[Iso7816.OFFSET_INS]);
+        }
+        if (desFireInstruction != null) {
+            appendColoredText(tv, " *** " + desFireInstruction.name() + " ***", R.color.yellow);
+        }
+        String prefix = isCommandApdu ? "--> " : "<-- ";
+        String text = prefix + " " + Util.toHex(data, 0, length);
+        appendColoredText(tv, text, isCommandApdu ? R.color.dark_green : R.color.red);
     }
 
     public void appendColoredText(TextView tv, String text, int colorCode) {
@@ -193,7 +220,7 @@ public class EmulationActivity extends Activity implements SavableActivity {
                         FileReader source = new FileReader(file);
                         Yaml yaml = new Yaml();
                         MasterFile masterFile = yaml.loadAs(source, MasterFile.class);
-                        desfireApplet.setMasterFile(masterFile);
+                        EmulatedCard.get().setMasterFile(masterFile);
                     } catch (FileNotFoundException e) {
                         Toast.makeText(getBaseContext(), R.string.info_load_error,
                                 Toast.LENGTH_LONG).show();
@@ -247,7 +274,7 @@ public class EmulationActivity extends Activity implements SavableActivity {
             sessionName = "Session-" + dateFormatted;
         }
         Yaml yaml = new Yaml();
-        String dump = yaml.dump(desfireApplet.getMasterFile());
+        String dump = yaml.dump(EmulatedCard.get().getMasterFile());
         saveFile(dump.split(System.getProperty("line.separator")), sessionName, true, R.string.dialog_save_session_title,
                 R.string.dialog_save_session);
 
@@ -408,12 +435,14 @@ public class EmulationActivity extends Activity implements SavableActivity {
 		if (adapter != null) {
             adapter.enableForegroundDispatch(this, pendingIntent, filters, techLists);
         }
+        handler.post(TRACE_DRAINER);
 	}
     
     @Override
     public void onPause()
 	{
 		super.onPause();
+        handler.removeCallbacks(TRACE_DRAINER);
 		if (adapter != null) {
             adapter.disableForegroundDispatch(this);
         }
@@ -37,6 +37,15 @@ public class BackupFile extends StandartFile {
 		this.uncommitedSize=newUncommitedSize;
 	}
 	
+	/**
+	 * 	Fill the file with committed data, nothing is left to commit
+	 */
+	public void load(byte[] data, int offset, int length){
+		super.load(data, offset, length);
+		this.uncommitedData=this.data;
+		setUncommitedSize(getSize());
+	}
+
 	/**
 	 * 	Write an array in the temporary file
 	 */
@@ -45,9 +54,7 @@ public class BackupFile extends StandartFile {
 		getParent().setWaitingForTransaction();
 		
 		//copy new data in temporal file
-		for (short i = 0; i < length; i++) {
-			this.uncommitedData[(short)(offset+i)]=data[i];				
-		}
+		System.arraycopy(data, 0, this.uncommitedData, offset, length);
 		setUncommitedSize(Util.max(getUncommitedSize(),(short) (offset+length)));
 	}
 	
@@ -0,0 +1,311 @@
+package net.jpeelaer.hce.desfire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds a populated {@link MasterFile} directly, without going through APDUs
+ *
+ * Applications and files are created on the image as they are declared, with the checks the
+ * create commands make. Those checks fail with an IllegalArgumentException instead of a status
+ * word, before anything is changed, so a rejected declaration leaves the image as it was.
+ * <pre>
+ * MasterFile image = new CardBuilder()
+ *         .application(new byte[]{(byte) 0xF4, (byte) 0x83, 0x40}, (byte) 0x0F, DesfireKey.AES, 3)
+ *         .keys(keys)
+ *         .standardFile(1, Util.PLAIN_COMMUNICATION, CardBuilder.rights(1, 2, 0, 0), 1024).load(data)
+ *         .build();
+ * </pre>
+ */
+public class CardBuilder {
+
+    /**
+     * Access right granted without authentication
+     */
+    public static final int FREE = 0x0E;
+    /**
+     * Access right that is never granted
+     */
+    public static final int NEVER = 0x0F;
+
+    private static final int MAX_APPLICATIONS = 27;
+    private static final int MAX_FILES = 32;
+
+    private MasterFile masterFile = new MasterFile();
+
+    /**
+     * Encodes the access rights of a file in the order files keep them, each right is a key
+     * number 0-13, {@link #FREE} or {@link #NEVER}
+     *
+     * @param read
+     * @param write
+     * @param readWrite
+     * @param change
+     * @return
+     */
+    public static byte[] rights(int read, int write, int readWrite, int change) {
+        return new byte[]{(byte) ((nibble(read) << 4) | nibble(write)), (byte) ((nibble(readWrite) << 4) | nibble(change))};
+    }
+
+    private static int nibble(int key) {
+        if (key < 0 || key > NEVER) throw new IllegalArgumentException("Access right " + key + " is not a key number");
+        return key;
+    }
+
+    /**
+     * Sets the PICC configuration byte as SetConfiguration option 0x00 does
+     *
+     * @param configuration
+     * @return
+     */
+    public CardBuilder configuration(byte configuration) {
+        masterFile().setConfiguration(configuration);
+        return this;
+    }
+
+    /**
+     * Sets the PICC master key settings
+     *
+     * @param keySettings
+     * @return
+     */
+    public CardBuilder keySettings(byte keySettings) {
+        masterFile().changeKeySettings(keySettings);
+        return this;
+    }
+
+    /**
+     * Creates an application, every key starts as the default key
+     *
+     * @param aid 3 bytes
+     * @param keySettings The application master key settings
+     * @param keyType
+     * @param keyCount 1-14
+     * @return A builder for the keys and files of the new application
+     */
+    public ApplicationBuilder application(byte[] aid, byte keySettings, DesfireKey keyType, int keyCount) {
+        MasterFile masterFile = masterFile();
+        if (aid == null || aid.length != 3) throw new IllegalArgumentException("An AID has 3 bytes");
+        if (aid[0] == 0 && aid[1] == 0 && aid[2] == 0) throw new IllegalArgumentException("000000 is the PICC level");
+        if (masterFile.searchAID(aid) != -1) throw new IllegalArgumentException("Duplicate AID");
+        if (masterFile.numApp >= MAX_APPLICATIONS) throw new IllegalArgumentException("No room for another application");
+        if (keyCount < 1 || keyCount > 14) throw new IllegalArgumentException("An application has 1 to 14 keys");
+
+        byte index = masterFile.addDF(aid.clone(), new byte[]{keySettings, (byte) (keyType.toKeyType() | keyCount)});
+        return new ApplicationBuilder(masterFile.getDirectoryFile(index));
+    }
+
+    /**
+     * Get the image, the builder can not be used afterwards
+     *
+     * @return
+     */
+    public MasterFile build() {
+        MasterFile image = masterFile();
+        masterFile = null;
+        return image;
+    }
+
+    private MasterFile masterFile() {
+        if (masterFile == null) throw new IllegalStateException("The image was built already");
+        return masterFile;
+    }
+
+    /**
+     * Declares the keys and files of one application
+     */
+    public class ApplicationBuilder {
+
+        private final DirectoryFile application;
+        private StandartFile lastDataFile;
+
+        ApplicationBuilder(DirectoryFile application) {
+            this.application = application;
+        }
+
+        /**
+         * Sets one key
+         *
+         * @param keyNumber
+         * @param key As long as the default key of the application's key type
+         * @return
+         */
+        public ApplicationBuilder key(int keyNumber, byte[] key) {
+            checkKey(keyNumber, key);
+            application.changeKey((byte) keyNumber, key.clone());
+            return this;
+        }
+
+        /**
+         * Sets the keys from key 0 on
+         *
+         * @param keys
+         * @return
+         */
+        public ApplicationBuilder keys(byte[]... keys) {
+            for (int i = 0; i < keys.length; i++) {
+                checkKey(i, keys[i]);
+            }
+            for (int i = 0; i < keys.length; i++) {
+                application.changeKey((byte) i, keys[i].clone());
+            }
+            return this;
+        }
+
+        private void checkKey(int keyNumber, byte[] key) {
+            if (!application.isValidKeyNumber((byte) keyNumber)) throw new IllegalArgumentException("No key " + keyNumber);
+            if (key == null || key.length != application.getKeyType().defaultKey().length)
+                throw new IllegalArgumentException("Key " + keyNumber + " does not fit " + application.getKeyType());
+        }
+
+        /**
+         * Creates a standard data file, {@link #load} fills it
+         *
+         * @param fileNumber 0-31
+         * @param communicationSettings
+         * @param rights From {@link CardBuilder#rights}
+         * @param size
+         * @return
+         */
+        public ApplicationBuilder standardFile(int fileNumber, byte communicationSettings, byte[] rights, int size) {
+            checkFile(fileNumber, rights);
+            checkSize(size);
+            lastDataFile = new StandartFile((byte) fileNumber, application, communicationSettings, rights.clone(), (short) size);
+            return this;
+        }
+
+        /**
+         * Creates a backup data file, {@link #load} fills it with committed data
+         *
+         * @param fileNumber 0-31
+         * @param communicationSettings
+         * @param rights From {@link CardBuilder#rights}
+         * @param size
+         * @return
+         */
+        public ApplicationBuilder backupFile(int fileNumber, byte communicationSettings, byte[] rights, int size) {
+            checkFile(fileNumber, rights);
+            checkSize(size);
+            lastDataFile = new BackupFile((byte) fileNumber, application, communicationSettings, rights.clone(), (short) size);
+            return this;
+        }
+
+        /**
+         * Fills the data file declared last from its start
+         *
+         * @param data
+         * @return
+         */
+        public ApplicationBuilder load(byte[] data) {
+            return load(data, 0, data.length);
+        }
+
+        /**
+         * Fills the data file declared last from its start with length bytes of data at offset
+         *
+         * @param data
+         * @param offset
+         * @param length
+         * @return
+         */
+        public ApplicationBuilder load(byte[] data, int offset, int length) {
+            if (lastDataFile == null) throw new IllegalStateException("No data file to load");
+            if (offset < 0 || length < 0 || offset > data.length - length)
+                throw new IllegalArgumentException("Range " + offset + "+" + length + " outside the data");
+            if (length > lastDataFile.getMaxSize()) throw new IllegalArgumentException("Data does not fit in the file");
+            lastDataFile.load(data, offset, length);
+            return this;
+        }
+
+        /**
+         * Creates a value file, lowerLimit < value < upperLimit
+         *
+         * @param fileNumber 0-31
+         * @param communicationSettings
+         * @param rights From {@link CardBuilder#rights}
+         * @param lowerLimit
+         * @param upperLimit
+         * @param value
+         * @param limitedCreditEnabled
+         * @return
+         */
+        public ApplicationBuilder valueFile(int fileNumber, byte communicationSettings, byte[] rights, int lowerLimit, int upperLimit, int value, byte limitedCreditEnabled) {
+            checkFile(fileNumber, rights);
+            Value lower = toValue(lowerLimit);
+            Value upper = toValue(upperLimit);
+            Value initial = toValue(value);
+            if (upper.compareTo(lower) != 1 || upper.compareTo(initial) != 1 || initial.compareTo(lower) != 1)
+                throw new IllegalArgumentException("Value out of its limits");
+            new ValueRecord((byte) fileNumber, application, communicationSettings, rights.clone(), lower, upper, initial, limitedCreditEnabled);
+            lastDataFile = null;
+            return this;
+        }
+
+        /**
+         * Creates an empty linear record file
+         *
+         * @param fileNumber 0-31
+         * @param communicationSettings
+         * @param rights From {@link CardBuilder#rights}
+         * @param recordSize
+         * @param maxRecords
+         * @return
+         */
+        public ApplicationBuilder linearRecordFile(int fileNumber, byte communicationSettings, byte[] rights, int recordSize, int maxRecords) {
+            checkFile(fileNumber, rights);
+            checkRecords(recordSize, maxRecords);
+            new LinearRecord((byte) fileNumber, application, communicationSettings, rights.clone(), (short) recordSize, (short) maxRecords);
+            lastDataFile = null;
+            return this;
+        }
+
+        /**
+         * Creates an empty cyclic record file
+         *
+         * @param fileNumber 0-31
+         * @param communicationSettings
+         * @param rights From {@link CardBuilder#rights}
+         * @param recordSize
+         * @param maxRecords
+         * @return
+         */
+        public ApplicationBuilder cyclicRecordFile(int fileNumber, byte communicationSettings, byte[] rights, int recordSize, int maxRecords) {
+            checkFile(fileNumber, rights);
+            checkRecords(recordSize, maxRecords);
+            new CyclicRecord((byte) fileNumber, application, communicationSettings, rights.clone(), (short) recordSize, (short) maxRecords);
+            lastDataFile = null;
+            return this;
+        }
+
+        private void checkFile(int fileNumber, byte[] rights) {
+            if (fileNumber < 0 || fileNumber >= MAX_FILES) throw new IllegalArgumentException("File number " + fileNumber + " out of range");
+            if (application.isValidFileNumber((byte) fileNumber)) throw new IllegalArgumentException("Duplicate file " + fileNumber);
+            if (rights == null || rights.length != 2) throw new IllegalArgumentException("Access rights have 2 bytes");
+        }
+
+        private void checkSize(int size) {
+            if (size < 0 || size > Short.MAX_VALUE) throw new IllegalArgumentException("File size " + size + " out of range");
+        }
+
+        private void checkRecords(int recordSize, int maxRecords) {
+            if (recordSize < 1 || maxRecords < 1 || recordSize * maxRecords > Short.MAX_VALUE)
+                throw new IllegalArgumentException("Record file size out of range");
+        }
+
+        private Value toValue(int value) {
+            return new Value(ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        /**
+         * Goes on with the next application
+         *
+         * @see CardBuilder#application
+         */
+        public ApplicationBuilder application(byte[] aid, byte keySettings, DesfireKey keyType, int keyCount) {
+            return CardBuilder.this.application(aid, keySettings, keyType, keyCount);
+        }
+
+        public MasterFile build() {
+            return CardBuilder.this.build();
+        }
+    }
+}
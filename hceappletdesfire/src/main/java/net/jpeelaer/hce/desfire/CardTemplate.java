@@ -0,0 +1,271 @@
+package net.jpeelaer.hce.desfire;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A card layout read from YAML, checked once and stamped out as fresh images
+ *
+ * <pre>
+ * keySettings: 0x0F
+ * applications:
+ *   - aid: F4 83 40
+ *     keySettings: 0x0F
+ *     keyType: AES
+ *     keyCount: 3
+ *     keys: ["00 00 .. 00", ...]
+ *     files:
+ *       - {number: 1, type: standard, comm: plain, access: [free, 0, 0, 0], size: 32, content: "01 02 03"}
+ *       - {number: 2, type: backup, comm: enciphered, access: [1, 1, 0, 0], size: 16}
+ *       - {number: 3, type: value, comm: mac, access: [1, 2, 0, 0], lower: 0, upper: 1000, value: 10, limitedCredit: 0}
+ *       - {number: 4, type: linear, comm: plain, access: [1, 2, 0, 0], recordSize: 16, maxRecords: 10}
+ * </pre>
+ * Access rights are read, write, read and write, change; each a key number, free or never.
+ * Compiling decodes and checks the whole layout by building an image, that image is handed out by
+ * the first {@link #newImage()}. Later ones replay the checked declarations through a
+ * {@link CardBuilder} rather than copying an image, the file classes have no way to copy themselves;
+ * switching a card to another layout still only costs the allocation of its files and one copy of
+ * their content.
+ */
+public class CardTemplate {
+
+    private enum FileType {
+        STANDARD, BACKUP, VALUE, LINEAR, CYCLIC
+    }
+
+    private static final class FileDeclaration {
+        final String where;
+        final FileType type;
+        final int number;
+        final byte communicationSettings;
+        final byte[] rights;
+        final int size;
+        final byte[] content;
+        final int lowerLimit;
+        final int upperLimit;
+        final int value;
+        final byte limitedCredit;
+        final int recordSize;
+        final int maxRecords;
+
+        FileDeclaration(String where, Map<?, ?> file) {
+            this.where = where;
+            type = constant(FileType.class, file, "type", where);
+            number = integer(file, "number", where);
+            communicationSettings = communicationSettings(string(file, "comm", where), where);
+            rights = rights(file.get("access"), where);
+            size = type == FileType.STANDARD || type == FileType.BACKUP ? integer(file, "size", where) : 0;
+            content = file.containsKey("content") ? bytes(file, "content", where) : null;
+            if (content != null && type != FileType.STANDARD && type != FileType.BACKUP)
+                throw new IllegalArgumentException(where + ": only data files have content");
+            boolean isValue = type == FileType.VALUE;
+            lowerLimit = isValue ? integer(file, "lower", where) : 0;
+            upperLimit = isValue ? integer(file, "upper", where) : 0;
+            value = isValue ? integer(file, "value", where) : 0;
+            limitedCredit = isValue && file.containsKey("limitedCredit") ? (byte) integer(file, "limitedCredit", where) : 0;
+            boolean isRecord = type == FileType.LINEAR || type == FileType.CYCLIC;
+            recordSize = isRecord ? integer(file, "recordSize", where) : 0;
+            maxRecords = isRecord ? integer(file, "maxRecords", where) : 0;
+        }
+
+        void declare(CardBuilder.ApplicationBuilder application) {
+            switch (type) {
+                case STANDARD:
+                    application.standardFile(number, communicationSettings, rights, size);
+                    if (content != null) application.load(content);
+                    break;
+                case BACKUP:
+                    application.backupFile(number, communicationSettings, rights, size);
+                    if (content != null) application.load(content);
+                    break;
+                case VALUE:
+                    application.valueFile(number, communicationSettings, rights, lowerLimit, upperLimit, value, limitedCredit);
+                    break;
+                case LINEAR:
+                    application.linearRecordFile(number, communicationSettings, rights, recordSize, maxRecords);
+                    break;
+                case CYCLIC:
+                    application.cyclicRecordFile(number, communicationSettings, rights, recordSize, maxRecords);
+                    break;
+            }
+        }
+    }
+
+    private static final class ApplicationDeclaration {
+        final String where;
+        final byte[] aid;
+        final byte keySettings;
+        final DesfireKey keyType;
+        final int keyCount;
+        final byte[][] keys;
+        final List<FileDeclaration> files;
+
+        ApplicationDeclaration(String where, Map<?, ?> application) {
+            this.where = where;
+            aid = bytes(application, "aid", where);
+            keySettings = (byte) integer(application, "keySettings", where);
+            keyType = constant(DesfireKey.class, application, "keyType", where);
+            keyCount = integer(application, "keyCount", where);
+            List<?> keyList = list(application, "keys", where);
+            keys = new byte[keyList.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                if (!(keyList.get(i) instanceof String)) throw new IllegalArgumentException(where + ".keys[" + i + "]: not a hex string");
+                keys[i] = parseHex((String) keyList.get(i), where + ".keys[" + i + "]");
+            }
+            List<?> fileList = list(application, "files", where);
+            List<FileDeclaration> files = new ArrayList<FileDeclaration>(fileList.size());
+            for (int i = 0; i < fileList.size(); i++) {
+                String fileWhere = where + ".files[" + i + "]";
+                files.add(new FileDeclaration(fileWhere, map(fileList.get(i), fileWhere)));
+            }
+            this.files = Collections.unmodifiableList(files);
+        }
+    }
+
+    private final Integer configuration;
+    private final Integer keySettings;
+    private final List<ApplicationDeclaration> applications;
+
+    // The image built while compiling, not handed out yet
+    private final AtomicReference<MasterFile> compiled = new AtomicReference<MasterFile>();
+
+    private CardTemplate(Map<?, ?> card) {
+        configuration = card.containsKey("configuration") ? integer(card, "configuration", "card") : null;
+        keySettings = card.containsKey("keySettings") ? integer(card, "keySettings", "card") : null;
+        List<?> applicationList = list(card, "applications", "card");
+        List<ApplicationDeclaration> applications = new ArrayList<ApplicationDeclaration>(applicationList.size());
+        for (int i = 0; i < applicationList.size(); i++) {
+            String where = "applications[" + i + "]";
+            applications.add(new ApplicationDeclaration(where, map(applicationList.get(i), where)));
+        }
+        this.applications = Collections.unmodifiableList(applications);
+    }
+
+    /**
+     * Reads and checks a layout
+     *
+     * @param source YAML
+     * @return
+     * @throws IllegalArgumentException Naming the declaration that is wrong
+     */
+    public static CardTemplate compile(Reader source) {
+        return compile(new Yaml().load(source));
+    }
+
+    public static CardTemplate compile(String source) {
+        return compile(new Yaml().load(source));
+    }
+
+    private static CardTemplate compile(Object document) {
+        CardTemplate template = new CardTemplate(map(document, "card"));
+        // Building once checks what only the image can tell, like duplicate AIDs and value limits
+        template.compiled.set(template.build());
+        return template;
+    }
+
+    /**
+     * Builds a new card image of this layout, images share nothing with each other
+     *
+     * @return
+     */
+    public MasterFile newImage() {
+        MasterFile image = compiled.getAndSet(null);
+        return image != null ? image : build();
+    }
+
+    private MasterFile build() {
+        CardBuilder builder = new CardBuilder();
+        if (configuration != null) builder.configuration(configuration.byteValue());
+        if (keySettings != null) builder.keySettings(keySettings.byteValue());
+        String where = "card";
+        try {
+            for (ApplicationDeclaration application : applications) {
+                where = application.where;
+                CardBuilder.ApplicationBuilder applicationBuilder = builder.application(application.aid, application.keySettings, application.keyType, application.keyCount);
+                if (application.keys.length > 0) applicationBuilder.keys(application.keys);
+                for (FileDeclaration file : application.files) {
+                    where = file.where;
+                    file.declare(applicationBuilder);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(where + ": " + e.getMessage(), e);
+        }
+        return builder.build();
+    }
+
+    private static Map<?, ?> map(Object value, String where) {
+        if (!(value instanceof Map)) throw new IllegalArgumentException(where + ": expected a mapping");
+        return (Map<?, ?>) value;
+    }
+
+    private static List<?> list(Map<?, ?> map, String key, String where) {
+        Object value = map.get(key);
+        if (value == null) return Collections.emptyList();
+        if (!(value instanceof List)) throw new IllegalArgumentException(where + "." + key + ": expected a list");
+        return (List<?>) value;
+    }
+
+    private static int integer(Map<?, ?> map, String key, String where) {
+        Object value = map.get(key);
+        if (!(value instanceof Integer)) throw new IllegalArgumentException(where + "." + key + ": expected a number");
+        return (Integer) value;
+    }
+
+    private static String string(Map<?, ?> map, String key, String where) {
+        Object value = map.get(key);
+        if (value == null) throw new IllegalArgumentException(where + "." + key + ": missing");
+        return value.toString();
+    }
+
+    private static <E extends Enum<E>> E constant(Class<E> type, Map<?, ?> map, String key, String where) {
+        String name = string(map, key, where);
+        try {
+            return Enum.valueOf(type, name.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(where + "." + key + ": " + name + " is not one of " + Arrays.toString(type.getEnumConstants()), e);
+        }
+    }
+
+    private static byte[] bytes(Map<?, ?> map, String key, String where) {
+        return parseHex(string(map, key, where), where + "." + key);
+    }
+
+    private static byte[] parseHex(String hex, String where) {
+        try {
+            return CommandApdus.parseBytes(hex.trim()).array();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(where + ": not hex bytes separated by spaces", e);
+        }
+    }
+
+    private static byte communicationSettings(String comm, String where) {
+        if (comm.equalsIgnoreCase("plain")) return Util.PLAIN_COMMUNICATION;
+        if (comm.equalsIgnoreCase("mac")) return Util.PLAIN_COMMUNICATION_MAC;
+        // The wire value, files map it to FULLY_ENCRYPTED
+        if (comm.equalsIgnoreCase("enciphered")) return (byte) 0x03;
+        throw new IllegalArgumentException(where + ".comm: plain, mac or enciphered");
+    }
+
+    private static byte[] rights(Object access, String where) {
+        if (!(access instanceof List) || ((List<?>) access).size() != 4)
+            throw new IllegalArgumentException(where + ".access: read, write, read and write, change");
+        int[] keys = new int[4];
+        for (int i = 0; i < 4; i++) {
+            Object right = ((List<?>) access).get(i);
+            if (right instanceof Integer) keys[i] = (Integer) right;
+            else if ("free".equals(right)) keys[i] = CardBuilder.FREE;
+            else if ("never".equals(right)) keys[i] = CardBuilder.NEVER;
+            else throw new IllegalArgumentException(where + ".access: " + right + " is not a key number, free or never");
+        }
+        return CardBuilder.rights(keys[0], keys[1], keys[2], keys[3]);
+    }
+}
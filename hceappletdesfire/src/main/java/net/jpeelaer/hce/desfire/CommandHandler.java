@@ -0,0 +1,22 @@
+package net.jpeelaer.hce.desfire;
+
+import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+/**
+ * Handles one instruction of a {@link DesfireApplet}
+ *
+ * Handlers are looked up by INS in a table of 256 entries, a CONTINUE (0xAF) is looked up by the
+ * instruction that asked for it in a second table. Handlers are shared between applets so they
+ * keep no state of their own.
+ */
+public interface CommandHandler {
+
+    /**
+     * @param applet The applet the command was sent to
+     * @param apdu The plain command, secure messaging is removed already
+     * @return The response, an IsoException answers its status word instead
+     * @throws Exception Anything else answers SW_INTERNAL_ERROR
+     */
+    ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception;
+}
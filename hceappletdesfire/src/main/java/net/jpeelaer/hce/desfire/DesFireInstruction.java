@@ -1,8 +1,5 @@
 package net.jpeelaer.hce.desfire;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public enum DesFireInstruction {
 
     //COMMAND CODES
@@ -46,17 +43,18 @@ public enum DesFireInstruction {
     ABORT_TRANSACTION((byte)0xA7),
     CONTINUE((byte) 0xAF),
 
+    //VENDOR COMMAND CODES
+    BATCH((byte) 0xFA),
+
     //CommandToContinue
     NO_COMMAND_TO_CONTINUE((byte) 0x00);
 
-    private static final Map<Byte, DesFireInstruction> INSTRUCTION_MAP =
-            new HashMap<Byte, DesFireInstruction>();
+    // Indexed by the unsigned INS, no boxing on lookup
+    private static final DesFireInstruction[] INSTRUCTIONS = new DesFireInstruction[256];
 
     static {
         for (DesFireInstruction desFireInstruction : values()) {
-            byte instruction = desFireInstruction.toByte();
-            Byte aByte = Byte.valueOf(instruction);
-            INSTRUCTION_MAP.put(aByte, desFireInstruction);
+            INSTRUCTIONS[desFireInstruction.toByte() & 0xFF] = desFireInstruction;
         }
     }
 
@@ -72,6 +70,6 @@ public enum DesFireInstruction {
     }
 
     public static DesFireInstruction parseInstruction(byte instruction) {
-        return INSTRUCTION_MAP.get(instruction);
+        return INSTRUCTIONS[instruction & 0xFF];
     }
 }
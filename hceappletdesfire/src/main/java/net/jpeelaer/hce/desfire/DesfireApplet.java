@@ -1,12 +1,15 @@
 package net.jpeelaer.hce.desfire;
 
 import org.kevinvalk.hce.framework.Applet;
+import org.kevinvalk.hce.framework.AppletFactory;
 import org.kevinvalk.hce.framework.Iso7816;
 import org.kevinvalk.hce.framework.IsoException;
+import org.kevinvalk.hce.framework.ResponseCallback;
 import org.kevinvalk.hce.framework.apdu.Apdu;
 import org.kevinvalk.hce.framework.apdu.CommandApdu;
 import org.kevinvalk.hce.framework.apdu.ResponseApdu;
 import org.kevinvalk.hce.framework.apdu.SecureApdu;
+import org.kevinvalk.hce.framework.apdu.SecureMessaging;
 import org.spongycastle.util.Arrays;
 
 import javax.crypto.*;
@@ -22,20 +25,258 @@ import java.security.*;
  */
 public class DesfireApplet extends Applet {
 
-    private static final int CLA_PROTECTED_APDU = 0x0c;
 
     // DESFire AID
-    private static final byte[] APPLET_AID = {(byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x00};
+    static final byte[] APPLET_AID = {(byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x00};
 
     private static final String LOG_TAG = DesfireApplet.class.getSimpleName();
 
+
+    /**
+     * Handlers of the built in instructions indexed by INS, every card starts from a copy
+     */
+    static final CommandHandler[] COMMANDS = new CommandHandler[256];
+    static final CommandHandler[] CONTINUATIONS = new CommandHandler[256];
+
+    /**
+     * Runs a script of commands, not in the built in table, {@link DesfireCard#setBatchEnabled} registers it
+     */
+    static final CommandHandler BATCH_COMMAND = new CommandHandler() {
+        @Override
+        public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+            return applet.batch(apdu, apdu.getBuffer());
+        }
+    };
+
+    // Sends the next frame of whatever response is being chained
+    private static final CommandHandler CONTINUE_CHAIN = new CommandHandler() {
+        @Override
+        public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) {
+            return applet.continueChain(apdu);
+        }
+    };
+
+    // Puts the handler of the instructions every card answers out of the box in the table
+    private static void register(CommandHandler handler, DesFireInstruction... instructions) {
+        for (DesFireInstruction instruction : instructions) {
+            COMMANDS[instruction.toByte() & 0xFF] = handler;
+        }
+    }
+
+    static {
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.getVersion(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.GET_VERSION);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.authenticate(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.AUTHENTICATE, DesFireInstruction.AUTHENTICATE_AES);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.changeKeySettings(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CHANGE_KEY_SETTINGS);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.changeKey(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CHANGE_KEY);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.createApplication(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREATE_APPLICATION);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.deleteApplication(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.DELETE_APPLICATION);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.getApplicationIDs(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.GET_APPLICATION_IDS);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.getKeySettings(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.GET_KEY_SETTINGS);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.selectApplication(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.SELECT_APPLICATION);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.formatPICC(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.FORMAT_PICC);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.setConfiguration(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.SET_CONFIGURATION);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.getFileIDs(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.GET_FILE_IDS);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.createStdDataFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREATE_STDDATAFILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.createBackupDataFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREATE_BACKUPDATAFILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.createValueFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREATE_VALUE_FILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.createLinearRecordFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREATE_LINEAR_RECORD_FILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.createCyclicRecordFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREATE_CYCLIC_RECORD_FILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.deleteFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.DELETE_FILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.readData(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.READ_DATA);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.writeData(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.WRITE_DATA);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.getValue(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.GET_VALUE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.credit(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CREDIT);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.debit(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.DEBIT);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.readRecords(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.READ_RECORDS);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.writeRecord(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.WRITE_RECORD);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.clearRecordFile(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.CLEAR_RECORD_FILE);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.commitTransaction(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.COMMIT_TRANSACTION);
+        register(new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) throws Exception {
+                return applet.abortTransaction(apdu, apdu.getBuffer());
+            }
+        }, DesFireInstruction.ABORT_TRANSACTION);
+
+        // Keyed by the instruction that answered ADDITIONAL_FRAME, a command receiving more frames runs again
+        for (DesFireInstruction instruction : new DesFireInstruction[]{DesFireInstruction.AUTHENTICATE,
+                DesFireInstruction.WRITE_DATA, DesFireInstruction.WRITE_RECORD, DesFireInstruction.GET_VERSION}) {
+            CONTINUATIONS[instruction.toByte() & 0xFF] = COMMANDS[instruction.toByte() & 0xFF];
+        }
+        CONTINUATIONS[DesFireInstruction.READ_DATA.toByte() & 0xFF] = CONTINUE_CHAIN;
+        CONTINUATIONS[DesFireInstruction.READ_RECORDS.toByte() & 0xFF] = CONTINUE_CHAIN;
+        CONTINUATIONS[DesFireInstruction.GET_APPLICATION_IDS.toByte() & 0xFF] = CONTINUE_CHAIN;
+        CONTINUATIONS[DesFireInstruction.GET_KEY_SETTINGS.toByte() & 0xFF] = CONTINUE_CHAIN;
+        CONTINUATIONS[DesFireInstruction.GET_FILE_IDS.toByte() & 0xFF] = CONTINUE_CHAIN;
+        CONTINUATIONS[DesFireInstruction.BATCH.toByte() & 0xFF] = CONTINUE_CHAIN;
+    }
+
+    /**
+     * Creates a DESFire card with an empty master file for every session served by the dispatcher,
+     * use {@link DesfireCard#getFactory()} to serve many sessions from one card
+     */
+    public static final AppletFactory FACTORY = new AppletFactory() {
+        @Override
+        public byte[] getAid() {
+            return APPLET_AID;
+        }
+
+        @Override
+        public Applet createApplet() {
+            try {
+                return new DesfireApplet();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
     // similar as AES_encrypt in openssl/aes.h?
     final Cipher AES_CIPHER;
     final Cipher DES_CIPHER;
     final Cipher TDES_CIPHER;
 
     /**
-     * Master file of the card
+     * The card this session talks to
+     */
+    private final DesfireCard card;
+    /**
+     * Master file of the card as this session saw it last, refreshed under the card lock
      */
     protected MasterFile masterFile;
     /**
@@ -50,6 +291,8 @@ public class DesfireApplet extends Applet {
      * Current session key
      */
     Key sessionKey;
+    // ISO 7816-4 secure messaging keyed with the session key, null until authenticated
+    private SecureApdu secureApdu;
     /**
      * random number to authenticate using private key
      */
@@ -66,10 +309,6 @@ public class DesfireApplet extends Applet {
      * Sets wich command has to continue after a CONTINUE command
      */
     private DesFireInstruction commandToContinue;//para comandos que necesitan continuar
-    /**
-     * Used in R/W operations to keep the number of bytes processed so far
-     */
-    private short readed;
     /**
      * Pointer to the location where the operaton will continue
      */
@@ -87,11 +326,54 @@ public class DesfireApplet extends Applet {
      * Key number that has been authenticated last
      */
     private byte authenticated;
-    private byte[] dataBuffer;
     /**
      * Check whether the original authenticate was done using 0x0A (legacy)  higher
      */
     private boolean legacyMode;
+    /**
+     * Copy of the command being completed on the crypto executor, the caller's buffer is gone by then
+     */
+    private final CommandApdu deferredApdu = new CommandApdu();
+    private byte[] deferredBuffer = new byte[0];
+    /**
+     * Temporaries of the commands of this session, wiped on deselect
+     */
+    private final ScratchArena scratch = new ScratchArena();
+    /**
+     * The command of a batch script being run, over the COMMAND slot
+     */
+    private final CommandApdu batchEntry = new CommandApdu();
+    /**
+     * Status only answers of this session, reused by every command and never handed to another applet
+     */
+    private final ResponseApdu operationOkResponse = new ResponseApdu(Util.OPERATION_OK);
+    private final ResponseApdu additionalFrameResponse = new ResponseApdu(Util.ADDITIONAL_FRAME);
+    private final ResponseApdu illegalCommandResponse = new ResponseApdu(Util.ILLEGAL_COMMAND_CODE);
+    private final ResponseApdu notSupportedResponse = new ResponseApdu(Iso7816.SW_FUNC_NOT_SUPPORTED);
+    private final ResponseApdu[] versionResponses = {
+            new ResponseApdu(ResponseApdus.VERSION_1.clone(), Util.ADDITIONAL_FRAME),
+            new ResponseApdu(ResponseApdus.VERSION_2.clone(), Util.ADDITIONAL_FRAME),
+            new ResponseApdu(ResponseApdus.VERSION_3.clone(), Util.OPERATION_OK)};
+    /**
+     * Response being sent over several frames
+     */
+    private final FrameChain chain = new FrameChain(scratch);
+    /**
+     * Request body being received over several frames
+     */
+    private final FrameAssembly assembly = new FrameAssembly(scratch);
+    /**
+     * Whether the command being processed came under secure messaging, its response grows when wrapped
+     */
+    private boolean isWrapped;
+    /**
+     * How long after a deselect the session can be resumed in nanoseconds, 0 when it can not
+     */
+    private long resumptionWindow = 0;
+    /**
+     * When the last session was deselected, -1 while a session is going on
+     */
+    private long deselectedAt = -1;
 
 
     /**
@@ -104,7 +386,19 @@ public class DesfireApplet extends Applet {
      * @throws NoSuchAlgorithmException unexistant encryption algorithm
      */
     public DesfireApplet() throws NoSuchPaddingException, NoSuchAlgorithmException {
-        masterFile = new MasterFile();
+        this(new DesfireCard());
+    }
+
+    /**
+     * Opens a session on a card that other sessions may share
+     *
+     * @param card
+     * @throws NoSuchPaddingException wrong settingg for encryption padding
+     * @throws NoSuchAlgorithmException unexistant encryption algorithm
+     */
+    public DesfireApplet(DesfireCard card) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        this.card = card;
+        masterFile = card.getMasterFile();
         selectedDirectoryFile = masterFile;
         commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
         offset = 0;
@@ -131,9 +425,9 @@ public class DesfireApplet extends Applet {
         if (commandToContinue == DesFireInstruction.NO_COMMAND_TO_CONTINUE) {
             legacyMode = apdu.ins == DesFireInstruction.AUTHENTICATE.toByte();
 
-            if ((byte) (buffer[Iso7816.OFFSET_LC]) != 1) IsoException.throwIt(Util.LENGTH_ERROR);
+            if (apdu.getLc() != 1) IsoException.throwIt(Util.LENGTH_ERROR);
             // RndB is generated			
-            keyNumberToAuthenticate = buffer[Iso7816.OFFSET_CDATA];
+            keyNumberToAuthenticate = buffer[apdu.getDataOffset()];
             if (!selectedDirectoryFile.isValidKeyNumber(keyNumberToAuthenticate)) IsoException.throwIt(Util.NO_SUCH_KEY);
             DesfireKey keyType = selectedDirectoryFile.getKeyType();
             int randomBlockSize = keyType.randomBlockSize();
@@ -153,7 +447,7 @@ public class DesfireApplet extends Applet {
             DesfireKey keyType = selectedDirectoryFile.getKeyType();
             int randomBlockSize = keyType.randomBlockSize();
             //SECCOND MESSAGE
-            if ((byte) (buffer[Iso7816.OFFSET_LC]) != randomBlockSize * 2) IsoException.throwIt(Util.LENGTH_ERROR);
+            if (apdu.getLc() != randomBlockSize * 2) IsoException.throwIt(Util.LENGTH_ERROR);
             commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
             byte[] encryptedRndA = new byte[randomBlockSize];
             byte[] encryptedRndArndB = new byte[randomBlockSize * 2];
@@ -161,7 +455,7 @@ public class DesfireApplet extends Applet {
             byte[] rndB = new byte[randomBlockSize];
             byte[] rndArndB = new byte[randomBlockSize * 2];
             //Ek(RndA-RndB') is recieved. RndB' is a 8 bits left-shift of RndB
-            encryptedRndArndB = Util.subByteArray(buffer, (byte) Iso7816.OFFSET_CDATA, (byte) (Iso7816.OFFSET_CDATA + randomBlockSize * 2 - 1));
+            encryptedRndArndB = Util.subByteArray(buffer, apdu.getDataOffset(), apdu.getDataOffset() + randomBlockSize * 2 - 1);
 
             // encrypt in legacy mode (ins = 0x0A), encrypt otherwise
             Cipher cipher = cipherForSelectedFile(legacyMode ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE);
@@ -180,13 +474,14 @@ public class DesfireApplet extends Applet {
             }
             //Session key is created
             Key sessionKey = keyType.buildSessionKey(rndA, rndB);
+            SecureMessaging secureMessaging = SecureMessaging.forSession(sessionKey, rndB, rndA);
             // then encrypt session key ??
             //Ek(RndA')is sent back
             rndA = Util.rotateLeft(rndA);
 
             cipher = cipherForSelectedFile(Cipher.ENCRYPT_MODE);
             encryptedRndA = cipher.doFinal(rndA);
-            return sendResponseAndChangeStatus(apdu, buffer, encryptedRndA, sessionKey);
+            return sendResponseAndChangeStatus(apdu, buffer, encryptedRndA, sessionKey, secureMessaging);
         }
     }
 
@@ -228,13 +523,13 @@ public class DesfireApplet extends Applet {
      * @note ||Ciphered Key Settings||
      * 8/16
      */
-    private void changeKeySettings(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu changeKeySettings(CommandApdu apdu, byte[] buffer) {
 
         //Hay que descifrar el campo de datos igual que con changeKey (no s� como)
         //FALTA
-        if (((byte) (buffer[Iso7816.OFFSET_LC]) != 8) && ((byte) (buffer[Iso7816.OFFSET_LC]) != 16))
+        if ((apdu.getLc() != 8) && (apdu.getLc() != 16))
             IsoException.throwIt(Util.LENGTH_ERROR);
-        byte keySettings = buffer[Iso7816.OFFSET_CDATA];
+        byte keySettings = buffer[apdu.getDataOffset()];
         if (!selectedDirectoryFile.hasKeySettingsChangeAllowed(authenticated)) IsoException.throwIt(Util.PERMISSION_DENIED);
         if (selectedDirectoryFile.getFileID() == (byte) 0x00) {
             masterFile.changeKeySettings(keySettings);
@@ -243,7 +538,7 @@ public class DesfireApplet extends Applet {
             selectedDirectoryFile.changeKeySettings(keySettings);
             masterFile.setDirectoryFile(selectedDirectoryFile.getFileID(), selectedDirectoryFile);
         }
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -256,19 +551,19 @@ public class DesfireApplet extends Applet {
      * @note ||Key number | Ciphered Key Data||
      * 1			24-40
      */
-    private void changeKey(Apdu Apdu, byte[] buffer) throws IllegalBlockSizeException, BadPaddingException, ShortBufferException, InvalidKeyException {
+    private ResponseApdu changeKey(CommandApdu apdu, byte[] buffer) throws IllegalBlockSizeException, BadPaddingException, ShortBufferException, InvalidKeyException {
 
 
-        if (((byte) (buffer[Iso7816.OFFSET_LC]) < 25) && ((byte) (buffer[Iso7816.OFFSET_LC]) > 41))
+        if ((apdu.getLc() < 25) && (apdu.getLc() > 41))
             IsoException.throwIt(Util.LENGTH_ERROR);
-        byte keyN = buffer[Iso7816.OFFSET_CDATA];
+        byte keyN = buffer[apdu.getDataOffset()];
         if ((selectedDirectoryFile.isMasterFile() == true) && (keyN != 0)) IsoException.throwIt(Util.PARAMETER_ERROR);
         if ((selectedDirectoryFile.isMasterFile() == false) && (keyN >= 28)) IsoException.throwIt(Util.PARAMETER_ERROR);
         if (selectedDirectoryFile.hasChangeAccess(authenticated, keyN) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        byte[] encipheredKeyData = new byte[(byte) (buffer[Iso7816.OFFSET_LC] - 1)];
-        for (byte i = 0; i < encipheredKeyData.length; i++) {
-            encipheredKeyData[i] = buffer[(byte) (Iso7816.OFFSET_CDATA + i + 1)];
+        byte[] encipheredKeyData = new byte[apdu.getLc() - 1];
+        for (int i = 0; i < encipheredKeyData.length; i++) {
+            encipheredKeyData[i] = buffer[apdu.getDataOffset() + i + 1];
         }
 
         byte[] newKeyDecrypted = decryptEncipheredKeyData(encipheredKeyData, keyN);
@@ -283,7 +578,7 @@ public class DesfireApplet extends Applet {
             selectedDirectoryFile.changeKey(keyN, newKeyDecrypted);
             masterFile.setDirectoryFile(selectedDirectoryFile.getFileID(), selectedDirectoryFile);
         }
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -292,22 +587,22 @@ public class DesfireApplet extends Applet {
      * @note || AID | KeySettings1 | KeySettings2 | ISOFileID* | DF_FILE* ||
      * 3		   1			  1             2		1-16
      */
-    private void createApplication(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu createApplication(CommandApdu apdu, byte[] buffer) {
 
 
-        if (((byte) (buffer[Iso7816.OFFSET_LC]) < 5) && ((byte) (buffer[Iso7816.OFFSET_LC]) > 23))
+        if ((apdu.getLc() < 5) && (apdu.getLc() > 23))
             IsoException.throwIt(Util.LENGTH_ERROR);
 
         if (masterFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
         if (masterFile.getIndexDF().hasWriteAccess((byte) 0) == false)
             IsoException.throwIt(Util.PERMISSION_DENIED);//CREO QUE SOBRAins
-        byte[] AID = {buffer[Iso7816.OFFSET_CDATA], buffer[Iso7816.OFFSET_CDATA + 1], buffer[Iso7816.OFFSET_CDATA + 2]};
-        byte[] keySettings = {buffer[Iso7816.OFFSET_CDATA + 3], buffer[Iso7816.OFFSET_CDATA + 4]};
+        byte[] AID = {buffer[apdu.getDataOffset()], buffer[apdu.getDataOffset() + 1], buffer[apdu.getDataOffset() + 2]};
+        byte[] keySettings = {buffer[apdu.getDataOffset() + 3], buffer[apdu.getDataOffset() + 4]};
 
         //A�adir el ISOFileID y el DF-Name  para compatibiliadad con 7816
         //FALTA
         masterFile.addDF(AID, keySettings);
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -318,11 +613,11 @@ public class DesfireApplet extends Applet {
      * @note || AID ||
      * 3
      */
-    private void deleteApplication(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu deleteApplication(CommandApdu apdu, byte[] buffer) {
 
 
-        if (((byte) (buffer[Iso7816.OFFSET_LC]) != 3)) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte[] AID = {buffer[Iso7816.OFFSET_CDATA], buffer[Iso7816.OFFSET_CDATA + 1], buffer[Iso7816.OFFSET_CDATA + 2]};
+        if ((apdu.getLc() != 3)) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte[] AID = {buffer[apdu.getDataOffset()], buffer[apdu.getDataOffset() + 1], buffer[apdu.getDataOffset() + 2]};
         if (masterFile.searchAID(AID) == -1) IsoException.throwIt(Util.APPLICATION_NOT_FOUND);
         if (masterFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
 
@@ -330,7 +625,7 @@ public class DesfireApplet extends Applet {
         if (selectedDirectoryFile.getFileID() == masterFile.searchAID(AID)) selectedDirectoryFile = masterFile;
         masterFile.deleteDF(AID);
         if (selectedDirectoryFile.isMasterFile()) selectedDirectoryFile = masterFile;
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -339,59 +634,24 @@ public class DesfireApplet extends Applet {
      * @note If the number of applications is higher than 19 the command will
      * work in two parts.
      */
-    public ResponseApdu getApplicationIDs(Apdu Apdu, byte[] buffer) {
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 0) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte[] response;
-        byte numApp = (byte) (masterFile.numApp - 1);//-1 because the IndexFile won't be included
-        if (commandToContinue == DesFireInstruction.NO_COMMAND_TO_CONTINUE) {
-            if (masterFile.hasGetRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
-            if (numApp == 0) IsoException.throwIt(Util.OPERATION_OK);
-//			if(numApp==1){
-//				return sendResponse(Apdu,buffer,masterFile.getAID((byte) 1));
-//				return;
-//			}
-            if (numApp > 19) {
-                response = new byte[(byte) 19 * 3];
-                commandToContinue = DesFireInstruction.GET_APPLICATION_IDS;
-            } else response = new byte[(byte) (numApp * 3)];
-            for (byte i = 0; i < response.length; i = (byte) (i + 3)) {
-                byte[] AID = masterFile.getAID((byte) (i / 3 + 1));//+1 because the IndexFile won't be included
-                response[i] = AID[0];
-                response[(byte) (i + 1)] = AID[1];
-                response[(byte) (i + 2)] = AID[2];
-            }
-//			IsoException.throwIt(response[3]);
-            //Habr�a que devolver STATUS WORD AF si hay m�s AID q enviar
-            return sendResponse(Apdu, buffer, response);
-        } else {//Second part
-            commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
-            response = new byte[(byte) ((numApp - 19) * 3)];
-            for (byte i = 0; i < response.length; i = (byte) (i + 3)) {
-                byte[] AID = masterFile.getAID((byte) (i / 3 + 21));//21 beacuase the IndexFile won't be included
-                response[i] = AID[0];
-                response[(byte) (i + 1)] = AID[1];
-                response[(byte) (i + 2)] = AID[2];
-            }
-            return sendResponse(Apdu, buffer, response);
-        }
-
-
+    public ResponseApdu getApplicationIDs(CommandApdu apdu, byte[] buffer) {
+        if (apdu.getLc() != 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (masterFile.hasGetRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
+        byte[] response = masterFile.getApplicationIDs();
+        if (response.length == 0) return operationOkResponse;
+        return sendChain(apdu, response, response.length, securityLevel, DesFireInstruction.GET_APPLICATION_IDS);
     }
 
     /**
      * Get information on the PICC and application master key settings.
      * In addition it returns the maximum number of keys which are configured for the selected application.
      */
-    private ResponseApdu getKeySettings(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu getKeySettings(CommandApdu apdu, byte[] buffer) {
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (apdu.getLc() != 0) IsoException.throwIt(Util.LENGTH_ERROR);
         if (!selectedDirectoryFile.hasGetRights(authenticated)) IsoException.throwIt(Util.PERMISSION_DENIED);
-        byte ks = selectedDirectoryFile.getKeySettings();
-        byte kn = selectedDirectoryFile.getKeyNumber();
-        byte[] response = new byte[2];
-        response[0] = ks;
-        response[1] = kn;
-        return sendResponse(Apdu, buffer, response);
+        byte[] response = selectedDirectoryFile.getKeySettingsResponse();
+        return sendChain(apdu, response, response.length, securityLevel, DesFireInstruction.GET_KEY_SETTINGS);
     }
 
     /**
@@ -399,11 +659,11 @@ public class DesfireApplet extends Applet {
      *
      * @note || AID ||
      */
-    private void selectApplication(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu selectApplication(CommandApdu apdu, byte[] buffer) {
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 3) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (apdu.getLc() != 3) IsoException.throwIt(Util.LENGTH_ERROR);
         //AID
-        byte[] AID = {buffer[Iso7816.OFFSET_CDATA], buffer[Iso7816.OFFSET_CDATA + 1], buffer[Iso7816.OFFSET_CDATA + 2]};
+        byte[] AID = {buffer[apdu.getDataOffset()], buffer[apdu.getDataOffset() + 1], buffer[apdu.getDataOffset() + 2]};
         if (Arrays.areEqual(AID, Util.masterFileAID)) {
             selectedDirectoryFile = masterFile;
         } else {
@@ -413,7 +673,7 @@ public class DesfireApplet extends Applet {
         }
         authenticated = Util.NO_KEY_AUTHENTICATED;
         securityLevel = Util.PLAIN_COMMUNICATION;
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -423,14 +683,14 @@ public class DesfireApplet extends Applet {
      * @effect All application are deleted and all files within them.
      * The PICC Master Keyand the PICC Master Key settings keep their currently set values
      */
-    private void formatPICC(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu formatPICC(CommandApdu apdu, byte[] buffer) {
         if (!selectedDirectoryFile.isMasterFile()) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (apdu.getLc() != 0) IsoException.throwIt(Util.LENGTH_ERROR);
         if (!masterFile.isFormatEnabled()) IsoException.throwIt(Util.PERMISSION_DENIED);
         if (authenticated != 0) IsoException.throwIt(Util.PERMISSION_DENIED);
         masterFile.format();
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
 
     }
 
@@ -442,22 +702,22 @@ public class DesfireApplet extends Applet {
      *                throws PERMISSION_DENIED
      * @note || Option | ciphered( data || CRC )||
      */
-    private void setConfiguration(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu setConfiguration(CommandApdu apdu, byte[] buffer) {
         if ((selectedDirectoryFile.isMasterFile() != true) || (this.authenticated != 0))
             IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_LC] < 9) && ((byte) buffer[Iso7816.OFFSET_LC] > 33))
+        if ((apdu.getLc() < 9) && (apdu.getLc() > 33))
             IsoException.throwIt(Util.LENGTH_ERROR);
 
         //Gets the data
-        byte encData[] = new byte[(byte) (buffer[Iso7816.OFFSET_LC] - 1)];
-        for (byte i = 0; i < encData.length; i++) {
-            encData[i] = buffer[(byte) (i + Iso7816.OFFSET_CDATA + 1)];
+        byte encData[] = new byte[apdu.getLc() - 1];
+        for (int i = 0; i < encData.length; i++) {
+            encData[i] = buffer[i + apdu.getDataOffset() + 1];
         }
 
         byte[] data = decryptBytes(encData, sessionKey);
         //Checks the option
-        switch (buffer[Iso7816.OFFSET_CDATA]) {
+        switch (buffer[apdu.getDataOffset()]) {
             case (byte) 0x00: //Configuration byte
                 masterFile.setConfiguration(data[0]);
                 break;
@@ -476,31 +736,19 @@ public class DesfireApplet extends Applet {
             default:
                 IsoException.throwIt(Util.PARAMETER_ERROR);
         }
+        return operationOkResponse;
     }
 
     /**
      * Returns the File Identifiers of all active files within the currently selected application
      */
-    private ResponseApdu getFileIDs(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu getFileIDs(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (apdu.getLc() != 0) IsoException.throwIt(Util.LENGTH_ERROR);
         if (selectedDirectoryFile.hasGetRights(authenticated)) IsoException.throwIt(Util.PERMISSION_DENIED);
-        byte[] IDs = new byte[selectedDirectoryFile.getNumberFiles() + 1];
-        byte mark = 0;
-        for (byte i = 0; i < (byte) (IDs.length - 1); i++) {
-            for (byte j = mark; j < 32; j++) {
-                if (selectedDirectoryFile.activatedFiles[j] == true) {
-                    selectedFile = selectedDirectoryFile.getFile(j);
-                    selectedFile.getFileID();
-                    IDs[i] = selectedFile.getFileID();
-                    mark = (byte) (j + 1);
-                    break;
-                }
-            }
-        }
-        IDs[(byte) IDs.length - 1] = (byte) 0x00;
-        return sendResponse(Apdu, buffer, IDs);
+        byte[] IDs = selectedDirectoryFile.getFileIDs();
+        return sendChain(apdu, IDs, IDs.length, securityLevel, DesFireInstruction.GET_FILE_IDS);
     }
 
     /**
@@ -513,27 +761,27 @@ public class DesfireApplet extends Applet {
      * @note || File Number | Iso7816 FileID* | CommunicationSettings | AccessRights | FileSize(3) ||
      * 1				2                     1                  2           3
      */
-    private void createStdDataFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu createStdDataFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_LC] != 7) && ((byte) buffer[Iso7816.OFFSET_LC] != 9))
+        if ((apdu.getLc() != 7) && (apdu.getLc() != 9))
             IsoException.throwIt(Util.LENGTH_ERROR);
         if (selectedDirectoryFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == true) IsoException.throwIt(Util.DUPLICATE_ERROR);
 
         byte communicationSettings;
         byte[] accessPermissions;
         byte[] size;
-        if (buffer[Iso7816.OFFSET_LC] == 9) {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 3];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]};
-            size = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 7], (byte) buffer[Iso7816.OFFSET_CDATA + 6]};
+        if (apdu.getLc() == 9) {
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 3];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]};
+            size = new byte[]{(byte) buffer[apdu.getDataOffset() + 7], (byte) buffer[apdu.getDataOffset() + 6]};
         } else {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 1];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2]};
-            size = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]};
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 1];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2]};
+            size = new byte[]{(byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]};
         }
 
 
@@ -541,7 +789,7 @@ public class DesfireApplet extends Applet {
         //if(sizeS>(short)JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT))IsoException.throwIt(Util.OUT_OF_EEPROM_ERROR);
         selectedFile = new StandartFile(fileID, getSelectedDirectoryFile(), communicationSettings, accessPermissions, sizeS);
         selectedDirectoryFile = getSelectedDirectoryFile();
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     private DirectoryFile getSelectedDirectoryFile() {
@@ -559,27 +807,27 @@ public class DesfireApplet extends Applet {
      * @note || File Number | Iso7816 FileID* | CommunicationSettings | AccessRights | FileSize(3) ||
      * 1				2                     1                  2           3
      */
-    private void createBackupDataFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu createBackupDataFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_LC] != 7) && ((byte) buffer[Iso7816.OFFSET_LC] != 9))
+        if ((apdu.getLc() != 7) && (apdu.getLc() != 9))
             IsoException.throwIt(Util.LENGTH_ERROR);
         if (selectedDirectoryFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == true) IsoException.throwIt(Util.DUPLICATE_ERROR);
 
         byte communicationSettings;
         byte[] accessPermissions;
         byte[] size;
-        if (buffer[Iso7816.OFFSET_LC] == 9) {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 3];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]};
-            size = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 7], (byte) buffer[Iso7816.OFFSET_CDATA + 6]};
+        if (apdu.getLc() == 9) {
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 3];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]};
+            size = new byte[]{(byte) buffer[apdu.getDataOffset() + 7], (byte) buffer[apdu.getDataOffset() + 6]};
         } else {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 1];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2]};
-            size = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]};
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 1];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2]};
+            size = new byte[]{(byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]};
         }
 
 
@@ -587,7 +835,7 @@ public class DesfireApplet extends Applet {
         //if(sizeS>(short)JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT))IsoException.throwIt(Util.OUT_OF_EEPROM_ERROR);
         selectedFile = new BackupFile(fileID, getSelectedDirectoryFile(), communicationSettings, accessPermissions, sizeS);
         selectedDirectoryFile = getSelectedDirectoryFile();
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -597,26 +845,26 @@ public class DesfireApplet extends Applet {
      * @note || FileN | CommunicationSetting | AccessRights | LowerLimit(4) | UpperLimit(4) | Value(4) | LimitedCreditEnabled ||
      * 1                1                 2             4               4             4                  1
      */
-    private void createValueFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu createValueFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 17) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        if (apdu.getLc() != 17) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == true) IsoException.throwIt(Util.DUPLICATE_ERROR);
-        byte communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 1];
-        byte[] accessPermissions = {(byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2]};
-        Value lowerLimit = new Value(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 7], (byte) buffer[Iso7816.OFFSET_CDATA + 6], (byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
-        Value upperLimit = new Value(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 11], (byte) buffer[Iso7816.OFFSET_CDATA + 10], (byte) buffer[Iso7816.OFFSET_CDATA + 9], (byte) buffer[Iso7816.OFFSET_CDATA + 8]});
-        Value value = new Value(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 15], (byte) buffer[Iso7816.OFFSET_CDATA + 14], (byte) buffer[Iso7816.OFFSET_CDATA + 13], (byte) buffer[Iso7816.OFFSET_CDATA + 12]});
+        byte communicationSettings = (byte) buffer[apdu.getDataOffset() + 1];
+        byte[] accessPermissions = {(byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2]};
+        Value lowerLimit = new Value(new byte[]{(byte) buffer[apdu.getDataOffset() + 7], (byte) buffer[apdu.getDataOffset() + 6], (byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]});
+        Value upperLimit = new Value(new byte[]{(byte) buffer[apdu.getDataOffset() + 11], (byte) buffer[apdu.getDataOffset() + 10], (byte) buffer[apdu.getDataOffset() + 9], (byte) buffer[apdu.getDataOffset() + 8]});
+        Value value = new Value(new byte[]{(byte) buffer[apdu.getDataOffset() + 15], (byte) buffer[apdu.getDataOffset() + 14], (byte) buffer[apdu.getDataOffset() + 13], (byte) buffer[apdu.getDataOffset() + 12]});
         if (upperLimit.compareTo(lowerLimit) != 1) IsoException.throwIt(Util.BOUNDARY_ERROR);
         if (upperLimit.compareTo(value) != 1) IsoException.throwIt(Util.BOUNDARY_ERROR);
         if (value.compareTo(lowerLimit) != 1) IsoException.throwIt(Util.BOUNDARY_ERROR);
-        byte limitedCreditEnabled = (byte) buffer[Iso7816.OFFSET_CDATA + 16];
+        byte limitedCreditEnabled = (byte) buffer[apdu.getDataOffset() + 16];
         //if((short)(30)>(short)JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT))IsoException.throwIt(Util.OUT_OF_EEPROM_ERROR);
         if (selectedDirectoryFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
         selectedFile = new ValueRecord(fileID, getSelectedDirectoryFile(), communicationSettings, accessPermissions, lowerLimit, upperLimit, value, limitedCreditEnabled);
         selectedDirectoryFile = getSelectedDirectoryFile();
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -629,35 +877,35 @@ public class DesfireApplet extends Applet {
      * 1                2			           1                 2              3            3
      * @note The MSB in the 3 bits values is not readed.
      */
-    private void createLinearRecordFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu createLinearRecordFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_LC] != 10) && ((byte) buffer[Iso7816.OFFSET_LC] != 12))
+        if ((apdu.getLc() != 10) && (apdu.getLc() != 12))
             IsoException.throwIt(Util.LENGTH_ERROR);
 
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == true) IsoException.throwIt(Util.DUPLICATE_ERROR);
         byte communicationSettings = 0;
         byte[] accessPermissions = new byte[2];
         short recordSize = 0;
         short maxRecordNum = 0;
-        if (buffer[Iso7816.OFFSET_LC] == 10) {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 1];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2]};
-            recordSize = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
-            maxRecordNum = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 8], (byte) buffer[Iso7816.OFFSET_CDATA + 7]});
-        } else if (buffer[Iso7816.OFFSET_LC] == 12) {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 3];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]};
-            recordSize = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 7], (byte) buffer[Iso7816.OFFSET_CDATA + 6]});
-            maxRecordNum = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 10], (byte) buffer[Iso7816.OFFSET_CDATA + 9]});
+        if (apdu.getLc() == 10) {
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 1];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2]};
+            recordSize = Util.getShortLE(buffer, apdu.getDataOffset() + 4);
+            maxRecordNum = Util.getShortLE(buffer, apdu.getDataOffset() + 7);
+        } else if (apdu.getLc() == 12) {
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 3];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]};
+            recordSize = Util.getShortLE(buffer, apdu.getDataOffset() + 6);
+            maxRecordNum = Util.getShortLE(buffer, apdu.getDataOffset() + 9);
         }
 
         //if((short)(recordSize*maxRecordNum)>(short)JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT))IsoException.throwIt(Util.OUT_OF_EEPROM_ERROR);
         if (selectedDirectoryFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
         selectedFile = new LinearRecord(fileID, getSelectedDirectoryFile(), communicationSettings, accessPermissions, recordSize, maxRecordNum);
         selectedDirectoryFile = getSelectedDirectoryFile();
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -669,33 +917,33 @@ public class DesfireApplet extends Applet {
      * @note || File Number | Iso7816 FileID | CommunicationSettings | AccessRights | RecordSize(3) | MaxNumRecords(3) ||
      * @note The MSB in the 3 bits values is not readed.
      */
-    private void createCyclicRecordFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu createCyclicRecordFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_LC] != 10) && ((byte) buffer[Iso7816.OFFSET_LC] != 12))
+        if ((apdu.getLc() != 10) && (apdu.getLc() != 12))
             IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == true) IsoException.throwIt(Util.DUPLICATE_ERROR);
         byte communicationSettings = 0;
         byte[] accessPermissions = new byte[2];
         short recordSize = 0;
         short maxRecordNum = 0;
-        if (buffer[Iso7816.OFFSET_LC] == 10) {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 1];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2]};
-            recordSize = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
-            maxRecordNum = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 8], (byte) buffer[Iso7816.OFFSET_CDATA + 7]});
-        } else if (buffer[Iso7816.OFFSET_LC] == 12) {
-            communicationSettings = (byte) buffer[Iso7816.OFFSET_CDATA + 3];
-            accessPermissions = new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]};
-            recordSize = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 7], (byte) buffer[Iso7816.OFFSET_CDATA + 6]});
-            maxRecordNum = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 10], (byte) buffer[Iso7816.OFFSET_CDATA + 9]});
+        if (apdu.getLc() == 10) {
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 1];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2]};
+            recordSize = Util.getShortLE(buffer, apdu.getDataOffset() + 4);
+            maxRecordNum = Util.getShortLE(buffer, apdu.getDataOffset() + 7);
+        } else if (apdu.getLc() == 12) {
+            communicationSettings = (byte) buffer[apdu.getDataOffset() + 3];
+            accessPermissions = new byte[]{(byte) buffer[apdu.getDataOffset() + 5], (byte) buffer[apdu.getDataOffset() + 4]};
+            recordSize = Util.getShortLE(buffer, apdu.getDataOffset() + 6);
+            maxRecordNum = Util.getShortLE(buffer, apdu.getDataOffset() + 9);
         }
         //if((short)(recordSize*maxRecordNum)>(short)JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT))IsoException.throwIt(Util.OUT_OF_EEPROM_ERROR);
         if (selectedDirectoryFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
         selectedFile = new CyclicRecord(fileID, getSelectedDirectoryFile(), communicationSettings, accessPermissions, recordSize, maxRecordNum);
         selectedDirectoryFile = getSelectedDirectoryFile();
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
@@ -705,16 +953,16 @@ public class DesfireApplet extends Applet {
      * @note || FileNumber ||
      * 1
      */
-    private void deleteFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu deleteFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 1) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        if (apdu.getLc() != 1) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
         if (selectedDirectoryFile.hasManageRights(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
         selectedDirectoryFile.deleteFile(fileID);
         masterFile.setDirectoryFile(selectedDirectoryFile.getFileID(), selectedDirectoryFile);
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
 //	/**
@@ -770,26 +1018,27 @@ public class DesfireApplet extends Applet {
      * @note || FileNumber | Offset | Length ||
      * 1           3        3
      */
-    private ResponseApdu readData(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu readData(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.READ_DATA.toByte()) && ((byte) buffer[Iso7816.OFFSET_LC] != 7))
+        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.READ_DATA.toByte()) && (apdu.getLc() != 7))
             IsoException.throwIt(Util.LENGTH_ERROR);
         //Get parameters
-        byte fileID = buffer[Iso7816.OFFSET_CDATA];
+        byte fileID = buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
         selectedFile = (StandartFile) selectedDirectoryFile.getFile(fileID);
         if (((StandartFile) selectedFile).hasReadAccess(authenticated) == false)
             IsoException.throwIt(Util.PERMISSION_DENIED);
-        offset = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 2], (byte) buffer[Iso7816.OFFSET_CDATA + 1]});
-        bytesLeft = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
-        if (bytesLeft == 0) bytesLeft = selectedFile.getSize();
+        int readOffset = Util.getInt24LE(buffer, apdu.getDataOffset() + 1);
+        int readLength = Util.getInt24LE(buffer, apdu.getDataOffset() + 4);
+        if (readLength == 0) readLength = selectedFile.getSize() - readOffset;
+        if (readLength < 0 || readOffset + readLength > ((StandartFile) selectedFile).getMaxSize())
+            IsoException.throwIt(Util.BOUNDARY_ERROR);
 
         //Read data
-        dataBuffer = ((StandartFile) selectedFile).readArray(offset, bytesLeft, (short) 0);
-        commandToContinue = DesFireInstruction.READ_DATA;
-
-        return sendBlockResponse(Apdu, buffer, dataBuffer, (short) 0, selectedFile.getCommunicationSettings());
+        byte[] data = scratch.get(ScratchArena.READ, readLength);
+        int length = ((StandartFile) selectedFile).readArray((short) readOffset, (short) readLength, data, 0);
+        return sendChain(apdu, data, length, selectedFile.getCommunicationSettings(), DesFireInstruction.READ_DATA);
 
     }
 
@@ -844,7 +1093,7 @@ public class DesfireApplet extends Applet {
 //			commandToContinue=Util.NO_COMMAND_TO_CONTINUE;
 //			offset=0;
 //			bytesLeft=0;
-//			IsoException.throwIt(Util.OPERATION_OK);
+//			return operationOkResponse;
 //		}
 //	}
 
@@ -853,75 +1102,70 @@ public class DesfireApplet extends Applet {
      * Writes data to Standard Data Files or Backup Data Files
      *
      * @note The MSB in the 3 bits values is not readed
-     * @note If the data doesn't fit in one message (52 bytes)
-     * the sender will split it in more messages (59 bytes)
+     * @note If the data doesn't fit in one message the sender will split it
+     * in more messages, with extended length one frame carries up to 65535 bytes
      * so this command may have more than one execution in row.
      * @note || File No | Offset | Lenght | Data ||
-     * 1        3        3     1-52
+     * 1        3        3     1-Lc
      */
-    private void writeData(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu writeData(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.WRITE_DATA.toByte()) && ((byte) buffer[Iso7816.OFFSET_LC] < 8))
+        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.WRITE_DATA.toByte()) && (apdu.getLc() < 8))
             IsoException.throwIt(Util.LENGTH_ERROR);
-        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.CONTINUE.toByte()) && ((byte) buffer[Iso7816.OFFSET_LC] != 0))
+        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.CONTINUE.toByte()) && (apdu.getLc() == 0))
             IsoException.throwIt(Util.LENGTH_ERROR);
-        byte readed;
+        int remaining;
         if (commandToContinue == DesFireInstruction.NO_COMMAND_TO_CONTINUE) {
             //Get parameters
-            byte fileID = buffer[Iso7816.OFFSET_CDATA];
+            byte fileID = buffer[apdu.getDataOffset()];
             if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
             selectedFile = selectedDirectoryFile.getFile(fileID);
             if (selectedFile.hasWriteAccess(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-            offset = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 2], (byte) buffer[Iso7816.OFFSET_CDATA + 1]});
-            bytesLeft = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
+            int writeOffset = Util.getInt24LE(buffer, apdu.getDataOffset() + 1);
+            int writeLength = Util.getInt24LE(buffer, apdu.getDataOffset() + 4);
+            if (writeOffset + writeLength > ((StandartFile) selectedFile).getMaxSize())
+                IsoException.throwIt(Util.BOUNDARY_ERROR);
+            offset = (short) writeOffset;
+            bytesLeft = (short) writeLength;
 
             //Take first bytes
-
-            readed = (byte) (buffer[Iso7816.OFFSET_LC] - 7);//number of bytes in the first message
-            bytesLeft = (short) (bytesLeft - readed);//update number of bytes remaining
-            dataBuffer = Util.subByteArray(buffer, (short) (Iso7816.OFFSET_CDATA + 7), (short) (Iso7816.OFFSET_CDATA + 7 + readed - 1));
-
+            assembly.start(bytesLeft);
+            remaining = assembly.append(buffer, apdu.getDataOffset() + 7, apdu.getLc() - 7);
         } else { //commandToContinue==Util.WRITE_DATA
-            readed = (byte) buffer[Iso7816.OFFSET_LC];
-            bytesLeft = (short) (bytesLeft - (short) readed);
-            dataBuffer = Util.concatByteArray(dataBuffer, Util.subByteArray(buffer, Iso7816.OFFSET_CDATA, (short) (Iso7816.OFFSET_CDATA + readed)));
+            remaining = assembly.append(buffer, apdu.getDataOffset(), apdu.getLc());
         }
-        if (bytesLeft > 0) {//If there are still more bytes to receive we inform we are waiting for them
+        if (remaining > 0) {//If there are still more bytes to receive we inform we are waiting for them
             commandToContinue = DesFireInstruction.WRITE_DATA;
-            IsoException.throwIt(DesFireInstruction.CONTINUE.toByte());
-        } else { //if this was the last message we reset the variables and inform the file
-            commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
-            offset = 0;
-            bytesLeft = 0;
-
-//			IsoException.throwIt((short)0xABBB);
-            ((StandartFile) selectedFile).writeArray(dataBuffer, offset, (short) dataBuffer.length);
-            dataBuffer = null;
-            IsoException.throwIt(Util.OPERATION_OK);
+            return additionalFrameResponse;
         }
+
+        //if this was the last message we inform the file and reset the variables
+        ((StandartFile) selectedFile).writeArray(assembly.getBuffer(), offset, (short) assembly.getLength());
+        halfClear();
+        return operationOkResponse;
     }
 
-    private ResponseApdu getVersion(CommandApdu Apdu, byte[] buffer) {
-        byte[] response;
-        short statusBytes = Util.OPERATION_OK;
+    private ResponseApdu getVersion(CommandApdu apdu, byte[] buffer) {
+        int frame;
         if (commandToContinue == DesFireInstruction.NO_COMMAND_TO_CONTINUE) {
-            response = ResponseApdus.VERSION_1;
-            offset = (short) response.length;
+            frame = 0;
+            offset = (short) ResponseApdus.VERSION_1.length;
             commandToContinue = DesFireInstruction.GET_VERSION;
-            statusBytes = Util.ADDITIONAL_FRAME;
         } else if (offset == ResponseApdus.VERSION_1.length) {
-            response = ResponseApdus.VERSION_2;
+            frame = 1;
             offset = (short) (ResponseApdus.VERSION_1.length + ResponseApdus.VERSION_2.length);
             commandToContinue = DesFireInstruction.GET_VERSION;
-            statusBytes = Util.ADDITIONAL_FRAME;
         } else {
-            response = ResponseApdus.VERSION_3;
+            frame = 2;
             commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
             offset = 0;
         }
-        return sendResponse(Apdu, buffer, response, statusBytes);
+        // The frames never change, only enciphering makes a new answer
+        ResponseApdu response = versionResponses[frame];
+        if (securityLevel != Util.FULLY_ENCRYPTED) return response;
+        return sendResponse(apdu, buffer, response.data, response.sw);
     }
 
     /**
@@ -930,17 +1174,17 @@ public class DesfireApplet extends Applet {
      * @note || FileN ||
      * 1
      */
-    private ResponseApdu getValue(Apdu Apdu, byte[] buffer) throws InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+    private ResponseApdu getValue(CommandApdu apdu, byte[] buffer) throws InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 1) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = buffer[Iso7816.OFFSET_CDATA];
+        if (apdu.getLc() != 1) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
         selectedFile = (ValueRecord) selectedDirectoryFile.getFile(fileID);
         if (((ValueRecord) selectedFile).hasReadAccess(authenticated) != true)
             IsoException.throwIt(Util.PERMISSION_DENIED);
         byte[] response = Util.switchBytes((((ValueRecord) selectedFile).getValue().getValue()));
-        return sendResponse(Apdu, buffer, response, Util.OPERATION_OK, selectedFile.getCommunicationSettings());
+        return sendResponse(apdu, buffer, response, Util.OPERATION_OK, selectedFile.getCommunicationSettings());
     }
 
     /**
@@ -950,17 +1194,17 @@ public class DesfireApplet extends Applet {
      * 1       4
      */
 
-    private void credit(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu credit(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 5) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        if (apdu.getLc() != 5) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
         selectedFile = (ValueRecord) selectedDirectoryFile.getFile(fileID);
         if (((ValueRecord) selectedFile).hasWriteAccess(authenticated) == false)
             IsoException.throwIt(Util.PERMISSION_DENIED);
-        ((ValueRecord) selectedFile).addCredit(new Value(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 4], (byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2], (byte) buffer[Iso7816.OFFSET_CDATA + 1]}));
-        IsoException.throwIt(Util.OPERATION_OK);
+        ((ValueRecord) selectedFile).addCredit(new Value(new byte[]{(byte) buffer[apdu.getDataOffset() + 4], (byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2], (byte) buffer[apdu.getDataOffset() + 1]}));
+        return operationOkResponse;
     }
 
     /**
@@ -968,17 +1212,17 @@ public class DesfireApplet extends Applet {
      *
      * @note ||	FileN | Data  ||
      */
-    private void debit(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu debit(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 5) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = (byte) buffer[Iso7816.OFFSET_CDATA];
+        if (apdu.getLc() != 5) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = (byte) buffer[apdu.getDataOffset()];
         if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
         selectedFile = (ValueRecord) selectedDirectoryFile.getFile(fileID);
         if (((ValueRecord) selectedFile).hasWriteAccess(authenticated) == false)
             IsoException.throwIt(Util.PERMISSION_DENIED);
-        ((ValueRecord) selectedFile).decDebit(new Value(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 4], (byte) buffer[Iso7816.OFFSET_CDATA + 3], (byte) buffer[Iso7816.OFFSET_CDATA + 2], (byte) buffer[Iso7816.OFFSET_CDATA + 1]}));
-        IsoException.throwIt(Util.OPERATION_OK);
+        ((ValueRecord) selectedFile).decDebit(new Value(new byte[]{(byte) buffer[apdu.getDataOffset() + 4], (byte) buffer[apdu.getDataOffset() + 3], (byte) buffer[apdu.getDataOffset() + 2], (byte) buffer[apdu.getDataOffset() + 1]}));
+        return operationOkResponse;
 
     }
 
@@ -986,79 +1230,55 @@ public class DesfireApplet extends Applet {
      * Writes data to a record in a Cyclic or Linear Record File
      *
      * @note The MSB in the 3 bits values is not readed
-     * @note If the data doesn't fit in one message (52 bytes)
-     * the sender will split it in more messages (59 bytes)
+     * @note If the data doesn't fit in one message the sender will split it
+     * in more messages, every frame is consumed by its own Lc
      * so this command may have more than one execution in row.
      * @note || FileN | Offset | Length | Data ||
-     * 1        3        3     1-52
+     * 1        3        3     1-Lc
      */
 
     //ECHARLE UN VISTAZO A ESTO
     //FALTA
-    private void writeRecord(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu writeRecord(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.WRITE_RECORD.toByte()) && ((byte) buffer[Iso7816.OFFSET_LC] < 8))
+        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.WRITE_RECORD.toByte()) && (apdu.getLc() < 8))
             IsoException.throwIt(Util.LENGTH_ERROR);
-        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.CONTINUE.toByte()) && ((byte) buffer[Iso7816.OFFSET_LC] != 0))
+        if (((byte) buffer[Iso7816.OFFSET_INS] == DesFireInstruction.CONTINUE.toByte()) && (apdu.getLc() == 0))
             IsoException.throwIt(Util.LENGTH_ERROR);
 
+        int remaining;
         if (commandToContinue == DesFireInstruction.NO_COMMAND_TO_CONTINUE) {
 
-            byte fileID = buffer[Iso7816.OFFSET_CDATA];
-            selectedFile = selectedDirectoryFile.getFile(fileID);
+            byte fileID = buffer[apdu.getDataOffset()];
             if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
-            offset = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 2], (byte) buffer[Iso7816.OFFSET_CDATA + 1]});
-            bytesLeft = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
-            byte length = (byte) (buffer[Iso7816.OFFSET_LC] - 7);
-            dataBuffer = new byte[bytesLeft];
-            for (byte i = 0; i < length; i++) {
-                dataBuffer[i] = buffer[(byte) (Iso7816.OFFSET_CDATA + i + 7)];
-            }
-            if (selectedFile instanceof LinearRecord) {
-                selectedFile = (LinearRecord) selectedDirectoryFile.getFile(buffer[Iso7816.OFFSET_CDATA]);
-                if (((LinearRecord) selectedFile).hasWriteAccess(authenticated) == false) {
-                    IsoException.throwIt(Util.PERMISSION_DENIED);
-                }
-            } else if (selectedFile instanceof CyclicRecord) {
-                selectedFile = (CyclicRecord) selectedDirectoryFile.getFile(buffer[Iso7816.OFFSET_CDATA]);
-                if (((CyclicRecord) selectedFile).hasWriteAccess(authenticated) == false) {
-                    IsoException.throwIt(Util.PERMISSION_DENIED);
-                }
-            }
-            if (bytesLeft <= 52) {
-                if (selectedFile instanceof LinearRecord) ((LinearRecord) selectedFile).writeRecord(dataBuffer, offset);
-                if (selectedFile instanceof CyclicRecord) ((CyclicRecord) selectedFile).writeRecord(dataBuffer, offset);
-                dataBuffer = null;
-                offset = 0;
-                bytesLeft = 0;
-                IsoException.throwIt(Util.OPERATION_OK);
-            } else {
-                readed = 52;
-                bytesLeft = (short) (bytesLeft - 52);
-                commandToContinue = DesFireInstruction.WRITE_RECORD;
-                IsoException.throwIt(DesFireInstruction.CONTINUE.toByte());
-            }
+            selectedFile = selectedDirectoryFile.getFile(fileID);
+            if (!(selectedFile instanceof LinearRecord) && !(selectedFile instanceof CyclicRecord))
+                IsoException.throwIt(Util.APPL_INTEGRITY_ERROR);
+            if (selectedFile.hasWriteAccess(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
+            int writeOffset = Util.getInt24LE(buffer, apdu.getDataOffset() + 1);
+            int writeLength = Util.getInt24LE(buffer, apdu.getDataOffset() + 4);
+            int recordSize = selectedFile instanceof LinearRecord ? ((LinearRecord) selectedFile).recordSize : ((CyclicRecord) selectedFile).recordSize;
+            if (writeLength == 0 || writeOffset + writeLength > recordSize) IsoException.throwIt(Util.BOUNDARY_ERROR);
+            offset = (short) writeOffset;
+            bytesLeft = (short) writeLength;
+
+            assembly.start(bytesLeft);
+            remaining = assembly.append(buffer, apdu.getDataOffset() + 7, apdu.getLc() - 7);
         } else {//commandToContinue==Util.WRITE_RECORD
-            byte length = (byte) (buffer[Iso7816.OFFSET_LC]);
-            for (byte i = 0; i < length; i++) {
-                dataBuffer[(short) (i + readed)] = buffer[(byte) (Iso7816.OFFSET_CDATA + i)];
-            }
-            if (bytesLeft <= 59) {
-                if (selectedFile instanceof LinearRecord) ((LinearRecord) selectedFile).writeRecord(dataBuffer, offset);
-                if (selectedFile instanceof CyclicRecord) ((CyclicRecord) selectedFile).writeRecord(dataBuffer, offset);
-                dataBuffer = null;
-                offset = 0;
-                bytesLeft = 0;
-                IsoException.throwIt(Util.OPERATION_OK);
-            } else {
-                readed = (short) (readed + 59);
-                bytesLeft = (short) (bytesLeft - 59);
-                commandToContinue = DesFireInstruction.WRITE_RECORD;
-                IsoException.throwIt(DesFireInstruction.CONTINUE.toByte());
-            }
+            remaining = assembly.append(buffer, apdu.getDataOffset(), apdu.getLc());
+        }
+        if (remaining > 0) {
+            commandToContinue = DesFireInstruction.WRITE_RECORD;
+            return additionalFrameResponse;
         }
-        return;
+
+        // The record files take the record as an array of its own
+        byte[] record = Arrays.copyOf(assembly.getBuffer(), assembly.getLength());
+        if (selectedFile instanceof LinearRecord) ((LinearRecord) selectedFile).writeRecord(record, offset);
+        if (selectedFile instanceof CyclicRecord) ((CyclicRecord) selectedFile).writeRecord(record, offset);
+        halfClear();
+        return operationOkResponse;
     }
 
     /**
@@ -1066,7 +1286,7 @@ public class DesfireApplet extends Applet {
      *
      * @note Records are sent in cronological order.
      * @note When data is sent, if the length of the data doesn't fit in one
-     * message (59 bytes) the data field is splitted. If more thata will
+     * response frame the data field is splitted. If more thata will
      * be sent the PICC informs with the SW: 0xAF
      * @note || FileN | Offset | Length ||
      * 1        3        3
@@ -1075,94 +1295,41 @@ public class DesfireApplet extends Applet {
      */
 
     //USAR LOS NUEVOS METODOS IMPLEMENTADOS PARA REALIZARLO DE UNA MANERA M�S ELEGANTE
-    private ResponseApdu readRecords(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu readRecords(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 7) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte[] out = null;
-        if (commandToContinue == DesFireInstruction.NO_COMMAND_TO_CONTINUE) {
-            byte fileID = buffer[Iso7816.OFFSET_CDATA];
-            if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
-            selectedFile = selectedDirectoryFile.getFile(fileID);
-            offset = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 2], (byte) buffer[Iso7816.OFFSET_CDATA + 1]});
-            short length = Util.byteArrayToShort(new byte[]{(byte) buffer[Iso7816.OFFSET_CDATA + 5], (byte) buffer[Iso7816.OFFSET_CDATA + 4]});
-            if (selectedFile instanceof LinearRecord) {
-                selectedFile = (LinearRecord) selectedDirectoryFile.getFile(buffer[Iso7816.OFFSET_CDATA]);
-                if (((LinearRecord) selectedFile).hasReadAccess(authenticated) == false) {
-                    IsoException.throwIt(Util.PERMISSION_DENIED);
-                }
-                bytesLeft = (short) (length * ((LinearRecord) selectedFile).recordSize);
-                offset = (short) (((LinearRecord) selectedFile).getCurrentSize() - offset * ((LinearRecord) selectedFile).recordSize - bytesLeft);//offset respecto al inicio
-                if (bytesLeft <= 59) {
-                    out = ((LinearRecord) selectedFile).readData(offset, bytesLeft, (byte) 0);
-                    offset = 0;
-                    bytesLeft = 0;
-                    return sendResponse(Apdu, buffer, out, Util.OPERATION_OK, selectedFile.getCommunicationSettings());
-                } else {
-                    out = ((LinearRecord) selectedFile).readData(offset, (byte) 59, (byte) 0);
-                    commandToContinue = DesFireInstruction.READ_RECORDS;
-                    offset = (short) (offset + 59);
-                    bytesLeft = (short) (bytesLeft - 59);
-                    return sendResponse(Apdu, buffer, out, DesFireInstruction.CONTINUE.toByte(), selectedFile.getCommunicationSettings());
-                }
-            }
-            if (selectedFile instanceof CyclicRecord) {
-                selectedFile = (CyclicRecord) selectedDirectoryFile.getFile(buffer[Iso7816.OFFSET_CDATA]);
-                if (((CyclicRecord) selectedFile).hasReadAccess(authenticated) == false) {
-                    IsoException.throwIt(Util.PERMISSION_DENIED);
-                }
-
-                bytesLeft = (short) (length * ((CyclicRecord) selectedFile).recordSize);
-                offset = (short) (((CyclicRecord) selectedFile).getNextToWrite() - offset * ((CyclicRecord) selectedFile).recordSize - bytesLeft);//offset respecto al inicio
-                if (bytesLeft <= 59) {
-                    out = ((CyclicRecord) selectedFile).readData(offset, bytesLeft, (byte) 0);
-                    offset = 0;
-                    bytesLeft = 0;
-                    return sendResponse(Apdu, buffer, out, Util.OPERATION_OK, selectedFile.getCommunicationSettings());
-                } else {
-                    out = ((CyclicRecord) selectedFile).readData(offset, (byte) 59, (byte) 0);
-                    commandToContinue = DesFireInstruction.READ_RECORDS;
-                    offset = (short) (offset + 59);
-                    bytesLeft = (short) (bytesLeft - 59);
-                    return sendResponse(Apdu, buffer, out, DesFireInstruction.CONTINUE.toByte(), selectedFile.getCommunicationSettings());
-                }
-
-            }
-
-        } else {//commandToContinue==Util.READ_RECORDS
-            if (selectedFile instanceof LinearRecord) {
-                if (bytesLeft <= 59) {
-                    out = ((LinearRecord) selectedFile).readData(offset, bytesLeft, (byte) 0);
-                    offset = 0;
-                    bytesLeft = 0;
-                    commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
-                    return sendResponse(Apdu, buffer, out, Util.OPERATION_OK, selectedFile.getCommunicationSettings());
-                } else {
-                    out = ((LinearRecord) selectedFile).readData(offset, (byte) 59, (byte) 0);
-                    commandToContinue = DesFireInstruction.READ_RECORDS;
-                    offset = (short) (offset + 59);
-                    bytesLeft = (short) (bytesLeft - 59);
-                    return sendResponse(Apdu, buffer, out, DesFireInstruction.CONTINUE.toByte(), selectedFile.getCommunicationSettings());
-                }
-            }
-            if (selectedFile instanceof CyclicRecord) {
-                if (bytesLeft <= 59) {
-                    out = ((CyclicRecord) selectedFile).readData(offset, bytesLeft, (byte) 0);
-                    offset = 0;
-                    bytesLeft = 0;
-                    commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
-                    return sendResponse(Apdu, buffer, out, (byte) 0x00, selectedFile.getCommunicationSettings());
-                } else {
-                    out = ((CyclicRecord) selectedFile).readData(offset, (byte) 59, (byte) 0);
-                    commandToContinue = DesFireInstruction.READ_RECORDS;
-                    offset = (short) (offset + 59);
-                    bytesLeft = (short) (bytesLeft - 59);
-                    return sendResponse(Apdu, buffer, out, DesFireInstruction.CONTINUE.toByte());
-                }
-            }
+        if (apdu.getLc() != 7) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = buffer[apdu.getDataOffset()];
+        if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
+        selectedFile = selectedDirectoryFile.getFile(fileID);
+        int recordOffset = Util.getInt24LE(buffer, apdu.getDataOffset() + 1);
+        int recordCount = Util.getInt24LE(buffer, apdu.getDataOffset() + 4);
+        byte[] out;
+        if (selectedFile instanceof LinearRecord) {
+            LinearRecord file = (LinearRecord) selectedFile;
+            if (file.hasReadAccess(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
+            if (recordOffset + recordCount > file.maxSize) IsoException.throwIt(Util.BOUNDARY_ERROR);
+            int length = recordCount * file.recordSize;
+            int start = file.getCurrentSize() - recordOffset * file.recordSize - length;//offset respecto al inicio
+            if (start < 0) IsoException.throwIt(Util.BOUNDARY_ERROR);
+            offset = (short) start;
+            bytesLeft = (short) length;
+            out = file.readData(offset, bytesLeft, (byte) 0);
+        } else if (selectedFile instanceof CyclicRecord) {
+            CyclicRecord file = (CyclicRecord) selectedFile;
+            if (file.hasReadAccess(authenticated) == false) IsoException.throwIt(Util.PERMISSION_DENIED);
+            if (recordOffset + recordCount > file.maxSize) IsoException.throwIt(Util.BOUNDARY_ERROR);
+            int length = recordCount * file.recordSize;
+            int start = file.getNextToWrite() - recordOffset * file.recordSize - length;//offset respecto al inicio
+            if (start < 0) IsoException.throwIt(Util.BOUNDARY_ERROR);
+            offset = (short) start;
+            bytesLeft = (short) length;
+            out = file.readData(offset, bytesLeft, (byte) 0);
+        } else {
+            IsoException.throwIt(Util.APPL_INTEGRITY_ERROR);
+            return null;
         }
-        IsoException.throwIt(Util.APPL_INTEGRITY_ERROR);
-        return null;
+        return sendChain(apdu, out, out.length, selectedFile.getCommunicationSettings(), DesFireInstruction.READ_RECORDS);
     }
 
     /**
@@ -1171,41 +1338,42 @@ public class DesfireApplet extends Applet {
      * @note || FileN ||
      * 1
      */
-    private void clearRecordFile(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu clearRecordFile(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 1) IsoException.throwIt(Util.LENGTH_ERROR);
-        byte fileID = buffer[Iso7816.OFFSET_CDATA];
+        if (apdu.getLc() != 1) IsoException.throwIt(Util.LENGTH_ERROR);
+        byte fileID = buffer[apdu.getDataOffset()];
         selectedFile = selectedDirectoryFile.getFile(fileID);
         if (selectedDirectoryFile.isValidFileNumber(fileID) == false) IsoException.throwIt(Util.FILE_NOT_FOUND);
 
         if (selectedFile instanceof LinearRecord) {
-            selectedFile = (LinearRecord) selectedDirectoryFile.getFile(buffer[Iso7816.OFFSET_CDATA]);
+            selectedFile = (LinearRecord) selectedDirectoryFile.getFile(buffer[apdu.getDataOffset()]);
             if (((LinearRecord) selectedFile).hasWriteAccess(authenticated) == false) {
                 IsoException.throwIt(Util.PERMISSION_DENIED);
             }
             ((LinearRecord) selectedFile).deleteRecords();
-            IsoException.throwIt(Util.OPERATION_OK);
+            return operationOkResponse;
         }
         if (selectedFile instanceof CyclicRecord) {
-            selectedFile = (CyclicRecord) selectedDirectoryFile.getFile(buffer[Iso7816.OFFSET_CDATA]);
+            selectedFile = (CyclicRecord) selectedDirectoryFile.getFile(buffer[apdu.getDataOffset()]);
             if (((CyclicRecord) selectedFile).hasWriteAccess(authenticated) == false) {
                 IsoException.throwIt(Util.PERMISSION_DENIED);
             }
             ((CyclicRecord) selectedFile).deleteRecords();
-            IsoException.throwIt(Util.OPERATION_OK);
+            return operationOkResponse;
         }
+        return notSupportedResponse;
     }
 
     /**
      * Validates all previous write access on Backup Data Files, Value Files and
      * Record Files within one application
      */
-    private void commitTransaction(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu commitTransaction(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (apdu.getLc() != 0) IsoException.throwIt(Util.LENGTH_ERROR);
         for (byte i = 0; i < 32; i++) {
             if (selectedDirectoryFile.getWaitingForTransaction(i) == true) {
                 if (selectedDirectoryFile.getFile(i) instanceof BackupFile) {
@@ -1234,17 +1402,17 @@ public class DesfireApplet extends Applet {
                 }
             }
         }
-        IsoException.throwIt(Util.OPERATION_OK);
+        return operationOkResponse;
     }
 
     /**
      * Invalidates all previous write access on Backup Data Files, Value Files and
      * Record Files within one application
      */
-    private void abortTransaction(Apdu Apdu, byte[] buffer) {
+    private ResponseApdu abortTransaction(CommandApdu apdu, byte[] buffer) {
         if (selectedDirectoryFile.isMasterFile() == true) IsoException.throwIt(Util.PERMISSION_DENIED);
 
-        if ((byte) buffer[Iso7816.OFFSET_LC] != 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        if (apdu.getLc() != 0) IsoException.throwIt(Util.LENGTH_ERROR);
         for (byte i = 0; i < 32; i++) {
             if (selectedDirectoryFile.getWaitingForTransaction(i) == true) {
                 if (selectedDirectoryFile.getFile(i) instanceof BackupFile) {
@@ -1273,6 +1441,67 @@ public class DesfireApplet extends Applet {
                 }
             }
         }
+        return operationOkResponse;
+    }
+
+    /**
+     * Runs a sequence of commands in one round trip, for personalization stations
+     *
+     * Every command runs as if it had been sent on its own, under the authentication of the moment,
+     * and must be answered in one frame of at most 255 bytes. The first command that answers anything
+     * but OPERATION_OK ends the script; a command that asks for an additional frame is aborted.
+     * @note || Length | INS | Data || ... one entry per command, Length counts INS and Data
+     * 1        1     0-254
+     * @note Answer || Length | Data | SW1 | SW2 || ... one entry per command run, chained when long
+     * 1       0-255    1     1
+     */
+    private ResponseApdu batch(CommandApdu apdu, byte[] buffer) {
+        if (apdu.getLc() == 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        int start = apdu.getDataOffset();
+        int end = start + apdu.getLc();
+        // A script that does not parse runs nothing
+        for (int i = start; i < end; i += 1 + (buffer[i] & 0xFF)) {
+            int length = buffer[i] & 0xFF;
+            if (length == 0 || i + 1 + length > end) IsoException.throwIt(Util.LENGTH_ERROR);
+            if (buffer[i + 1] == DesFireInstruction.BATCH.toByte()) IsoException.throwIt(Util.PARAMETER_ERROR);
+        }
+
+        byte[] command = scratch.get(ScratchArena.COMMAND, 5 + 255 + 1);
+        int answerLength = 0;
+        for (int i = start; i < end; i += 1 + (buffer[i] & 0xFF)) {
+            int length = buffer[i] & 0xFF;
+            command[0] = (byte) 0x90;
+            command[1] = buffer[i + 1];
+            command[2] = 0x00;
+            command[3] = 0x00;
+            int commandLength = 4;
+            if (length > 1) {
+                command[commandLength++] = (byte) (length - 1);
+                System.arraycopy(buffer, i + 2, command, commandLength, length - 1);
+                commandLength += length - 1;
+            }
+            command[commandLength++] = (byte) 0xFF;
+            batchEntry.wrap(command, commandLength);
+
+            ResponseApdu response = processPlain(batchEntry);
+            short status = response.sw;
+            int dataLength = response.length;
+            if (dataLength > 255) {
+                status = Util.LENGTH_ERROR;
+                dataLength = 0;
+            }
+            byte[] answer = scratch.grow(ScratchArena.ANSWER, answerLength + 1 + dataLength + 2);
+            answer[answerLength++] = (byte) dataLength;
+            System.arraycopy(response.data, 0, answer, answerLength, dataLength);
+            answerLength += dataLength;
+            answer[answerLength++] = (byte) (status >> 8);
+            answer[answerLength++] = (byte) status;
+            if (status == Util.OPERATION_OK || status == Iso7816.SW_NO_ERROR) continue;
+            // The script can not be continued, drop what the command left pending even when it was too long to answer
+            if (response.sw == Util.ADDITIONAL_FRAME) halfClear();
+            break;
+        }
+        return sendChain(apdu, scratch.get(ScratchArena.ANSWER, answerLength), answerLength, Util.PLAIN_COMMUNICATION, DesFireInstruction.BATCH);
     }
 
     /**
@@ -1364,23 +1593,23 @@ public class DesfireApplet extends Applet {
     }
 
 
-    private ResponseApdu sendResponse(Apdu Apdu, byte[] buffer, byte[] response) {
-        return sendResponse(Apdu, buffer, response, (byte) 0x00);
+    private ResponseApdu sendResponse(CommandApdu apdu, byte[] buffer, byte[] response) {
+        return sendResponse(apdu, buffer, response, (byte) 0x00);
     }
 
     /**
      * Send a response with configurable status word
      *
      */
-    private ResponseApdu sendResponse(Apdu Apdu, byte[] buffer, byte[] response, short status) {
-        return sendResponse(Apdu, buffer, response, status, this.securityLevel);
+    private ResponseApdu sendResponse(CommandApdu apdu, byte[] buffer, byte[] response, short status) {
+        return sendResponse(apdu, buffer, response, status, this.securityLevel);
     }
 
     /**
      * Send a response with configurable status word and security level
      *
      */
-    private ResponseApdu sendResponse(Apdu Apdu, byte[] buffer, byte[] response, short status, byte securityLevel) {
+    private ResponseApdu sendResponse(CommandApdu apdu, byte[] buffer, byte[] response, short status, byte securityLevel) {
         // construct the reply Apdu
 
         //short le = Apdu.setOutgoing();
@@ -1411,7 +1640,7 @@ public class DesfireApplet extends Applet {
      * This is needed for the authentication because the last message should be sended
      * encrypted with the old session key and afterwards the session key should change
      */
-    private ResponseApdu sendResponseAndChangeStatus(Apdu Apdu, byte[] buffer, byte[] response, Key newSessionKey) {
+    private ResponseApdu sendResponseAndChangeStatus(CommandApdu apdu, byte[] buffer, byte[] response, Key newSessionKey, SecureMessaging newSecureMessaging) {
 
         // construct the reply Apdu
         //short le = Apdu.setOutgoing();
@@ -1433,10 +1662,66 @@ public class DesfireApplet extends Applet {
 
         sessionKey = newSessionKey;
         securityLevel = Util.FULLY_ENCRYPTED;
-        for (byte i = 0; i < response.length; i++) {
-            buffer[i] = response[i];
-        }
-        return new ResponseApdu(buffer, response.length);
+        secureApdu = new SecureApdu(newSecureMessaging);
+        return new ResponseApdu(response);
+    }
+
+    /**
+     * Keeps the selected application, the authenticated key and the session key for a while after
+     * the field is lost so a reader that reconnects and goes on without SELECT resumes the session
+     *
+     * Only {@link #resume()} restores the session, a SELECT always starts a new one. The link does not
+     * tell readers apart, any reader within the window that does not SELECT gets the session.
+     * @param millis 0 turns resumption off
+     */
+    public void setResumptionWindow(long millis) {
+        resumptionWindow = millis * 1000000L;
+    }
+
+    /**
+     * Handles an instruction with handler instead of the built in one, in every session of the card
+     *
+     * @param ins Not 0xAF, register a continuation for that
+     * @param handler null makes the instruction answer ILLEGAL_COMMAND_CODE
+     */
+    public void registerCommand(byte ins, CommandHandler handler) {
+        card.registerCommand(ins, handler);
+    }
+
+    /**
+     * Handles the CONTINUE that follows an ADDITIONAL_FRAME answer to ins, in every session of the card
+     *
+     * @param ins The instruction being continued
+     * @param handler
+     */
+    public void registerContinuation(byte ins, CommandHandler handler) {
+        card.registerContinuation(ins, handler);
+    }
+
+    @Override
+    public void select() {
+        clear();
+        deselectedAt = -1;
+    }
+
+    @Override
+    public void deselect() {
+        // A frame chain does not survive the field loss, the reader repeats the command
+        halfClear();
+        scratch.clear();
+        deselectedAt = System.nanoTime();
+        if (resumptionWindow == 0) clear();
+    }
+
+    @Override
+    public boolean resume() {
+        if (!isResumable()) return false;
+        deselectedAt = -1;
+        return true;
+    }
+
+    private boolean isResumable() {
+        return resumptionWindow > 0 && (deselectedAt == -1 || System.nanoTime() - deselectedAt <= resumptionWindow);
     }
 
     /**
@@ -1446,16 +1731,17 @@ public class DesfireApplet extends Applet {
         selectedFile = null;
         selectedDirectoryFile = masterFile;
         commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
+        chain.clear();
+        assembly.clear();
         authenticated = Util.NO_KEY_AUTHENTICATED;
-        dataBuffer = null;
         securityLevel = Util.PLAIN_COMMUNICATION;
         fileSecurityLevel = Util.PLAIN_COMMUNICATION;
-        readed = 0;
         offset = 0;
         bytesLeft = 0;
         keyNumberToAuthenticate = 0;
         //sessionKey.clearKey();	
         sessionKey = null;
+        secureApdu = null;
     }
 
     /**
@@ -1538,24 +1824,41 @@ public class DesfireApplet extends Applet {
     }
 
     /**
-     * It is called for the continuous sending of parts of a message. Everytime it is called it sends a block of MAX_BLOCK bytes
-     * since the position pointed by the given offset
+     * Answers data over as many frames as it takes, the reader sends a CONTINUE for every next one
      *
-     * @throws BadPaddingException
-     * @throws IllegalBlockSizeException
-     * @throws ShortBufferException
-     * @throws InvalidKeyException
+     * Enciphered data is enciphered as a whole first and the cryptogram is chained.
+     * @param data Holds the body from offset 0, plain bodies are chained without a copy
+     * @param instruction The command being answered, its CONTINUE comes back to {@link #continueChain}
      */
-    private ResponseApdu sendBlockResponse(Apdu Apdu, byte[] buffer, byte[] data, short offset, byte securityLevel) {
-        if ((short) (offset + Util.MAX_DATA_SIZE) < data.length) {
-            this.offset = (short) (offset + Util.MAX_DATA_SIZE);
-            return sendResponse(Apdu, buffer, Util.subByteArray(data, offset, (short) (offset + Util.MAX_DATA_SIZE - 1)), DesFireInstruction.CONTINUE.toByte(), securityLevel);
-        } else {
-//			IsoException.throwIt((short)securityLevel);
-            halfClear();
-            return sendResponse(Apdu, buffer, Util.subByteArray(data, offset, (short) (data.length - 1)), DesFireInstruction.CONTINUE.toByte(), securityLevel);
+    private ResponseApdu sendChain(CommandApdu apdu, byte[] data, int length, byte securityLevel, DesFireInstruction instruction) {
+        if (securityLevel == Util.FULLY_ENCRYPTED) {
+            data = encryptBytes(Arrays.copyOf(data, length), sessionKey);
+            length = data.length;
         }
+        chain.start(data, 0, length);
+        commandToContinue = instruction;
+        return continueChain(apdu);
+    }
 
+    private ResponseApdu continueChain(CommandApdu apdu) {
+        ResponseApdu response = chain.next(getResponseFrameSize(apdu));
+        if (!chain.isActive()) halfClear();
+        return response;
+    }
+
+    /**
+     * Get the number of data bytes one response frame may carry
+     *
+     * Bounded by what the reader takes in one transceive, less what secure messaging adds, and by
+     * the Le of the command. DESFire native frames carry no Le and only get the reader bound.
+     */
+    private int getResponseFrameSize(CommandApdu apdu) {
+        int frameSize = getMaxResponseLength();
+        // Secure messaging wraps the data in DO87, DO99 and DO8E
+        if (isWrapped) frameSize = secureApdu.getMaxPlainLength(frameSize);
+        int ne = apdu.getNe();
+        if (ne > 0 && ne < frameSize) frameSize = ne;
+        return frameSize;
     }
 
     /**
@@ -1563,8 +1866,8 @@ public class DesfireApplet extends Applet {
      */
     private void halfClear() {
         commandToContinue = DesFireInstruction.NO_COMMAND_TO_CONTINUE;
-        dataBuffer = null;
-        readed = 0;
+        chain.clear();
+        assembly.clear();
         offset = 0;
         bytesLeft = 0;
         fileSecurityLevel = securityLevel;
@@ -1577,135 +1880,97 @@ public class DesfireApplet extends Applet {
 //		
 //		byte[] buffer = Apdu.getBuffer();
 
-        if (authenticated == -1) this.securityLevel = Util.PLAIN_COMMUNICATION;
-        if ((commandToContinue != DesFireInstruction.NO_COMMAND_TO_CONTINUE) && (apdu.getBuffer()[Iso7816.OFFSET_INS] != (byte) 0xAF)) {
-            clear();
-            IsoException.throwIt((short) Util.COMMAND_ABORTED);
-        }
-
         // Firstly check if it is protected and if so unwrap it
-        boolean isProtected = (apdu.cla & CLA_PROTECTED_APDU) == CLA_PROTECTED_APDU;
-        if (isProtected) {
-            apdu = SecureApdu.unwrapCommandApdu(apdu);
-        }
+        boolean isProtected = (apdu.cla & SecureApdu.CLA_SECURE_MESSAGING) == SecureApdu.CLA_SECURE_MESSAGING;
+        isWrapped = false;
+        if (!isProtected) return processPlain(apdu);
+        if (secureApdu == null) return new ResponseApdu(Iso7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
+
+        // The command may end the session, its answer is still protected with the session it came in
+        SecureApdu session = secureApdu;
+        CommandApdu plain;
         try {
-            // check the INS byte to decide which service method to call
-            //switch (buffer[Iso7816.OFFSET_INS]) {
-            DesFireInstruction instruction = DesFireInstruction.parseInstruction(apdu.ins);
-            // push instruction to stack. apdu as well.C
-            switch (instruction) {
-                case GET_VERSION:
-                    return getVersion(apdu, apdu.getBuffer());
-                // legacy authentication
-                case AUTHENTICATE:
-                    return authenticate(apdu, apdu.getBuffer());
-                case AUTHENTICATE_AES:
-                    return authenticate(apdu, apdu.getBuffer());
-                case CHANGE_KEY_SETTINGS:
-                    changeKeySettings(apdu, apdu.getBuffer());
-                    break;
-                case CHANGE_KEY:
-                    changeKey(apdu, apdu.getBuffer());
-                    break;
-                case CREATE_APPLICATION:
-                    createApplication(apdu, apdu.getBuffer());
-                    break;
-                case DELETE_APPLICATION:
-                    deleteApplication(apdu, apdu.getBuffer());
-                    break;
-                case GET_APPLICATION_IDS:
-                    return getApplicationIDs(apdu, apdu.getBuffer());
-                case GET_KEY_SETTINGS:
-                    return getKeySettings(apdu, apdu.getBuffer());
-                case SELECT_APPLICATION:
-                    selectApplication(apdu, apdu.getBuffer());
-                    break;
-                case FORMAT_PICC:
-                    formatPICC(apdu, apdu.getBuffer());
-                    break;
-                case SET_CONFIGURATION:
-                    setConfiguration(apdu, apdu.getBuffer());
-                    break;
-                case GET_FILE_IDS:
-                    return getFileIDs(apdu, apdu.getBuffer());
-                case CREATE_STDDATAFILE:
-                    createStdDataFile(apdu, apdu.getBuffer());
-                    break;
-                case CREATE_BACKUPDATAFILE:
-                    createBackupDataFile(apdu, apdu.getBuffer());
-                    break;
-                case CREATE_VALUE_FILE:
-                    createValueFile(apdu, apdu.getBuffer());
-                    break;
-                case CREATE_LINEAR_RECORD_FILE:
-                    createLinearRecordFile(apdu, apdu.getBuffer());
-                    break;
-                case CREATE_CYCLIC_RECORD_FILE:
-                    createCyclicRecordFile(apdu, apdu.getBuffer());
-                    break;
-                case DELETE_FILE:
-                    deleteFile(apdu, apdu.getBuffer());
-                    break;
-                case READ_DATA:
-                    return readData(apdu, apdu.getBuffer());
-                case WRITE_DATA:
-                    writeData(apdu, apdu.getBuffer());
-                    break;
-                case GET_VALUE:
-                    return getValue(apdu, apdu.getBuffer());
-                case CREDIT:
-                    credit(apdu, apdu.getBuffer());
-                    break;
-                case DEBIT:
-                    debit(apdu, apdu.getBuffer());
-                    break;
-                case READ_RECORDS:
-                    return readRecords(apdu, apdu.getBuffer());
-                case WRITE_RECORD:
-                    writeRecord(apdu, apdu.getBuffer());
-                    break;
-                case CLEAR_RECORD_FILE:
-                    clearRecordFile(apdu, apdu.getBuffer());
-                    break;
-                case COMMIT_TRANSACTION:
-                    commitTransaction(apdu, apdu.getBuffer());
-                    break;
-                case ABORT_TRANSACTION:
-                    abortTransaction(apdu, apdu.getBuffer());
-                    break;
-                case CONTINUE:
-                    switch (commandToContinue) {
-                        case AUTHENTICATE:
-                            return authenticate(apdu, apdu.getBuffer());
-                        case GET_APPLICATION_IDS:
-                            return getApplicationIDs(apdu, apdu.getBuffer());
-                        case READ_DATA:
-                            return sendBlockResponse(apdu, apdu.getBuffer(), dataBuffer, offset, fileSecurityLevel);
-                        case WRITE_DATA:
-                            writeData(apdu, apdu.getBuffer());
-                            break;
-                        case READ_RECORDS:
-                            return readRecords(apdu, apdu.getBuffer());
-                        case WRITE_RECORD:
-                            writeRecord(apdu, apdu.getBuffer());
-                            break;
-                        case GET_VERSION:
-                            return getVersion(apdu, apdu.getBuffer());
-                        default:
-                            IsoException.throwIt((short) 0x911C);
-                            break;
-                    }
-                    break;
-                default:
-                    IsoException.throwIt((short) 0x911C);
-                    break;
-            }
+            plain = session.unwrap(apdu);
         } catch (IsoException e) {
+            // A command that does not verify ends the secure messaging session
+            secureApdu = null;
             return new ResponseApdu(e.getErrorCode());
-        } catch (Exception e) {
-            return new ResponseApdu(Iso7816.SW_INTERNAL_ERROR);
         }
-        return new ResponseApdu(Iso7816.SW_FUNC_NOT_SUPPORTED);
+        isWrapped = true;
+        return session.wrap(processPlain(plain));
+    }
+
+    /**
+     * Completes authentication, key changes and enciphered traffic on the crypto executor of the card,
+     * everything else on the calling thread
+     */
+    @Override
+    public void process(CommandApdu apdu, final ResponseCallback callback) {
+        if (!isCryptoBound(apdu)) {
+            super.process(apdu, callback);
+            return;
+        }
+
+        int length = apdu.getLength();
+        if (deferredBuffer.length < length) deferredBuffer = new byte[length];
+        System.arraycopy(apdu.getBuffer(), 0, deferredBuffer, 0, length);
+        final CommandApdu command = deferredApdu.wrap(deferredBuffer, length);
+        card.getCryptoExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                ResponseApdu response;
+                try {
+                    response = process(command);
+                } catch (IsoException e) {
+                    response = new ResponseApdu(e.getErrorCode());
+                } catch (RuntimeException e) {
+                    response = new ResponseApdu(Iso7816.SW_UNKNOWN);
+                }
+                callback.onResponse(response);
+            }
+        });
+    }
+
+    /**
+     * Checks if the command runs a cipher: secure messaging, enciphered communication, authentication
+     * and key changes
+     */
+    private boolean isCryptoBound(CommandApdu apdu) {
+        if ((apdu.cla & SecureApdu.CLA_SECURE_MESSAGING) == SecureApdu.CLA_SECURE_MESSAGING) return true;
+        if (securityLevel == Util.FULLY_ENCRYPTED || fileSecurityLevel == Util.FULLY_ENCRYPTED) return true;
+        if (apdu.ins == DesFireInstruction.AUTHENTICATE.toByte() || apdu.ins == DesFireInstruction.AUTHENTICATE_AES.toByte()
+                || apdu.ins == DesFireInstruction.CHANGE_KEY.toByte()) return true;
+        return apdu.ins == DesFireInstruction.CONTINUE.toByte() && commandToContinue == DesFireInstruction.AUTHENTICATE;
+    }
+
+    private ResponseApdu processPlain(CommandApdu apdu) {
+        // One command at a time on the card, whichever session it comes from
+        synchronized (card) {
+            // The card data was replaced, start over from the PICC level
+            MasterFile current = card.getMasterFile();
+            if (current != masterFile) {
+                masterFile = current;
+                clear();
+            }
+
+            if (authenticated == -1) this.securityLevel = Util.PLAIN_COMMUNICATION;
+            if ((commandToContinue != DesFireInstruction.NO_COMMAND_TO_CONTINUE) && (apdu.ins != (byte) 0xAF)) {
+                clear();
+                return new ResponseApdu((short) Util.COMMAND_ABORTED);
+            }
+
+            try {
+                CommandHandler handler = apdu.ins == DesFireInstruction.CONTINUE.toByte()
+                        ? card.continuations[commandToContinue.toByte() & 0xFF]
+                        : card.commands[apdu.ins & 0xFF];
+                if (handler == null) return illegalCommandResponse;
+                return handler.process(this, apdu);
+            } catch (IsoException e) {
+                return new ResponseApdu(e.getErrorCode());
+            } catch (Exception e) {
+                return new ResponseApdu(Iso7816.SW_INTERNAL_ERROR);
+            }
+        }
     }
 
     public String getName() {
@@ -1716,12 +1981,16 @@ public class DesfireApplet extends Applet {
         return APPLET_AID;
     }
 
+    public DesfireCard getCard() {
+        return card;
+    }
+
     public MasterFile getMasterFile() {
-        return masterFile;
+        return card.getMasterFile();
     }
 
     public void setMasterFile(MasterFile masterFile) {
-        this.masterFile = masterFile;
+        card.setMasterFile(masterFile);
     }
 }
 
@@ -0,0 +1,145 @@
+package net.jpeelaer.hce.desfire;
+
+import org.kevinvalk.hce.framework.Applet;
+import org.kevinvalk.hce.framework.AppletFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The data of one emulated DESFire card, shared by every session that talks to it
+ *
+ * A {@link DesfireApplet} only keeps what belongs to one reader: the selected application, the
+ * authentication and the command being continued. Sessions run every command holding the card's
+ * monitor, so readers served at the same time see each command applied entirely or not at all.
+ */
+public class DesfireCard {
+
+    private MasterFile masterFile;
+
+    /**
+     * Runs the commands of this card's sessions that spend their time in ciphers, started on first use
+     */
+    private ExecutorService cryptoExecutor;
+    private final Object executorLock = new Object();
+
+    /**
+     * Handlers for every session of this card indexed by INS, and by the pending instruction for a CONTINUE
+     */
+    final CommandHandler[] commands = DesfireApplet.COMMANDS.clone();
+    final CommandHandler[] continuations = DesfireApplet.CONTINUATIONS.clone();
+
+    /**
+     * Creates sessions on this card, one for every reader that selects it
+     */
+    private final AppletFactory factory = new AppletFactory() {
+        @Override
+        public byte[] getAid() {
+            return DesfireApplet.APPLET_AID;
+        }
+
+        @Override
+        public Applet createApplet() {
+            try {
+                return new DesfireApplet(DesfireCard.this);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    public DesfireCard() {
+        this(new MasterFile());
+    }
+
+    public DesfireCard(MasterFile masterFile) {
+        this.masterFile = masterFile;
+    }
+
+    public synchronized MasterFile getMasterFile() {
+        return masterFile;
+    }
+
+    /**
+     * Replaces the card data, sessions go back to the PICC level on their next command
+     *
+     * @param masterFile
+     */
+    public synchronized void setMasterFile(MasterFile masterFile) {
+        this.masterFile = masterFile;
+    }
+
+    /**
+     * Get the executor the sessions complete cipher bound commands on, a new one after {@link #shutdown()}
+     *
+     * @return
+     */
+    ExecutorService getCryptoExecutor() {
+        synchronized (executorLock) {
+            if (cryptoExecutor == null) {
+                cryptoExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DesfireCrypto");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return cryptoExecutor;
+        }
+    }
+
+    /**
+     * Stops the crypto executor once the commands it was given are done, call it when the service hosting the card ends
+     */
+    public void shutdown() {
+        synchronized (executorLock) {
+            if (cryptoExecutor != null) {
+                cryptoExecutor.shutdown();
+                cryptoExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Get a factory that opens a new session on this card for every reader
+     *
+     * @return
+     */
+    public AppletFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Handles an instruction with handler instead of the built in one, in every session of this card
+     *
+     * @param ins Not 0xAF, register a continuation for that
+     * @param handler null makes the instruction answer ILLEGAL_COMMAND_CODE
+     */
+    public synchronized void registerCommand(byte ins, CommandHandler handler) {
+        if (ins == DesFireInstruction.CONTINUE.toByte()) throw new IllegalArgumentException("CONTINUE is routed by registerContinuation");
+        commands[ins & 0xFF] = handler;
+    }
+
+    /**
+     * Answers the vendor BATCH instruction in every session of this card, it is illegal by default
+     *
+     * @param enabled
+     */
+    public void setBatchEnabled(boolean enabled) {
+        registerCommand(DesFireInstruction.BATCH.toByte(), enabled ? DesfireApplet.BATCH_COMMAND : null);
+    }
+
+    /**
+     * Handles the CONTINUE that follows an ADDITIONAL_FRAME answer to ins, in every session of this card
+     *
+     * @param ins The instruction being continued
+     * @param handler
+     */
+    public synchronized void registerContinuation(byte ins, CommandHandler handler) {
+        continuations[ins & 0xFF] = handler;
+    }
+}
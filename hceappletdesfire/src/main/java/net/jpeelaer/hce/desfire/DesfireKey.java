@@ -74,6 +74,19 @@ public enum DesfireKey {
         return DES;
     }
 
+    /**
+     * Get the key type bits of the second CreateApplication key settings byte, the inverse of {@link #parse}
+     */
+    public byte toKeyType() {
+        switch(this) {
+            case AES : return Util.AES;
+            case TDES: return Util.TDES;
+            case TK3DES : return Util.TKTDES;
+        }
+        // parse falls back to DES for any bits it does not know
+        return (byte) 0xC0;
+    }
+
     public Key buildDefaultKey() {
         return new SecretKeySpec(defaultKey(), algorithm);
     }
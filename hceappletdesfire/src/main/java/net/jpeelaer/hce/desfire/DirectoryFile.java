@@ -31,6 +31,12 @@ public class DirectoryFile extends File {
     private int maxKeyNumber;//Maximo numero de claves que se pueden almacenar (aplicaci�n)
     private boolean ISOFileIDSupported;
 
+    /**
+     * Encoded answers of GetFileIDs and GetKeySettings, built when asked for and dropped when they change
+     */
+    private byte[] fileIDs;
+    private byte[] keySettingsResponse;
+
     public DirectoryFile() {
         super((byte) 0x00);
     }
@@ -64,8 +70,11 @@ public class DirectoryFile extends File {
         maxKeyNumber = keySettings[1] & 0x0F;
         ISOFileIDSupported = (keySettings[1] & (byte) 0x10) == (byte) 0x10;
 
+        // Every key of a new application starts as the default key
         keyList = new ArrayList<Key>(maxKeyNumber);
-        keyList.add(keyType.buildDefaultKey());
+        for (int i = 0; i < Math.max(maxKeyNumber, 1); i++) {
+            keyList.add(keyType.buildDefaultKey());
+        }
     }
 
     public void setAID(byte[] AID) { }
@@ -76,7 +85,7 @@ public class DirectoryFile extends File {
 
     public File getFile(byte fid) {
         if (activatedFiles[fid] == true) {
-            return arrayFiles.get(fid);
+            return arrayFiles.get(Integer.valueOf(fid));
         }  else {
             IsoException.throwIt((short) Util.FILE_NOT_FOUND);//File not found
             return null;
@@ -103,14 +112,16 @@ public class DirectoryFile extends File {
         arrayFiles.put(Integer.valueOf(s.getFileID()), s);
         numberFiles++;
         activatedFiles[s.getFileID()] = true;
+        fileIDs = null;
 
     }
 
     public void deleteFile(byte id) {
 
         activatedFiles[id] = false;
-        arrayFiles.remove(id);
+        arrayFiles.remove(Integer.valueOf(id));
         numberFiles--;
+        fileIDs = null;
     }
 
     public Key getKey(byte keyNumber) {
@@ -185,6 +196,7 @@ public class DirectoryFile extends File {
     }
 
     public void changeKeySettings(byte newKS) {
+        keySettingsResponse = null;
         if (getFileID() != (byte) 0x00) {
             changeKeyAccessRights = (byte) (((byte) (newKS >> 4)) & ((byte) 0x0F));
         }
@@ -225,6 +237,33 @@ public class DirectoryFile extends File {
         return ks;
     }
 
+    /**
+     * Get the GetKeySettings answer, key settings followed by the key number
+     *
+     * @return Shared between calls, must not be modified
+     */
+    public byte[] getKeySettingsResponse() {
+        if (keySettingsResponse == null) keySettingsResponse = new byte[]{getKeySettings(), getKeyNumber()};
+        return keySettingsResponse;
+    }
+
+    /**
+     * Get the GetFileIDs answer, the numbers of the active files in order and a closing 0x00
+     *
+     * @return Shared between calls, must not be modified
+     */
+    public byte[] getFileIDs() {
+        if (fileIDs == null) {
+            byte[] IDs = new byte[numberFiles + 1];
+            byte i = 0;
+            for (byte j = 0; j < MAX_FILES; j++) {
+                if (activatedFiles[j] == true) IDs[i++] = j;
+            }
+            fileIDs = IDs;
+        }
+        return fileIDs;
+    }
+
     public byte getKeyNumber() {
         byte kn = 0;
         if (getFileID() == (byte) 0x00) return (byte) 0x01;
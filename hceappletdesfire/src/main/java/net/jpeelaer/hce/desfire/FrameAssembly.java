@@ -0,0 +1,68 @@
+package net.jpeelaer.hce.desfire;
+
+import org.kevinvalk.hce.framework.IsoException;
+
+/**
+ * Collects a request body the reader sends over several frames
+ *
+ * The body lives in the BODY slot of the session's {@link ScratchArena}, sized from the length the
+ * first frame declares, so every frame is a single copy and a session only allocates when it meets
+ * a longer body.
+ */
+public class FrameAssembly {
+
+    private final ScratchArena arena;
+    private byte[] buffer = new byte[0];
+    private int length;
+    private int expected;
+
+    public FrameAssembly(ScratchArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Starts a body of expected bytes
+     *
+     * @param expected
+     */
+    public void start(int expected) {
+        if (expected < 0) IsoException.throwIt(Util.LENGTH_ERROR);
+        this.buffer = arena.get(ScratchArena.BODY, expected);
+        this.length = 0;
+        this.expected = expected;
+    }
+
+    /**
+     * Appends the data of one frame
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return The number of bytes still expected
+     * @throws IsoException LENGTH_ERROR when the frame carries more than was declared
+     */
+    public int append(byte[] data, int offset, int length) {
+        if (length > expected - this.length) IsoException.throwIt(Util.LENGTH_ERROR);
+        System.arraycopy(data, offset, buffer, this.length, length);
+        this.length += length;
+        return expected - this.length;
+    }
+
+    /**
+     * Get the buffer holding the body from offset 0, it may be longer than the body
+     *
+     * @return
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void clear() {
+        length = 0;
+        expected = 0;
+    }
+}
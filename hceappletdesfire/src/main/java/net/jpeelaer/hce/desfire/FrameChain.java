@@ -0,0 +1,76 @@
+package net.jpeelaer.hce.desfire;
+
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+/**
+ * Streams a response body that does not fit in one frame
+ *
+ * Every frame but the last answers ADDITIONAL_FRAME and the reader sends a CONTINUE for the next.
+ * Frames are cut as large as the reader accepts at the time it asks, so a long read takes as few
+ * round trips as the link allows. They are cut into the FRAME slot of the session's
+ * {@link ScratchArena} and answered in one reused response.
+ */
+public class FrameChain {
+
+    private final ScratchArena arena;
+    private final ResponseApdu response = new ResponseApdu(0);
+    private byte[] data = null;
+    private int position;
+    private int end;
+
+    public FrameChain(ScratchArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Starts streaming length bytes of data, the bytes are not copied
+     *
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void start(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Checks if frames are left to send
+     */
+    public boolean isActive() {
+        return data != null;
+    }
+
+    public int remaining() {
+        return isActive() ? end - position : 0;
+    }
+
+    /**
+     * Cuts the next frame, the chain ends with the frame that answers OPERATION_OK
+     *
+     * @param frameSize The largest number of data bytes the frame may carry
+     * @return The frame, valid until the next call
+     */
+    public ResponseApdu next(int frameSize) {
+        int length = Math.min(Math.max(frameSize, 1), end - position);
+        byte[] frame = arena.get(ScratchArena.FRAME, length);
+        System.arraycopy(data, position, frame, 0, length);
+        position += length;
+        response.data = frame;
+        response.length = length;
+        if (position < end) {
+            response.sw = Util.ADDITIONAL_FRAME;
+        } else {
+            clear();
+            response.sw = Util.OPERATION_OK;
+        }
+        return response;
+    }
+
+    public void clear() {
+        data = null;
+        position = 0;
+        end = 0;
+    }
+}
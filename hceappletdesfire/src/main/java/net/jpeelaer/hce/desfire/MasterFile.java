@@ -42,6 +42,11 @@ public class MasterFile extends DirectoryFile {
      */
     byte[] defaultKeyBytes;
 
+    /**
+     * Encoded answer of GetApplicationIDs, built when asked for and dropped when an application comes or goes
+     */
+    private byte[] applicationIDs;
+
 
     public MasterFile() {
         // file identifier of MasterFile is hard coded to 3F00
@@ -65,6 +70,7 @@ public class MasterFile extends DirectoryFile {
         indexDF.writeRecord(numApp, AID);
         directoryFiles.put(Integer.valueOf(numApp), new DirectoryFile(numApp, keySettings, this));
         numApp++;
+        applicationIDs = null;
         return (byte) (numApp - 1);
     }
 
@@ -75,6 +81,7 @@ public class MasterFile extends DirectoryFile {
         //Borrar DF del record
         //FALTA
         indexDF.deleteRecord(ID);
+        applicationIDs = null;
     }
 
     public void setDirectoryFile(int index, DirectoryFile directoryFile) {
@@ -106,6 +113,22 @@ public class MasterFile extends DirectoryFile {
         return indexDF.readValue(index);
     }
 
+    /**
+     * Get the AIDs of every application, the index file is not included
+     *
+     * @return Shared between calls, must not be modified
+     */
+    public byte[] getApplicationIDs() {
+        if (applicationIDs == null) {
+            byte[] IDs = new byte[Math.max(numApp - 1, 0) * 3];
+            for (int i = 0; i < IDs.length / 3; i++) {
+                System.arraycopy(getAID((byte) (i + 1)), 0, IDs, i * 3, 3);//+1 because the IndexFile won't be included
+            }
+            applicationIDs = IDs;
+        }
+        return applicationIDs;
+    }
+
     public IndexFile getIndexDF() {
         return indexDF;
     }
@@ -0,0 +1,77 @@
+package net.jpeelaer.hce.desfire;
+
+import java.util.Arrays;
+
+/**
+ * Reusable scratch buffers of one session, what transient memory is to a JavaCard applet
+ *
+ * Handlers take their temporaries from a slot here instead of the heap. A slot grows to the largest
+ * size asked of it and is kept, so a session that repeats a command stops allocating after the first.
+ * {@link #clear()} wipes every slot on deselect, like CLEAR_ON_DESELECT memory.
+ */
+public class ScratchArena {
+
+    /**
+     * Data read from a file before it is answered
+     */
+    public static final int READ = 0;
+    /**
+     * One response frame cut from a chain
+     */
+    public static final int FRAME = 1;
+    /**
+     * A request body received over several frames
+     */
+    public static final int BODY = 2;
+    /**
+     * A command unpacked from a batch script
+     */
+    public static final int COMMAND = 3;
+    /**
+     * The answers gathered while a batch script runs
+     */
+    public static final int ANSWER = 4;
+
+    private static final int SLOTS = 5;
+
+    private final byte[][] slots = new byte[SLOTS][];
+
+    public ScratchArena() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new byte[0];
+        }
+    }
+
+    /**
+     * Get the buffer of a slot holding at least size bytes, the caller overwrites what it uses
+     *
+     * @param slot
+     * @param size
+     * @return
+     */
+    public byte[] get(int slot, int size) {
+        if (slots[slot].length < size) slots[slot] = new byte[size];
+        return slots[slot];
+    }
+
+    /**
+     * Get the buffer of a slot holding at least size bytes, what it held is kept when it grows
+     *
+     * @param slot
+     * @param size
+     * @return
+     */
+    public byte[] grow(int slot, int size) {
+        if (slots[slot].length < size) slots[slot] = Arrays.copyOf(slots[slot], Math.max(size, slots[slot].length * 2));
+        return slots[slot];
+    }
+
+    /**
+     * Zeroes every slot, the buffers are kept
+     */
+    public void clear() {
+        for (byte[] slot : slots) {
+            Arrays.fill(slot, (byte) 0);
+        }
+    }
+}
@@ -32,20 +32,32 @@ public class StandartFile extends File {
 	 */
 	public byte[] readArray(short offset, short length, short s){
 		byte[] bytesRead=new byte[length];
-		for (short i = 0; i < length; i++) {
-			bytesRead[(short)(s+i)]=data[(short)(offset+i)];				
-		}
+		readArray(offset, length, bytesRead, s);
 		return(bytesRead);
 	}
+
+	/**
+	 * 	Read an array from the file into output
+	 * 	@return The number of bytes read
+	 */
+	public int readArray(short offset, short length, byte[] output, int outputOffset){
+		return Util.subByteArray(data, offset, offset+length-1, output, outputOffset);
+	}
 	
+	/**
+	 * 	Fill the file from its start with committed data, for building card images
+	 */
+	public void load(byte[] data, int offset, int length){
+		System.arraycopy(data, offset, this.data, 0, length);
+		setSize((short) length);
+	}
+
 	/**
 	 * 	Write an array in the file
 	 */
 	public void writeArray(byte[] data, short offset, short length){
 		
-		for (short i = 0; i < length; i++) {
-			this.data[(short)(offset+i)]=data[i];				
-		}
+		System.arraycopy(data, 0, this.data, offset, length);
 		setSize(Util.max(getSize(),(short) (offset+length)));
 	}
 	
@@ -70,9 +70,6 @@ public class Util {
 	 
 	 //New Errors
 	 public final static short WRONG_VALUE_ERROR=(short)0x916E;
-	 
-	 //Others
-	 public final static byte MAX_DATA_SIZE=100;//MEJORAR ESTE VALOR
 
 	public static byte[] rotateLeft(byte[] c){
 		 byte[] c1=new byte[c.length];
@@ -98,6 +95,22 @@ public class Util {
 	public static final short byteArrayToShort(final byte[] b) {
 		return (short) (((b[0] & 0xFF) << 8) + (b[1] & 0xFF));
 	}
+	/**
+	 * Reads the two low bytes of a little endian offset or length in place
+	 * @param buffer
+	 * @param offset Index of the least significant byte
+	 */
+	public static final short getShortLE(final byte[] buffer, final int offset) {
+		return (short) (((buffer[offset + 1] & 0xFF) << 8) + (buffer[offset] & 0xFF));
+	}
+	/**
+	 * Reads a three byte little endian offset or length in place
+	 * @param buffer
+	 * @param offset Index of the least significant byte
+	 */
+	public static final int getInt24LE(final byte[] buffer, final int offset) {
+		return ((buffer[offset + 2] & 0xFF) << 16) + ((buffer[offset + 1] & 0xFF) << 8) + (buffer[offset] & 0xFF);
+	}
 	public static final short valueByteArrayToShort(final byte[] b) {
 		return (short) (((b[2] & 0xFF) << 8) + (b[3] & 0xFF));
 	}
@@ -228,14 +241,30 @@ public class Util {
 	 * 			Index of the last byte copied to the subarray
 	 * @return
 	 */
-	public static byte[] subByteArray(byte[]input,short inputInit,short inputEnd){
-		byte[] result=new byte[(byte)(inputEnd-inputInit+1)];
-		for (short i = inputInit; i <= inputEnd; i++) {
-			result[(short)(i-inputInit)]=input[i];
-		}
+	public static byte[] subByteArray(byte[]input,int inputInit,int inputEnd){
+		byte[] result=new byte[inputEnd-inputInit+1];
+		System.arraycopy(input, inputInit, result, 0, result.length);
 		return result;
 	}
 
+	/**
+	 * Copies a part of the byte array into output
+	 *
+	 * @param 	input
+	 * @param 	inputInit
+	 * 			Index of the first byte copied
+	 * @param 	inputEnd
+	 * 			Index of the last byte copied
+	 * @param 	output
+	 * @param 	outputOffset
+	 * @return The number of bytes copied
+	 */
+	public static int subByteArray(byte[]input,int inputInit,int inputEnd,byte[] output,int outputOffset){
+		int length=inputEnd-inputInit+1;
+		System.arraycopy(input, inputInit, output, outputOffset, length);
+		return length;
+	}
+
 	public static byte[] getCData(byte[] input) {
 		byte[] result = new byte[input[Iso7816.OFFSET_CDATA]];
 		ByteBuffer.allocate(input.length).put(input).get(result, Iso7816.OFFSET_CDATA, input[Iso7816.OFFSET_CDATA]);
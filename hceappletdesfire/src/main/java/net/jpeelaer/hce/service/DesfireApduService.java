@@ -0,0 +1,24 @@
+package net.jpeelaer.hce.service;
+
+import org.kevinvalk.hce.framework.AppletFactory;
+import org.kevinvalk.hce.framework.HceApduService;
+
+/**
+ * Emulates the DESFire card through the stock host card emulation service
+ */
+public class DesfireApduService extends HceApduService {
+
+    // A new session on the shared card for every reader
+    private final AppletFactory[] factories = {EmulatedCard.get().getFactory()};
+
+    @Override
+    protected AppletFactory[] getAppletFactories() {
+        return factories;
+    }
+
+    @Override
+    public void onDestroy() {
+        EmulatedCard.get().shutdown();
+        super.onDestroy();
+    }
+}
@@ -0,0 +1,24 @@
+package net.jpeelaer.hce.service;
+
+import net.jpeelaer.hce.desfire.DesfireCard;
+
+/**
+ * The DESFire card this app emulates, the activity and the host card emulation service both talk to it
+ *
+ * A dump loaded in the activity is what readers served by the service see, each reader gets a
+ * session of its own from {@link DesfireCard#getFactory()}.
+ */
+public final class EmulatedCard {
+
+    private static DesfireCard card = null;
+
+    private EmulatedCard() {
+    }
+
+    public static synchronized DesfireCard get() {
+        if (card == null) {
+            card = new DesfireCard();
+        }
+        return card;
+    }
+}
@@ -42,7 +42,7 @@ public class AbstractAppletTest {
 
         // create file
         {
-            CommandApdu commandApdu = CommandApdus.parseApdu("90 CD 00 00 07 00 03 00 00 10 00");
+            CommandApdu commandApdu = CommandApdus.parseApdu("90 CD 00 00 07 00 03 00 00 10 00 00");
             ResponseApdu process = applet.process(commandApdu);
             byte[] operationOk = Util.shortToByteArray(Util.OPERATION_OK);
             Arrays.equals(process.getBuffer(), operationOk);
@@ -0,0 +1,133 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Test;
+import org.kevinvalk.hce.framework.ApduTrace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class ApduTraceTest {
+
+    private static final int FRAMES = 20000;
+
+    @Test
+    public void testWraparound() {
+        // rounded up to four slots
+        ApduTrace trace = new ApduTrace(3, 4);
+        Collector collector = new Collector();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(trace.record(ApduTrace.COMMAND, new byte[]{(byte) i}, 0, 1));
+        }
+        assertEquals(2, trace.drain(collector, 2));
+
+        // slots 3, 0 and 1 are written, the last two after the ring went round
+        for (int i = 3; i < 6; i++) {
+            assertTrue(trace.record(i % 2 == 0 ? ApduTrace.COMMAND : ApduTrace.RESPONSE, new byte[]{(byte) i}, 0, 1));
+        }
+        assertEquals(4, trace.drain(collector, Integer.MAX_VALUE));
+        assertEquals(0, trace.drain(collector, Integer.MAX_VALUE));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, collector.values.get(i).intValue());
+        }
+        assertEquals(ApduTrace.RESPONSE, collector.directions.get(3).intValue());
+        assertEquals(0, trace.getDropped());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        ApduTrace trace = new ApduTrace(4, 4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(trace.record(ApduTrace.COMMAND, new byte[]{(byte) i}, 0, 1));
+        }
+        assertFalse(trace.record(ApduTrace.COMMAND, new byte[]{4}, 0, 1));
+        assertFalse(trace.record(ApduTrace.COMMAND, new byte[]{5}, 0, 1));
+        assertEquals(2, trace.getDropped());
+
+        // draining one frees one
+        Collector collector = new Collector();
+        assertEquals(1, trace.drain(collector, 1));
+        assertTrue(trace.record(ApduTrace.COMMAND, new byte[]{6}, 0, 1));
+        assertFalse(trace.record(ApduTrace.COMMAND, new byte[]{7}, 0, 1));
+        assertEquals(3, trace.getDropped());
+
+        assertEquals(4, trace.drain(collector, Integer.MAX_VALUE));
+        int[] expected = {0, 1, 2, 3, 6};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], collector.values.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testTruncatesLongFrames() {
+        ApduTrace trace = new ApduTrace(2, 2);
+        trace.record(ApduTrace.RESPONSE, new byte[]{9, 8, 7, 6}, 1, 3);
+        Collector collector = new Collector();
+        trace.drain(collector, 1);
+        assertEquals(8, collector.values.get(0).intValue());
+        assertEquals(3, collector.lengths.get(0).intValue());
+    }
+
+    @Test
+    public void testDrainFromAnotherThread() throws Exception {
+        final ApduTrace trace = new ApduTrace(16, 4);
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] frame = new byte[4];
+                    for (int i = 0; i < FRAMES; i++) {
+                        frame[0] = (byte) producer;
+                        frame[1] = (byte) (i >> 16);
+                        frame[2] = (byte) (i >> 8);
+                        frame[3] = (byte) i;
+                        // a full ring drops, try again until the consumer caught up
+                        while (!trace.record(ApduTrace.COMMAND, frame, 0, frame.length)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        // every producer's frames arrive whole and in its own order
+        final int[] next = new int[producers.length];
+        ApduTrace.Observer observer = new ApduTrace.Observer() {
+            @Override
+            public void onApdu(long timestamp, int direction, byte[] data, int length) {
+                int i = ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+                assertEquals(4, length);
+                assertEquals(next[data[0]]++, i);
+            }
+        };
+        int drained = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (drained < FRAMES * producers.length && System.currentTimeMillis() < deadline) {
+            drained += trace.drain(observer, 8);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(FRAMES * producers.length, drained);
+        assertEquals(0, trace.drain(observer, Integer.MAX_VALUE));
+    }
+
+    private static class Collector implements ApduTrace.Observer {
+        final List<Integer> values = new ArrayList<Integer>();
+        final List<Integer> directions = new ArrayList<Integer>();
+        final List<Integer> lengths = new ArrayList<Integer>();
+
+        @Override
+        public void onApdu(long timestamp, int direction, byte[] data, int length) {
+            values.add((int) data[0]);
+            directions.add(direction);
+            lengths.add(length);
+        }
+    }
+}
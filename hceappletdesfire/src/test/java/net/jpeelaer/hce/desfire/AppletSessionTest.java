@@ -0,0 +1,146 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Test;
+import org.kevinvalk.hce.framework.Applet;
+import org.kevinvalk.hce.framework.AppletFactory;
+import org.kevinvalk.hce.framework.AppletSession;
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Feeds raw frames the way the host card emulation service hands them over
+ */
+public class AppletSessionTest {
+
+    // answers every command with 9000, sorts after the DESFire AID
+    private static final AppletFactory OTHER = new AppletFactory() {
+        @Override
+        public byte[] getAid() {
+            return CommandApdus.parseBytes("D2 76 00 00 85 01 01").array();
+        }
+
+        @Override
+        public Applet createApplet() {
+            return new Applet() {
+                @Override
+                public ResponseApdu process(CommandApdu apdu) {
+                    return new ResponseApdu(Iso7816.SW_NO_ERROR);
+                }
+
+                @Override
+                public String getName() {
+                    return "Other";
+                }
+
+                @Override
+                public byte[] getAid() {
+                    return OTHER.getAid();
+                }
+            };
+        }
+    };
+
+    private AppletSession session = new AppletSession(new AppletFactory[]{DesfireApplet.FACTORY}, 0);
+
+    @Test
+    public void testSelectAndProcess() {
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 07 D2 76 00 00 85 01 00"));
+        assertEquals(Util.ADDITIONAL_FRAME, process("90 60 00 00 00"));
+    }
+
+    @Test
+    public void testUnknownAid() {
+        assertEquals(Iso7816.SW_FILE_NOT_FOUND, process("00 A4 04 00 07 D2 76 00 00 85 01 01"));
+        assertEquals(Iso7816.SW_INS_NOT_SUPPORTED, process("90 60 00 00 00"));
+
+        // the selected applet stays selected and its session goes on
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 07 D2 76 00 00 85 01 00"));
+        assertEquals(Util.ADDITIONAL_FRAME, process("90 60 00 00 00"));
+        assertEquals(Iso7816.SW_FILE_NOT_FOUND, process("00 A4 04 00 07 D2 76 00 00 85 01 01"));
+        assertTrue(session.getActiveApplet() instanceof DesfireApplet);
+        assertEquals(Util.ADDITIONAL_FRAME, process("90 AF 00 00 00"));
+    }
+
+    @Test
+    public void testEmptyNameSelectsNothing() {
+        assertEquals(Iso7816.SW_FILE_NOT_FOUND, process("00 A4 04 00 00"));
+        assertEquals(Iso7816.SW_FILE_NOT_FOUND, process("00 A4 04 02"));
+        assertEquals(null, session.getActiveApplet());
+    }
+
+    @Test
+    public void testNoAppletSelected() {
+        assertEquals(Iso7816.SW_INS_NOT_SUPPORTED, process("90 60 00 00 00"));
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 07 D2 76 00 00 85 01 00"));
+        session.deselect();
+        assertEquals(Iso7816.SW_INS_NOT_SUPPORTED, process("90 60 00 00 00"));
+    }
+
+    @Test
+    public void testSwitchApplets() {
+        session = new AppletSession(new AppletFactory[]{OTHER, DesfireApplet.FACTORY}, 0);
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 07 D2 76 00 00 85 01 01"));
+        assertEquals(Iso7816.SW_NO_ERROR, process("90 60 00 00 00"));
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 07 D2 76 00 00 85 01 00"));
+        assertEquals(Util.ADDITIONAL_FRAME, process("90 60 00 00 00"));
+    }
+
+    @Test
+    public void testPartialSelect() {
+        session = new AppletSession(new AppletFactory[]{OTHER, DesfireApplet.FACTORY}, 0);
+        // first occurrence is the lowest AID starting with the name
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 06 D2 76 00 00 85 01"));
+        assertTrue(session.getActiveApplet() instanceof DesfireApplet);
+        // next occurrence
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 02 06 D2 76 00 00 85 01"));
+        assertEquals("Other", session.getActiveApplet().getName());
+        // last occurrence
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 01 05 D2 76 00 00 85"));
+        assertEquals("Other", session.getActiveApplet().getName());
+        // previous occurrence
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 03 06 D2 76 00 00 85 01"));
+        assertTrue(session.getActiveApplet() instanceof DesfireApplet);
+    }
+
+    @Test
+    public void testTruncatedFrames() {
+        assertEquals(Iso7816.SW_NO_ERROR, process("00 A4 04 00 07 D2 76 00 00 85 01 00"));
+        assertEquals(Iso7816.SW_WRONG_LENGTH, process("90 3D"));
+        // Lc promises more data than the frame carries
+        assertEquals(Iso7816.SW_WRONG_LENGTH, process("90 3D 00 00 FF 01"));
+        assertEquals(Iso7816.SW_WRONG_LENGTH, process("90 3D 00 00 00 01 00 01"));
+        assertEquals(Util.ADDITIONAL_FRAME, process("90 60 00 00 00"));
+    }
+
+    @Test
+    public void testSessionsShareCard() {
+        DesfireCard card = new DesfireCard();
+        AppletSession first = new AppletSession(new AppletFactory[]{card.getFactory()}, 0);
+        AppletSession second = new AppletSession(new AppletFactory[]{card.getFactory()}, 0);
+        assertEquals(Iso7816.SW_NO_ERROR, process(first, "00 A4 04 00 07 D2 76 00 00 85 01 00"));
+        assertEquals(Iso7816.SW_NO_ERROR, process(second, "00 A4 04 00 07 D2 76 00 00 85 01 00"));
+
+        // an application created by one reader is there for the other
+        assertEquals(Util.OPERATION_OK, process(first, "90 CA 00 00 05 F4 83 40 0F 03 00"));
+        assertEquals(Util.OPERATION_OK, process(second, "90 5A 00 00 03 F4 83 40 00"));
+
+        // each reader continues its own command
+        assertEquals(Util.ADDITIONAL_FRAME, process(first, "90 60 00 00 00"));
+        assertEquals(Util.OPERATION_OK, process(second, "90 5A 00 00 03 00 00 00 00"));
+        assertEquals(Util.ADDITIONAL_FRAME, process(first, "90 AF 00 00 00"));
+    }
+
+    private short process(String apdu) {
+        return process(session, apdu);
+    }
+
+    private static short process(AppletSession session, String apdu) {
+        byte[] command = CommandApdus.parseBytes(apdu).array();
+        byte[] frame = session.process(command, command.length);
+        return (short) (((frame[frame.length - 2] & 0xFF) << 8) | (frame[frame.length - 1] & 0xFF));
+    }
+}
@@ -0,0 +1,89 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Test;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+import java.security.GeneralSecurityException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.fail;
+
+public class CardBuilderTest {
+
+    private static final byte[] AID = {(byte) 0xF4, (byte) 0x83, 0x40};
+
+    @Test
+    public void testBuiltImageAnswersReads() throws GeneralSecurityException {
+        byte[] data = new byte[64];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        byte[] free = CardBuilder.rights(CardBuilder.FREE, CardBuilder.FREE, CardBuilder.FREE, CardBuilder.FREE);
+        MasterFile image = new CardBuilder()
+                .application(AID, (byte) 0x0F, DesfireKey.AES, 3)
+                .keys(new byte[16], new byte[16], new byte[16])
+                .standardFile(1, Util.PLAIN_COMMUNICATION, free, 128).load(data)
+                .backupFile(2, Util.PLAIN_COMMUNICATION, free, 32).load(data, 32, 32)
+                .valueFile(3, Util.PLAIN_COMMUNICATION, free, 0, 1000, 10, (byte) 0)
+                .build();
+
+        DesfireApplet applet = new DesfireApplet(new DesfireCard(image));
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 5A 00 00 03 F4 83 40")).sw);
+        ResponseApdu response = applet.process(CommandApdus.parseApdu("90 8D 00 00 07 01 00 00 00 00 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(data.length, response.length);
+        assertEquals(63, response.data[63]);
+
+        response = applet.process(CommandApdus.parseApdu("90 8D 00 00 07 02 00 00 00 20 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(32, response.data[0]);
+    }
+
+    @Test
+    public void testRejectedDeclarationChangesNothing() {
+        CardBuilder builder = new CardBuilder();
+        CardBuilder.ApplicationBuilder application = builder.application(AID, (byte) 0x0F, DesfireKey.AES, 1)
+                .standardFile(1, Util.PLAIN_COMMUNICATION, CardBuilder.rights(0, 0, 0, 0), 16);
+        try {
+            application.standardFile(1, Util.PLAIN_COMMUNICATION, CardBuilder.rights(0, 0, 0, 0), 16);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // duplicate file
+        }
+        try {
+            builder.application(AID, (byte) 0x0F, DesfireKey.AES, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // duplicate AID
+        }
+        try {
+            application.load(new byte[32], 0, 17);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // larger than the file
+        }
+        try {
+            application.load(new byte[32], 24, 16);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // past the end of the data
+        }
+        try {
+            application.load(new byte[32], -1, 16);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // before the start of the data
+        }
+        try {
+            application.load(new byte[32], Integer.MAX_VALUE, 16);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // the end of the range overflows
+        }
+        MasterFile image = builder.build();
+        assertEquals(2, image.numApp);
+        assertEquals(1, image.getDirectoryFile(1).getNumberFiles());
+        assertFalse(image.getDirectoryFile(1).isValidFileNumber((byte) 2));
+    }
+}
@@ -0,0 +1,65 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Test;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+import java.security.GeneralSecurityException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class CardTemplateTest {
+
+    private static final String LAYOUT = "applications:\n"
+            + "  - aid: F4 83 40\n"
+            + "    keySettings: 0x0F\n"
+            + "    keyType: AES\n"
+            + "    keyCount: 2\n"
+            + "    files:\n"
+            + "      - {number: 1, type: standard, comm: plain, access: [free, free, free, free], size: 16, content: \"0A 0B 0C\"}\n"
+            + "      - {number: 2, type: value, comm: plain, access: [free, free, free, 0], lower: 0, upper: 1000, value: 10}\n";
+
+    @Test
+    public void testImagesAreIndependent() throws GeneralSecurityException {
+        CardTemplate template = CardTemplate.compile(LAYOUT);
+        MasterFile first = template.newImage();
+        MasterFile second = template.newImage();
+
+        DesfireApplet applet = new DesfireApplet(new DesfireCard(first));
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 5A 00 00 03 F4 83 40")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 3D 00 00 08 01 00 00 00 01 00 00 FF")).sw);
+        ResponseApdu response = applet.process(CommandApdus.parseApdu("90 8D 00 00 07 01 00 00 00 03 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals((byte) 0xFF, response.data[0]);
+
+        applet = new DesfireApplet(new DesfireCard(second));
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 5A 00 00 03 F4 83 40")).sw);
+        response = applet.process(CommandApdus.parseApdu("90 8D 00 00 07 01 00 00 00 03 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(0x0A, response.data[0]);
+        assertEquals(0x0C, response.data[2]);
+    }
+
+    @Test
+    public void testCompileNamesTheWrongDeclaration() {
+        try {
+            CardTemplate.compile(LAYOUT + "      - {number: 1, type: backup, comm: plain, access: [0, 0, 0, 0], size: 8}\n");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("applications[0].files[2]"));
+        }
+        try {
+            CardTemplate.compile(LAYOUT + "      - {number: 3, type: journal, comm: plain, access: [0, 0, 0, 0], size: 8}\n");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("applications[0].files[2].type: journal"));
+        }
+        try {
+            CardTemplate.compile(LAYOUT.replace("keyType: AES", "keyType: RSA"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("applications[0].keyType: RSA"));
+        }
+    }
+}
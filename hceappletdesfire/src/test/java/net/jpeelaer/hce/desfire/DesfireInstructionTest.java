@@ -3,9 +3,15 @@ package net.jpeelaer.hce.desfire;
 import android.nfc.Tag;
 import com.google.common.collect.Lists;
 import junit.framework.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.kevinvalk.hce.framework.Applet;
 import org.kevinvalk.hce.framework.HceFramework;
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.IsoException;
+import org.kevinvalk.hce.framework.LoopbackTransport;
+import org.kevinvalk.hce.framework.ResponseCallback;
 import org.kevinvalk.hce.framework.TagWrapper;
 import org.kevinvalk.hce.framework.apdu.CommandApdu;
 import org.kevinvalk.hce.framework.apdu.ResponseApdu;
@@ -17,15 +23,26 @@ import org.mockito.stubbing.Answer;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
@@ -51,7 +68,7 @@ public class DesfireInstructionTest extends AbstractAppletTest {
 
         // add 3 more keys to application
         // change master key .. 6..41 = enciphered new key? .. will need to follow (if authenticated it can be readily decrypted)
-        CommandApdu commandApdu = new CommandApdu(new byte[] {(byte) 0x90, DesFireInstruction.CHANGE_KEY.toByte(), 0, 0, 41, 0});
+        CommandApdu commandApdu = new CommandApdu(Arrays.copyOf(new byte[] {(byte) 0x90, DesFireInstruction.CHANGE_KEY.toByte(), 0, 0, 41}, 5 + 41 + 1));
     }
 
     private void authenticate(DesfireKey desfireKey, DesFireInstruction instruction) throws GeneralSecurityException {
@@ -112,6 +129,262 @@ public class DesfireInstructionTest extends AbstractAppletTest {
         authenticate(DesfireKey.AES, DesFireInstruction.AUTHENTICATE_AES);
     }
 
+    @Test
+    public void testAuthenticateCompletesOffThread() throws InterruptedException {
+        createApplication(Util.AES);
+
+        final ResponseApdu[] response = new ResponseApdu[1];
+        final Thread[] thread = new Thread[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[] command = {(byte) 0x90, DesFireInstruction.AUTHENTICATE_AES.toByte(), 0, 0, 1, 0, 0};
+        applet.process(new CommandApdu(command), new ResponseCallback() {
+            @Override
+            public void onResponse(ResponseApdu responseApdu) {
+                response[0] = responseApdu;
+                thread[0] = Thread.currentThread();
+                done.countDown();
+            }
+        });
+        // the caller may reuse its buffer as soon as process returns
+        Arrays.fill(command, (byte) 0);
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(thread[0] != Thread.currentThread());
+        assertEquals(DesfireKey.AES.randomBlockSize() + 2, response[0].getBuffer().length);
+    }
+
+    @Test
+    public void testCardShutsDownItsCryptoExecutor() throws InterruptedException {
+        createApplication(Util.AES);
+        ExecutorService executor = applet.getCard().getCryptoExecutor();
+        applet.getCard().shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        // a card that is used again starts a new one
+        final CountDownLatch done = new CountDownLatch(1);
+        applet.process(CommandApdus.parseApdu("90 AA 00 00 01 00 00"), new ResponseCallback() {
+            @Override
+            public void onResponse(ResponseApdu responseApdu) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(executor != applet.getCard().getCryptoExecutor());
+        applet.getCard().shutdown();
+    }
+
+    @Test
+    public void testVendorCommand() {
+        assertEquals(Util.ILLEGAL_COMMAND_CODE, applet.process(CommandApdus.parseApdu("90 EE 00 00 00")).sw);
+
+        applet.registerCommand((byte) 0xEE, new CommandHandler() {
+            @Override
+            public ResponseApdu process(DesfireApplet applet, CommandApdu apdu) {
+                return new ResponseApdu(new byte[]{0x42}, Util.OPERATION_OK);
+            }
+        });
+        ResponseApdu response = applet.process(CommandApdus.parseApdu("90 EE 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(0x42, response.data[0]);
+    }
+
+    @Test
+    public void testBatch() {
+        String script = "06 CA F4 83 40 0F 03 "
+                + "04 5A F4 83 40 "
+                + "08 CD 01 00 EE EE 20 00 00 "
+                + "0C 3D 01 00 00 00 04 00 00 DE AD BE EF "
+                + "08 8D 01 00 00 00 04 00 00 "
+                + "08 CD 01 00 EE EE 20 00 00 "
+                + "01 60";
+        CommandApdu batch = CommandApdus.parseApdu("90 FA 00 00 36 " + script + " 00");
+        assertEquals(Util.ILLEGAL_COMMAND_CODE, applet.process(batch).sw);
+
+        applet.getCard().setBatchEnabled(true);
+        ResponseApdu response = applet.process(batch);
+        assertEquals(Util.OPERATION_OK, response.sw);
+        // four empty answers, the read and the duplicate file that ends the script
+        byte[] expected = CommandApdus.parseBytes("00 91 00 00 91 00 00 91 00 00 91 00 04 DE AD BE EF 91 00 00 91 DE").array();
+        assertEquals(expected.length, response.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], response.data[i]);
+        }
+    }
+
+    @Test
+    public void testBatchDropsPendingChain() {
+        applet.getCard().setBatchEnabled(true);
+        // the read of 300 bytes answers its first 255 and asks for an additional frame
+        String script = "06 CA F4 83 40 0F 03 "
+                + "04 5A F4 83 40 "
+                + "08 CD 02 00 EE EE 2C 01 00 "
+                + "08 8D 02 00 00 00 2C 01 00 "
+                + "01 60";
+        ResponseApdu response = applet.process(CommandApdus.parseApdu("90 FA 00 00 20 " + script + " 00"));
+        ByteBuffer answer = ByteBuffer.allocate(3 * 3 + 1 + 255 + 2);
+        answer.put(response.data, 0, response.length);
+        // the answers of the script take two frames of their own
+        assertEquals(Util.ADDITIONAL_FRAME, response.sw);
+        response = applet.process(CommandApdus.parseApdu("90 AF 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        answer.put(response.data, 0, response.length);
+        assertFalse(answer.hasRemaining());
+        assertEquals((byte) 0xFF, answer.get(9));
+        assertEquals((byte) 0xAF, answer.get(answer.position() - 1));
+
+        // nothing is left to continue
+        assertEquals(Util.ILLEGAL_COMMAND_CODE, applet.process(CommandApdus.parseApdu("90 AF 00 00 00")).sw);
+    }
+
+    @Test
+    public void testApplicationIDsFollowChanges() {
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CA 00 00 05 F4 83 40 0F 03 00")).sw);
+        ResponseApdu response = applet.process(CommandApdus.parseApdu("90 6A 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(3, response.length);
+
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CA 00 00 05 F4 83 41 0F 03 00")).sw);
+        response = applet.process(CommandApdus.parseApdu("90 6A 00 00 00"));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(6, response.length);
+        assertEquals(0x41, response.data[5]);
+    }
+
+    @Test
+    public void testReadWriteLoopDoesNotAllocate() throws Exception {
+        AllocationCounter counter = AllocationCounter.forCurrentThread();
+        Assume.assumeTrue(counter != null);
+
+        createApplication(Util.AES);
+        // plain standard data file of 32 bytes, every right needs key 0
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CD 00 00 07 01 00 00 00 20 00 00")).sw);
+        authenticate(DesfireKey.AES, DesFireInstruction.AUTHENTICATE_AES);
+
+        CommandApdu write = CommandApdus.parseApdu("90 3D 00 00 0F 01 08 00 00 08 00 00 01 02 03 04 05 06 07 08 00");
+        CommandApdu read = CommandApdus.parseApdu("90 8D 00 00 07 01 08 00 00 08 00 00 00");
+        int failures = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (applet.process(write).sw != Util.OPERATION_OK) failures++;
+            if (applet.process(read).sw != Util.OPERATION_OK) failures++;
+        }
+        // what reading the counter costs itself
+        long overhead = 0;
+        for (int i = 0; i < 1000; i++) {
+            overhead = -counter.read() + counter.read();
+        }
+        long before = counter.read();
+        for (int i = 0; i < 1000; i++) {
+            if (applet.process(write).sw != Util.OPERATION_OK) failures++;
+            if (applet.process(read).sw != Util.OPERATION_OK) failures++;
+        }
+        long allocated = counter.read() - before - overhead;
+        assertEquals(0, failures);
+        assertEquals(0L, allocated);
+        assertEquals(0x08, applet.process(read).data[7]);
+    }
+
+    @Test
+    public void testStatusAnswersDoNotAllocate() throws Exception {
+        // thrown for every error status, it must not walk the stack
+        assertEquals(0, new IsoException(Util.BOUNDARY_ERROR).getStackTrace().length);
+
+        AllocationCounter counter = AllocationCounter.forCurrentThread();
+        Assume.assumeTrue(counter != null);
+
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CA 00 00 05 F4 83 40 0F 03 00")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 5A 00 00 03 F4 83 40 00")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CD 00 00 07 01 00 EE EE 20 00 00 00")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 C1 00 00 0A 02 00 EE EE 10 00 00 04 00 00 00")).sw);
+
+        CommandApdu clearRecords = CommandApdus.parseApdu("90 EB 00 00 01 02 00");
+        // a data file has no records to clear
+        CommandApdu clearData = CommandApdus.parseApdu("90 EB 00 00 01 01 00");
+        int failures = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (applet.process(clearRecords).sw != Util.OPERATION_OK) failures++;
+            if (applet.process(clearData).sw != Iso7816.SW_FUNC_NOT_SUPPORTED) failures++;
+        }
+        long overhead = 0;
+        for (int i = 0; i < 1000; i++) {
+            overhead = -counter.read() + counter.read();
+        }
+        long before = counter.read();
+        for (int i = 0; i < 1000; i++) {
+            if (applet.process(clearRecords).sw != Util.OPERATION_OK) failures++;
+            if (applet.process(clearData).sw != Iso7816.SW_FUNC_NOT_SUPPORTED) failures++;
+        }
+        long allocated = counter.read() - before - overhead;
+        assertEquals(0, failures);
+        assertEquals(0L, allocated);
+    }
+
+    @Test
+    public void testBatchDoesNotAllocate() throws Exception {
+        AllocationCounter counter = AllocationCounter.forCurrentThread();
+        Assume.assumeTrue(counter != null);
+
+        applet.getCard().setBatchEnabled(true);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CA 00 00 05 F4 83 40 0F 03 00")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 5A 00 00 03 F4 83 40 00")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CD 00 00 07 01 00 EE EE 20 00 00 00")).sw);
+
+        String script = "0C 3D 01 00 00 00 04 00 00 DE AD BE EF "
+                + "08 8D 01 00 00 00 04 00 00";
+        CommandApdu batch = CommandApdus.parseApdu("90 FA 00 00 16 " + script + " 00");
+        int failures = 0;
+        for (int i = 0; i < 20000; i++) {
+            if (applet.process(batch).sw != Util.OPERATION_OK) failures++;
+        }
+        long overhead = 0;
+        for (int i = 0; i < 1000; i++) {
+            overhead = -counter.read() + counter.read();
+        }
+        long before = counter.read();
+        for (int i = 0; i < 1000; i++) {
+            if (applet.process(batch).sw != Util.OPERATION_OK) failures++;
+        }
+        long allocated = counter.read() - before - overhead;
+        assertEquals(0, failures);
+        assertEquals(0L, allocated);
+        assertEquals((byte) 0xEF, applet.process(batch).data[7]);
+    }
+
+    /**
+     * Bytes allocated by one thread, counted by HotSpot only so its bean is reached through reflection
+     */
+    private static class AllocationCounter {
+        private final ThreadMXBean threads;
+        private final Method allocatedBytes;
+        private final Object[] id;
+
+        private AllocationCounter(ThreadMXBean threads, Method allocatedBytes, long id) {
+            this.threads = threads;
+            this.allocatedBytes = allocatedBytes;
+            this.id = new Object[]{id};
+        }
+
+        /**
+         * @return null when the VM does not count allocations
+         */
+        static AllocationCounter forCurrentThread() throws Exception {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            Class<?> type;
+            try {
+                type = Class.forName("com.sun.management.ThreadMXBean");
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+            if (!type.isInstance(threads) || !(Boolean) type.getMethod("isThreadAllocatedMemorySupported").invoke(threads)) {
+                return null;
+            }
+            type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, true);
+            return new AllocationCounter(threads, type.getMethod("getThreadAllocatedBytes", long.class), Thread.currentThread().getId());
+        }
+
+        long read() throws Exception {
+            return (Long) allocatedBytes.invoke(threads, id);
+        }
+    }
 
     @Test
     public void testGetDesfireVersion() throws IOException, GeneralSecurityException {
@@ -128,8 +401,203 @@ public class DesfireInstructionTest extends AbstractAppletTest {
             Assert.fail();
         }
         framework.handleTag(tagWrapper);
-        // send out version request..
-        verify(tagWrapper, times(5)).transceive(Mockito.<byte[]>any());
+        // send out version request.. the last command is too short for an APDU and gets 6700
+        verify(tagWrapper, timeout(1000).times(6)).transceive(Mockito.<byte[]>any());
+    }
+
+    @Test
+    public void testGetDesfireVersionOverLoopback() throws Exception {
+        final HceFramework framework = new HceFramework();
+        framework.register(applet);
+        final LoopbackTransport transport = new LoopbackTransport();
+        Thread card = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                framework.handleTag(transport);
+            }
+        });
+        card.start();
+
+        // the terminal talks to the framework as the reader would
+        for (int i = 0; i < commands.size() - 1; i++) {
+            assertTrue(Arrays.equals(responses.get(i + 1), transport.getTerminal().transceive(commands.get(i))));
+        }
+        transport.close();
+        card.join(1000);
+        framework.shutdown();
+    }
+
+    @Test
+    public void testQuietTerminalExpires() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final HceFramework framework = new HceFramework(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (event.getNewValue() instanceof TimeoutException) expired.countDown();
+            }
+        });
+        framework.register(applet);
+        framework.getWatchdog().setTerminalBudget(100);
+        final LoopbackTransport transport = new LoopbackTransport();
+        Thread card = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                framework.handleTag(transport);
+            }
+        });
+        card.start();
+
+        // answer the SELECT, then never send another command
+        assertTrue(Arrays.equals(responses.get(1), transport.getTerminal().transceive(commands.get(0))));
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+        assertEquals(1, framework.getWatchdog().getOverruns());
+        card.join(1000);
+        framework.shutdown();
+    }
+
+    @Test
+    public void testOverrunAppletIsNotShared() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        // hangs on INS 01 until released, counts every call made while another one runs
+        Applet slow = new Applet() {
+            @Override
+            public ResponseApdu process(CommandApdu apdu) {
+                if (inside.incrementAndGet() > 1) overlaps.incrementAndGet();
+                try {
+                    if (apdu.ins == 0x01) release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inside.decrementAndGet();
+                }
+                return new ResponseApdu(Iso7816.SW_NO_ERROR);
+            }
+
+            @Override
+            public void select() {
+                if (inside.get() > 0) overlaps.incrementAndGet();
+            }
+
+            @Override
+            public void deselect() {
+                if (inside.get() > 0) overlaps.incrementAndGet();
+            }
+
+            @Override
+            public String getName() {
+                return "Slow";
+            }
+
+            @Override
+            public byte[] getAid() {
+                return DesfireApplet.APPLET_AID;
+            }
+        };
+        final HceFramework framework = new HceFramework(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (event.getNewValue() instanceof TimeoutException) expired.countDown();
+            }
+        });
+        framework.register(slow);
+        framework.getWatchdog().setCommandBudget(100);
+
+        LoopbackTransport first = tap(framework);
+        assertTrue(Arrays.equals(ResponseApdus.OK, first.getTerminal().transceive(CommandApdus.SELECT)));
+        try {
+            first.getTerminal().transceive(CommandApdus.parseBytes("90 01 00 00 00").array());
+        } catch (IOException e) {
+            // the watchdog closed the link
+        }
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+
+        // the next tap is refused while the applet is still busy with the last one
+        LoopbackTransport second = tap(framework);
+        assertEquals(Iso7816.SW_CONDITIONS_NOT_SATISFIED, status(second.getTerminal().transceive(CommandApdus.SELECT)));
+
+        release.countDown();
+        short status = 0;
+        long deadline = System.currentTimeMillis() + 2000;
+        while (status != Iso7816.SW_NO_ERROR && System.currentTimeMillis() < deadline) {
+            status = status(second.getTerminal().transceive(CommandApdus.SELECT));
+        }
+        assertEquals(Iso7816.SW_NO_ERROR, status);
+        assertEquals(0, overlaps.get());
+        second.close();
+        framework.shutdown();
+    }
+
+    @Test
+    public void testReturningStalledWorkerKeepsNewDeadline() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        // hangs on INS 01 until released
+        Applet slow = new Applet() {
+            @Override
+            public ResponseApdu process(CommandApdu apdu) {
+                try {
+                    if (apdu.ins == 0x01) release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new ResponseApdu(Iso7816.SW_NO_ERROR);
+            }
+
+            @Override
+            public String getName() {
+                return "Slow";
+            }
+
+            @Override
+            public byte[] getAid() {
+                return DesfireApplet.APPLET_AID;
+            }
+        };
+        final HceFramework framework = new HceFramework(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (event.getNewValue() instanceof TimeoutException) expired.countDown();
+            }
+        });
+        framework.register(slow);
+        framework.getWatchdog().setCommandBudget(100);
+        framework.getWatchdog().setTerminalBudget(500);
+
+        LoopbackTransport first = tap(framework);
+        assertTrue(Arrays.equals(ResponseApdus.OK, first.getTerminal().transceive(CommandApdus.SELECT)));
+        try {
+            first.getTerminal().transceive(CommandApdus.parseBytes("90 01 00 00 00").array());
+        } catch (IOException e) {
+            // the watchdog closed the link
+        }
+
+        // the new worker waits on a terminal that goes quiet after its first command
+        LoopbackTransport second = tap(framework);
+        assertEquals(Iso7816.SW_CONDITIONS_NOT_SATISFIED, status(second.getTerminal().transceive(CommandApdus.SELECT)));
+
+        // the stalled worker leaving the applet must not disarm the deadline of the new one
+        release.countDown();
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+        assertEquals(2, framework.getWatchdog().getOverruns());
+        framework.shutdown();
+    }
+
+    private static LoopbackTransport tap(final HceFramework framework) {
+        final LoopbackTransport transport = new LoopbackTransport();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                framework.handleTag(transport);
+            }
+        }).start();
+        return transport;
+    }
+
+    private static short status(byte[] frame) {
+        return (short) (((frame[frame.length - 2] & 0xFF) << 8) | (frame[frame.length - 1] & 0xFF));
     }
 
     private Answer<byte[]> commandApdu() {
@@ -0,0 +1,153 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ExtendedLengthTest extends AbstractAppletTest {
+
+    private static final int FILE_SIZE = 1000;
+
+    @Before
+    public void createDataFile() {
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CA 00 00 05 F4 83 40 0F 03 00")).sw);
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 5A 00 00 03 F4 83 40 00")).sw);
+        // free access plain standard data file of 1000 bytes
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 CD 00 00 07 01 00 EE EE E8 03 00 00")).sw);
+    }
+
+    @Test
+    public void testExtendedParsing() {
+        CommandApdu commandApdu = extendedApdu(DesFireInstruction.WRITE_DATA.toByte(), new byte[FILE_SIZE]);
+        assertTrue(commandApdu.isExtended());
+        assertEquals(FILE_SIZE, commandApdu.getLc());
+        assertEquals(7, commandApdu.getDataOffset());
+        assertEquals(65536, commandApdu.getNe());
+
+        CommandApdu shortApdu = CommandApdus.parseApdu("90 60 00 00 00");
+        assertEquals(256, shortApdu.getNe());
+    }
+
+    @Test
+    public void testWriteAndReadInOneFrame() {
+        byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer write = ByteBuffer.allocate(7 + data.length);
+        write.put(CommandApdus.parseBytes("01 00 00 00 E8 03 00").array()).put(data);
+        assertEquals(Util.OPERATION_OK, applet.process(extendedApdu(DesFireInstruction.WRITE_DATA.toByte(), write.array())).sw);
+
+        applet.setMaxResponseLength(4096);
+        ResponseApdu response = applet.process(extendedApdu(DesFireInstruction.READ_DATA.toByte(), CommandApdus.parseBytes("01 00 00 00 E8 03 00").array()));
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(FILE_SIZE, response.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], response.data[i]);
+        }
+    }
+
+    @Test
+    public void testShortReaderGetsContinuations() {
+        applet.setMaxResponseLength(256);
+        ResponseApdu response = applet.process(extendedApdu(DesFireInstruction.READ_DATA.toByte(), CommandApdus.parseBytes("01 00 00 00 E8 03 00").array()));
+        int frames = 1;
+        int total = response.length;
+        while (response.sw == Util.ADDITIONAL_FRAME) {
+            response = applet.process(CommandApdus.parseApdu("90 AF 00 00 00"));
+            total += response.length;
+            frames++;
+        }
+        assertEquals(Util.OPERATION_OK, response.sw);
+        assertEquals(FILE_SIZE, total);
+        assertEquals(4, frames);
+    }
+
+    @Test
+    public void testChainedWriteAtOffset() {
+        byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + 1);
+        }
+        // 52 bytes in the first frame, 59 in every continuation
+        ByteBuffer first = ByteBuffer.allocate(7 + 52);
+        first.put(CommandApdus.parseBytes("01 64 00 00 2C 01 00").array()).put(data, 0, 52);
+        ResponseApdu response = applet.process(shortApdu(DesFireInstruction.WRITE_DATA.toByte(), first.array()));
+        for (int sent = 52; sent < data.length; sent += 59) {
+            assertEquals(Util.ADDITIONAL_FRAME, response.sw);
+            byte[] next = new byte[Math.min(59, data.length - sent)];
+            System.arraycopy(data, sent, next, 0, next.length);
+            response = applet.process(shortApdu(DesFireInstruction.CONTINUE.toByte(), next));
+        }
+        assertEquals(Util.OPERATION_OK, response.sw);
+
+        applet.setMaxResponseLength(4096);
+        response = applet.process(extendedApdu(DesFireInstruction.READ_DATA.toByte(), CommandApdus.parseBytes("01 00 00 00 90 01 00").array()));
+        assertEquals(400, response.length);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, response.data[i]);
+        }
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], response.data[100 + i]);
+        }
+    }
+
+    @Test
+    public void testOutOfBoundsRead() {
+        // past the end of the file
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 8D 00 00 07 01 E0 03 00 10 00 00 00")).sw);
+        // lengths from 0x8000 on do not wrap to negative
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 8D 00 00 07 01 00 00 00 00 80 00 00")).sw);
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 8D 00 00 07 01 00 00 00 FF FF 00 00")).sw);
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 3D 00 00 08 01 00 80 00 01 00 00 FF 00")).sw);
+    }
+
+    @Test
+    public void testOutOfBoundsRecords() {
+        // linear record file of four records of 16 bytes
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu("90 C1 00 00 0A 02 00 EE EE 10 00 00 04 00 00 00")).sw);
+        // the upper offset and length bytes count
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 3B 00 00 0B 02 00 00 01 04 00 00 DE AD BE EF 00")).sw);
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 3B 00 00 0B 02 00 00 00 04 00 01 DE AD BE EF 00")).sw);
+        // past the end of the record
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 3B 00 00 0B 02 0E 00 00 04 00 00 DE AD BE EF 00")).sw);
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 BB 00 00 07 02 00 00 01 01 00 00 00")).sw);
+        assertEquals(Util.BOUNDARY_ERROR, applet.process(CommandApdus.parseApdu("90 BB 00 00 07 02 00 00 00 05 00 00 00")).sw);
+    }
+
+    @Test
+    public void testFrameInLargerBuffer() {
+        byte[] frame = CommandApdus.parseApdu("90 60 00 00 00").getBuffer();
+        byte[] buffer = new byte[261];
+        Arrays.fill(buffer, (byte) 0xEE);
+        System.arraycopy(frame, 0, buffer, 0, frame.length);
+
+        CommandApdu apdu = new CommandApdu(buffer, frame.length);
+        // the buffer is handed out as is, the frame ends at getLength()
+        assertTrue(apdu.getBuffer() == buffer);
+        assertEquals(frame.length, apdu.getLength());
+        assertEquals(Util.ADDITIONAL_FRAME, applet.process(apdu).sw);
+    }
+
+    private static CommandApdu shortApdu(byte ins, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + data.length + 1);
+        buffer.put((byte) 0x90).put(ins).put((byte) 0x00).put((byte) 0x00);
+        buffer.put((byte) data.length).put(data).put((byte) 0x00);
+        return new CommandApdu(buffer.array());
+    }
+
+    private static CommandApdu extendedApdu(byte ins, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(7 + data.length + 2);
+        buffer.put((byte) 0x90).put(ins).put((byte) 0x00).put((byte) 0x00);
+        buffer.put((byte) 0x00).putShort((short) data.length).put(data);
+        buffer.putShort((short) 0x0000);
+        return new CommandApdu(buffer.array());
+    }
+}
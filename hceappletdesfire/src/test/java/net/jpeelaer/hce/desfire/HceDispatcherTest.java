@@ -0,0 +1,253 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kevinvalk.hce.framework.Applet;
+import org.kevinvalk.hce.framework.AppletFactory;
+import org.kevinvalk.hce.framework.AppletSession;
+import org.kevinvalk.hce.framework.HceDispatcher;
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.NonBlockingTransport;
+import org.kevinvalk.hce.framework.ResponseCallback;
+import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Serves in-memory terminals from one dispatcher thread
+ */
+public class HceDispatcherTest {
+
+    private static final long TIMEOUT = 2000;
+    private static final String SELECT = "00 A4 04 00 07 D2 76 00 00 85 01 01";
+
+    // answers a command with its own data and 9000, or parks it until the test completes it
+    private final LinkedBlockingQueue<Pending> parked = new LinkedBlockingQueue<Pending>();
+    private final AppletFactory echo = new AppletFactory() {
+        @Override
+        public byte[] getAid() {
+            return CommandApdus.parseBytes("D2 76 00 00 85 01 01").array();
+        }
+
+        @Override
+        public Applet createApplet() {
+            return new Applet() {
+                @Override
+                public ResponseApdu process(CommandApdu apdu) {
+                    return new ResponseApdu(Arrays.copyOfRange(apdu.getBuffer(), apdu.getDataOffset(), apdu.getDataOffset() + apdu.getLc()), Iso7816.SW_NO_ERROR);
+                }
+
+                @Override
+                public void process(CommandApdu apdu, ResponseCallback callback) {
+                    if (apdu.ins == 0x01) {
+                        // the buffer is only ours until we return
+                        parked.offer(new Pending(process(apdu), callback));
+                    } else {
+                        super.process(apdu, callback);
+                    }
+                }
+
+                @Override
+                public String getName() {
+                    return "Echo";
+                }
+
+                @Override
+                public byte[] getAid() {
+                    return echo.getAid();
+                }
+            };
+        }
+    };
+
+    private final HceDispatcher dispatcher = new HceDispatcher();
+
+    @Before
+    public void startDispatcher() {
+        dispatcher.start();
+    }
+
+    @After
+    public void stopDispatcher() {
+        dispatcher.stop();
+    }
+
+    @Test
+    public void testAttachServesQueuedFrames() throws Exception {
+        MemoryTransport transport = new MemoryTransport();
+        // arrives before anyone listens
+        transport.deliver(SELECT);
+        attach(transport);
+        assertEquals(1, dispatcher.getSessionCount());
+        assertEquals("90 00", transport.next());
+
+        transport.deliver("00 02 00 00 02 0A 0B");
+        assertEquals("0A 0B 90 00", transport.next());
+    }
+
+    @Test
+    public void testDrainsSeveralSessions() throws Exception {
+        MemoryTransport[] transports = new MemoryTransport[3];
+        for (int i = 0; i < transports.length; i++) {
+            transports[i] = new MemoryTransport();
+            attach(transports[i]);
+        }
+        assertEquals(transports.length, dispatcher.getSessionCount());
+
+        for (MemoryTransport transport : transports) {
+            transport.deliver(SELECT);
+        }
+        for (int i = 0; i < transports.length; i++) {
+            transports[i].deliver(String.format("00 02 00 00 01 %02X", i));
+            transports[i].deliver(String.format("00 02 00 00 02 %02X %02X", i, i));
+        }
+        for (int i = 0; i < transports.length; i++) {
+            assertEquals("90 00", transports[i].next());
+            assertEquals(String.format("%02X 90 00", i), transports[i].next());
+            assertEquals(String.format("%02X %02X 90 00", i, i), transports[i].next());
+        }
+    }
+
+    @Test
+    public void testAsyncCompletion() throws Exception {
+        MemoryTransport slow = new MemoryTransport();
+        MemoryTransport fast = new MemoryTransport();
+        attach(slow);
+        attach(fast);
+        slow.deliver(SELECT);
+        assertEquals("90 00", slow.next());
+
+        // the next command waits until the parked one completed
+        slow.deliver("00 01 00 00 01 AA");
+        slow.deliver("00 02 00 00 01 BB");
+        Pending pending = parked.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(pending);
+
+        // the other terminal is served meanwhile, and does not overwrite the parked command
+        fast.deliver(SELECT);
+        fast.deliver("00 02 00 00 01 CC");
+        assertEquals("90 00", fast.next());
+        assertEquals("CC 90 00", fast.next());
+        assertNull(slow.responses.poll());
+
+        pending.complete();
+        assertEquals("AA 90 00", slow.next());
+        assertEquals("BB 90 00", slow.next());
+    }
+
+    @Test
+    public void testDetachOnClose() throws Exception {
+        MemoryTransport first = new MemoryTransport();
+        MemoryTransport second = new MemoryTransport();
+        attach(first);
+        attach(second);
+        assertEquals(2, dispatcher.getSessionCount());
+
+        first.close();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (dispatcher.getSessionCount() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, dispatcher.getSessionCount());
+        assertNull(first.listener);
+
+        second.deliver(SELECT);
+        assertEquals("90 00", second.next());
+    }
+
+    private void attach(MemoryTransport transport) {
+        dispatcher.attach(transport, new AppletSession(new AppletFactory[]{echo}, 0));
+    }
+
+    private static class Pending {
+        final ResponseApdu response;
+        final ResponseCallback callback;
+
+        Pending(ResponseApdu response, ResponseCallback callback) {
+            this.response = response;
+            this.callback = callback;
+        }
+
+        void complete() throws InterruptedException {
+            // from a thread other than the dispatcher, as a real applet would
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResponse(response);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+    }
+
+    private static class MemoryTransport implements NonBlockingTransport {
+        final ConcurrentLinkedQueue<byte[]> commands = new ConcurrentLinkedQueue<byte[]>();
+        final LinkedBlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+        volatile Runnable listener;
+        volatile boolean closed;
+
+        void deliver(String apdu) {
+            commands.offer(CommandApdus.parseBytes(apdu).array());
+            ready();
+        }
+
+        String next() throws InterruptedException {
+            String response = responses.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue("no response", response != null);
+            return response;
+        }
+
+        private void ready() {
+            Runnable listener = this.listener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        @Override
+        public int poll(byte[] buffer) {
+            byte[] frame = commands.poll();
+            if (frame == null) {
+                return closed ? -1 : 0;
+            }
+            System.arraycopy(frame, 0, buffer, 0, frame.length);
+            return frame.length;
+        }
+
+        @Override
+        public void send(byte[] frame, int length) {
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                hex.append(i == 0 ? "" : " ").append(String.format("%02X", frame[i]));
+            }
+            responses.offer(hex.toString());
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            ready();
+        }
+
+        @Override
+        public void setReadyListener(Runnable listener) {
+            this.listener = listener;
+        }
+    }
+}
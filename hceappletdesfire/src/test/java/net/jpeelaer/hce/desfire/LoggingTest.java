@@ -0,0 +1,102 @@
+package net.jpeelaer.hce.desfire;
+
+import android.util.Log;
+import org.junit.After;
+import org.junit.Test;
+import org.kevinvalk.hce.framework.Util;
+
+import java.util.Formattable;
+import java.util.Formatter;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * The logging facade of the framework, what a message reads is seen by the last argument formatted into it
+ */
+public class LoggingTest {
+
+    @After
+    public void resetLevel() {
+        Util.setLogLevel(Log.INFO);
+    }
+
+    @Test
+    public void testInfoSuppressesDebug() {
+        Util.setLogLevel(Log.INFO);
+        assertFalse(Util.isLoggable(Log.DEBUG));
+        assertTrue(Util.isLoggable(Log.WARN));
+
+        Probe probe = new Probe();
+        Util.d("Test", "%s", probe);
+        Util.d("Test", "%s %s", "a", probe);
+        Util.d("Test", "%s %s %s", "a", "b", probe);
+        // nothing is formatted for a message that is not logged
+        assertNull(probe.prefix);
+
+        Util.w("Test", "%s", probe);
+        assertEquals("", probe.prefix);
+    }
+
+    @Test
+    public void testFixedArityOverloads() {
+        Util.setLogLevel(Log.DEBUG);
+        Probe probe = new Probe();
+
+        Util.d("Test", "value %s", probe);
+        assertEquals("value ", probe.prefix);
+        Util.d("Test", "INS %02X took %s", (byte) 0x5A, probe);
+        assertEquals("INS 5A took ", probe.prefix);
+        Util.d("Test", "%s %d %s", "frame", 42, probe);
+        assertEquals("frame 42 ", probe.prefix);
+
+        Util.w("Test", "worker %s", probe);
+        assertEquals("worker ", probe.prefix);
+        Util.w("Test", "`%s` at %s", "closed", probe);
+        assertEquals("`closed` at ", probe.prefix);
+    }
+
+    @Test
+    public void testHexMatchesOldFormat() {
+        byte[] buffer = new byte[256];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) i;
+        }
+        for (int offset = 0; offset < buffer.length; offset += 51) {
+            for (int length = 0; offset + length <= buffer.length; length += 17) {
+                String expected = oldToHex(buffer, offset, length);
+                assertEquals(expected, Util.toHex(buffer, offset, length));
+                assertEquals(expected, Util.appendHex(new StringBuilder(), buffer, offset, length).toString());
+            }
+        }
+        assertEquals(oldToHex(buffer, 0, buffer.length).replace(" ", ""), Util.toUnspacedHex(buffer));
+
+        // dump formats with appendHex, it must take any range at either level
+        Util.dump("Test", "->", buffer, 250, 6);
+        Util.setLogLevel(Log.DEBUG);
+        Util.dump("Test", "->", buffer, 250, 6);
+        Util.dump("Test", "->", buffer, 0, 0);
+    }
+
+    // What Util.toHex produced before it stopped going through String.format
+    private static String oldToHex(byte[] buffer, int offset, int length) {
+        String hex = "";
+        for (int i = offset; i < offset + length; i++)
+            hex = hex.concat(String.format("%02X ", buffer[i]));
+        return hex.trim();
+    }
+
+    /**
+     * Records the message formatted so far when it is formatted, null until then
+     */
+    private static class Probe implements Formattable {
+        String prefix;
+
+        @Override
+        public void formatTo(Formatter formatter, int flags, int width, int precision) {
+            prefix = formatter.out().toString();
+        }
+    }
+}
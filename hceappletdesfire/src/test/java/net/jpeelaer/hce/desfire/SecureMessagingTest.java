@@ -0,0 +1,161 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Test;
+import org.kevinvalk.hce.framework.Do87;
+import org.kevinvalk.hce.framework.Do8e;
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.IsoException;
+import org.kevinvalk.hce.framework.TlvReader;
+import org.kevinvalk.hce.framework.TlvWriter;
+import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+import org.kevinvalk.hce.framework.apdu.SecureApdu;
+import org.kevinvalk.hce.framework.apdu.SecureMessaging;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class SecureMessagingTest extends AbstractAppletTest {
+
+    private static final Key TDES_KEY = new SecretKeySpec(CommandApdus.parseBytes("00 11 22 33 44 55 66 77 88 99 AA BB CC DD EE FF").array(), "DESede");
+    private static final Key AES_KEY = new SecretKeySpec(CommandApdus.parseBytes("00 11 22 33 44 55 66 77 88 99 AA BB CC DD EE FF").array(), "AES");
+
+    @Test
+    public void testProtectedWithoutSession() {
+        ResponseApdu response = applet.process(CommandApdus.parseApdu("9C 60 00 00 00"));
+        assertEquals(Iso7816.SW_SECURE_MESSAGING_NOT_SUPPORTED, response.sw);
+    }
+
+    @Test
+    public void testTdesRoundTrip() {
+        roundTrip(TDES_KEY);
+    }
+
+    @Test
+    public void testAesRoundTrip() {
+        roundTrip(AES_KEY);
+    }
+
+    @Test
+    public void testTamperedMac() {
+        SecureMessaging terminal = new SecureMessaging(TDES_KEY, TDES_KEY);
+        SecureApdu card = new SecureApdu(new SecureMessaging(TDES_KEY, TDES_KEY));
+        byte[] command = protect(terminal, CommandApdus.parseBytes("0C 3D 00 00").array(), new byte[]{1, 2, 3});
+        command[command.length - 2] ^= 0x01;
+        try {
+            card.unwrap(new CommandApdu(command));
+            fail();
+        } catch (IsoException e) {
+            assertEquals(Iso7816.SW_SM_DATA_INCORRECT, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testSessionsDoNotShareMacs() {
+        byte[] rndA = CommandApdus.parseBytes("00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F").array();
+        byte[] rndB = CommandApdus.parseBytes("F0 E1 D2 C3 B4 A5 96 87 78 69 5A 4B 3C 2D 1E 0F").array();
+        byte[] otherRndB = CommandApdus.parseBytes("F0 E1 D2 C3 B4 A5 96 87 78 69 5A 4B 3C 2D 1E 1F").array();
+        assertFalse(Arrays.equals(SecureMessaging.deriveKey(AES_KEY, SecureMessaging.KDF_ENC).getEncoded(),
+                SecureMessaging.deriveKey(AES_KEY, SecureMessaging.KDF_MAC).getEncoded()));
+
+        byte[] header = CommandApdus.parseBytes("0C 3D 00 00").array();
+        byte[] data = new byte[]{1, 2, 3};
+        SecureApdu card = new SecureApdu(SecureMessaging.forSession(AES_KEY, rndB, rndA));
+        card.unwrap(new CommandApdu(protect(SecureMessaging.forSession(AES_KEY, rndB, rndA), header, data)));
+
+        // the same command replayed into a session with other randoms
+        SecureApdu replayed = new SecureApdu(SecureMessaging.forSession(AES_KEY, otherRndB, rndA));
+        try {
+            replayed.unwrap(new CommandApdu(protect(SecureMessaging.forSession(AES_KEY, rndB, rndA), header, data)));
+            fail();
+        } catch (IsoException e) {
+            assertEquals(Iso7816.SW_SM_DATA_INCORRECT, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testMaxPlainLength() {
+        for (Key key : new Key[]{TDES_KEY, AES_KEY}) {
+            SecureApdu card = new SecureApdu(new SecureMessaging(key, key));
+            for (int max : new int[]{64, 256, 1000}) {
+                int plain = card.getMaxPlainLength(max);
+                assertTrue(card.wrap(new ResponseApdu(new byte[plain], Iso7816.SW_NO_ERROR)).length <= max);
+                assertTrue(card.wrap(new ResponseApdu(new byte[plain + 1], Iso7816.SW_NO_ERROR)).length > max);
+            }
+        }
+    }
+
+    private void roundTrip(Key key) {
+        SecureMessaging terminal = new SecureMessaging(key, key);
+        SecureApdu card = new SecureApdu(new SecureMessaging(key, key));
+        byte[] data = CommandApdus.parseBytes("01 00 00 00 05 00 00 AA BB CC DD EE").array();
+
+        for (int i = 0; i < 3; i++) {
+            CommandApdu plain = card.unwrap(new CommandApdu(protect(terminal, CommandApdus.parseBytes("0C 3D 00 00").array(), data)));
+            assertEquals((byte) 0x00, plain.cla);
+            assertEquals((byte) 0x3D, plain.ins);
+            assertEquals(data.length, plain.getLc());
+            assertTrue(Arrays.equals(data, plain.getData()));
+
+            byte[] answer = CommandApdus.parseBytes("10 20 30").array();
+            ResponseApdu response = card.wrap(new ResponseApdu(answer, Iso7816.SW_NO_ERROR));
+            assertEquals(Iso7816.SW_NO_ERROR, response.sw);
+            assertTrue(Arrays.equals(answer, unprotect(terminal, response)));
+        }
+    }
+
+    private static byte[] protect(SecureMessaging terminal, byte[] header, byte[] data) {
+        terminal.increment();
+        byte[] buffer = new byte[256];
+        System.arraycopy(header, 0, buffer, 0, 4);
+        TlvWriter writer = new TlvWriter().wrap(buffer, Iso7816.OFFSET_CDATA);
+        int offset = Do87.begin(writer, Do87.Type.HAS_PADDING, terminal.getPaddedLength(data.length));
+        Do87.end(writer, terminal.encrypt(data, 0, data.length, buffer, offset));
+
+        terminal.startMac();
+        terminal.updateMac(buffer, 0, 4);
+        terminal.padMac();
+        terminal.updateMac(buffer, Iso7816.OFFSET_CDATA, writer.getPosition() - Iso7816.OFFSET_CDATA);
+        terminal.padMac();
+        byte[] mac = new byte[SecureMessaging.MAC_LENGTH];
+        terminal.finishMac(mac, 0);
+        Do8e.write(writer, mac, 0, mac.length);
+
+        buffer[Iso7816.OFFSET_LC] = (byte) (writer.getPosition() - Iso7816.OFFSET_CDATA);
+        buffer[writer.getPosition()] = 0x00;
+        return Arrays.copyOf(buffer, writer.getPosition() + 1);
+    }
+
+    private static byte[] unprotect(SecureMessaging terminal, ResponseApdu response) {
+        TlvReader reader = new TlvReader().wrap(response.data, 0, response.length);
+        Do87 do87 = null;
+        int macEnd = 0;
+        byte[] mac = null;
+        while (reader.next()) {
+            if (reader.getTag() == 0x87) do87 = new Do87().wrap(reader);
+            if (reader.getTag() == 0x99) assertEquals((byte) 0x90, response.data[reader.getValueOffset()]);
+            if (reader.getTag() == 0x8E) {
+                macEnd = reader.getTagOffset();
+                mac = new Do8e().wrap(reader).getChecksum();
+            }
+        }
+
+        terminal.increment();
+        terminal.startMac();
+        terminal.updateMac(response.data, 0, macEnd);
+        terminal.padMac();
+        byte[] expected = new byte[SecureMessaging.MAC_LENGTH];
+        terminal.finishMac(expected, 0);
+        assertTrue(Arrays.equals(expected, mac));
+
+        byte[] plain = new byte[do87.getDataLength()];
+        int length = terminal.decrypt(do87.getBuffer(), do87.getDataOffset(), do87.getDataLength(), plain, 0);
+        return Arrays.copyOf(plain, length);
+    }
+}
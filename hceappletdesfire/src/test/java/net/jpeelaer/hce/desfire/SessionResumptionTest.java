@@ -0,0 +1,60 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class SessionResumptionTest extends AbstractAppletTest {
+
+    // only allowed with an application selected
+    private static final String CREATE_FILE = "90 CD 00 00 07 01 00 EE EE 10 00 00";
+
+    @Before
+    public void selectApplication() {
+        applet.select();
+        createApplication(Util.AES);
+    }
+
+    @Test
+    public void testResumeWithinWindow() {
+        applet.setResumptionWindow(60000);
+        applet.deselect();
+
+        assertTrue(applet.resume());
+        // the application selected before the field was lost is still selected
+        assertEquals(Util.OPERATION_OK, applet.process(CommandApdus.parseApdu(CREATE_FILE)).sw);
+    }
+
+    @Test
+    public void testReselectWithinWindowStartsOver() {
+        applet.setResumptionWindow(60000);
+        applet.deselect();
+        applet.select();
+
+        // a SELECT starts over, authentication and the selected application are gone
+        assertEquals(Util.PERMISSION_DENIED, applet.process(CommandApdus.parseApdu(CREATE_FILE)).sw);
+    }
+
+    @Test
+    public void testWindowExpired() throws InterruptedException {
+        applet.setResumptionWindow(1);
+        applet.deselect();
+        Thread.sleep(5);
+
+        assertFalse(applet.resume());
+        applet.select();
+        assertEquals(Util.PERMISSION_DENIED, applet.process(CommandApdus.parseApdu(CREATE_FILE)).sw);
+    }
+
+    @Test
+    public void testResumptionOff() {
+        applet.deselect();
+
+        assertFalse(applet.resume());
+        applet.select();
+        assertEquals(Util.PERMISSION_DENIED, applet.process(CommandApdus.parseApdu(CREATE_FILE)).sw);
+    }
+}
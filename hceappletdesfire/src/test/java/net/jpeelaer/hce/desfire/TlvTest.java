@@ -0,0 +1,105 @@
+package net.jpeelaer.hce.desfire;
+
+import org.junit.Test;
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.IsoException;
+import org.kevinvalk.hce.framework.TlvReader;
+import org.kevinvalk.hce.framework.TlvWriter;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class TlvTest {
+
+    @Test
+    public void testLengthForms() {
+        int[] lengths = {0x7F, 0x80, 0xFF, 0x100, 0xFFFF, 0x10000};
+        int[] lengthSizes = {1, 2, 2, 3, 3, 4};
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] value = new byte[lengths[i]];
+            value[value.length - 1] = 0x5A;
+            byte[] buffer = new byte[value.length + 5];
+            TlvWriter writer = new TlvWriter().wrap(buffer, 0);
+            writer.put(0x87, value, 0, value.length);
+            assertEquals(1 + lengthSizes[i] + value.length, writer.getPosition());
+            if (lengthSizes[i] > 1) assertEquals(0x80 | (lengthSizes[i] - 1), buffer[1] & 0xFF);
+
+            TlvReader reader = new TlvReader().wrap(buffer, 0, writer.getPosition());
+            assertTrue(reader.next());
+            assertEquals(0x87, reader.getTag());
+            assertEquals(1 + lengthSizes[i], reader.getValueOffset());
+            assertEquals(value.length, reader.getValueLength());
+            assertEquals(0x5A, buffer[reader.getValueOffset() + reader.getValueLength() - 1]);
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void testPaddingSkipped() {
+        byte[] buffer = CommandApdus.parseBytes("00 FF 87 01 AA 00 00 5F 1F 02 01 02 FF FF 00").array();
+        TlvReader reader = new TlvReader().wrap(buffer, 0, buffer.length);
+        assertTrue(reader.next());
+        assertEquals(0x87, reader.getTag());
+        assertEquals(2, reader.getTagOffset());
+        assertEquals((byte) 0xAA, buffer[reader.getValueOffset()]);
+        assertTrue(reader.next());
+        assertEquals(0x5F1F, reader.getTag());
+        assertEquals(2, reader.getValueLength());
+        assertEquals(5, reader.getTlvLength());
+        assertFalse(reader.next());
+        assertFalse(reader.hasRemaining());
+    }
+
+    @Test
+    public void testMalformed() {
+        // four length bytes, indefinite length, value past the range, no length
+        String[] malformed = {"87 84 00 00 00 01 AA", "87 80 AA 00 00", "87 82 01 00 AA", "87"};
+        for (String tlv : malformed) {
+            byte[] buffer = CommandApdus.parseBytes(tlv).array();
+            try {
+                new TlvReader().wrap(buffer, 0, buffer.length).next();
+                fail(tlv);
+            } catch (IsoException e) {
+                assertEquals(Iso7816.SW_WRONG_DATA, e.getErrorCode());
+            }
+        }
+    }
+
+    @Test
+    public void testEndShiftsValueDown() {
+        byte[] buffer = new byte[16];
+        TlvWriter writer = new TlvWriter().wrap(buffer, 1);
+        // room for an 82 xx xx length, the value turns out short
+        int valueOffset = writer.begin(0x97, 300);
+        assertEquals(5, valueOffset);
+        writer.put(CommandApdus.parseBytes("01 02 03").array(), 0, 3);
+        writer.end(3);
+        assertEquals(6, writer.getPosition());
+        byte[] expected = CommandApdus.parseBytes("00 97 03 01 02 03").array();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], buffer[i]);
+        }
+
+        // the reserved length is kept when it is needed
+        writer.wrap(buffer, 0);
+        valueOffset = writer.begin(0x87, 0xFF);
+        writer.end(0x81);
+        assertEquals(valueOffset + 0x81, writer.getPosition());
+        assertEquals((byte) 0x81, buffer[1]);
+        assertEquals((byte) 0x81, buffer[2]);
+    }
+
+    @Test
+    public void testEndLongerThanReserved() {
+        TlvWriter writer = new TlvWriter().wrap(new byte[0x100], 0);
+        writer.begin(0x87, 0x7F);
+        try {
+            writer.end(0x80);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // the length field was reserved one byte short
+        }
+    }
+}
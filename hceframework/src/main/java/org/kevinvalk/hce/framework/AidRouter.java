@@ -0,0 +1,198 @@
+package org.kevinvalk.hce.framework;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Finds the applet a SELECT by DF name is for
+ *
+ * Registered AIDs are kept twice: in an open addressing table keyed by a precomputed hash for
+ * exact matches straight out of the APDU buffer, and sorted so the AIDs starting with a partial
+ * name form one run. Partial selection follows ISO 7816-4, P2 picks the first, last, next or
+ * previous occurrence relative to the applet selected now.
+ */
+public class AidRouter
+{
+	public static final int OCCURRENCE_FIRST = 0x00;
+	public static final int OCCURRENCE_LAST = 0x01;
+	public static final int OCCURRENCE_NEXT = 0x02;
+	public static final int OCCURRENCE_PREVIOUS = 0x03;
+
+	private final byte[][] aids;
+
+	// Open addressing table of registration index + 1, 0 is empty
+	private final int[] table;
+	private final int[] hashes;
+	private final int mask;
+
+	// Registration indexes in AID order and the reverse
+	private final int[] sorted;
+	private final int[] rank;
+
+	/**
+	 * @param aids The AIDs in registration order, the index of an AID is what selection returns
+	 */
+	public AidRouter(byte[][] aids)
+	{
+		this.aids = aids;
+
+		int size = Integer.highestOneBit(Math.max(aids.length * 2, 2) - 1) << 1;
+		table = new int[size];
+		hashes = new int[aids.length];
+		mask = size - 1;
+		for (int i = 0; i < aids.length; i++)
+		{
+			hashes[i] = hash(aids[i], 0, aids[i].length);
+			int slot = hashes[i] & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
+
+		Integer[] order = new Integer[aids.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				return AidRouter.compare(AidRouter.this.aids[a], 0, AidRouter.this.aids[a].length, AidRouter.this.aids[b]);
+			}
+		});
+		sorted = new int[aids.length];
+		rank = new int[aids.length];
+		for (int i = 0; i < order.length; i++)
+		{
+			sorted[i] = order[i];
+			rank[order[i]] = i;
+		}
+	}
+
+	/**
+	 * Get the AID registered at index
+	 *
+	 * @param index
+	 * @return
+	 */
+	public byte[] getAid(int index)
+	{
+		return aids[index];
+	}
+
+	/**
+	 * Finds the AID equal to the name
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return The index, -1 when no AID is equal
+	 */
+	public int find(byte[] buffer, int offset, int length)
+	{
+		int hash = hash(buffer, offset, length);
+		int slot = hash & mask;
+		for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask)
+		{
+			int index = entry - 1;
+			if (hashes[index] == hash && aids[index].length == length && Util.equal(buffer, offset, aids[index], 0, length))
+				return index;
+		}
+		return -1;
+	}
+
+	/**
+	 * Selects by DF name as a SELECT with P1 04 does
+	 *
+	 * A full AID selects that applet when the first occurrence is asked for, anything else walks
+	 * the AIDs starting with the name.
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param p2 Only the occurrence bits are used
+	 * @param current The index of the applet selected now, -1 for none
+	 * @return The index, -1 when no AID matches or the name is empty
+	 */
+	public int select(byte[] buffer, int offset, int length, byte p2, int current)
+	{
+		// Every AID starts with the empty name, it selects none of them
+		if (length == 0)
+			return -1;
+		
+		int occurrence = p2 & 0x03;
+		if (occurrence == OCCURRENCE_FIRST)
+		{
+			int index = find(buffer, offset, length);
+			if (index >= 0)
+				return index;
+		}
+
+		// The run of AIDs starting with the name
+		int low = lowerBound(buffer, offset, length);
+		int high = low;
+		while (high < sorted.length && startsWith(aids[sorted[high]], buffer, offset, length))
+			high++;
+		if (low == high)
+			return -1;
+
+		// Next and previous only move within the run the current applet is part of
+		int position = current >= 0 ? rank[current] : -1;
+		boolean inRun = position >= low && position < high;
+		switch (occurrence)
+		{
+			case OCCURRENCE_LAST:
+				return sorted[high - 1];
+			case OCCURRENCE_NEXT:
+				if (!inRun)
+					return sorted[low];
+				return position + 1 < high ? sorted[position + 1] : -1;
+			case OCCURRENCE_PREVIOUS:
+				if (!inRun)
+					return sorted[high - 1];
+				return position > low ? sorted[position - 1] : -1;
+			default:
+				return sorted[low];
+		}
+	}
+
+	private int lowerBound(byte[] buffer, int offset, int length)
+	{
+		int low = 0;
+		int high = sorted.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (compare(buffer, offset, length, aids[sorted[middle]]) > 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static boolean startsWith(byte[] aid, byte[] buffer, int offset, int length)
+	{
+		return aid.length >= length && Util.equal(aid, 0, buffer, offset, length);
+	}
+
+	// Unsigned lexicographic order, a prefix sorts before what it starts
+	private static int compare(byte[] buffer, int offset, int length, byte[] aid)
+	{
+		int common = Math.min(length, aid.length);
+		for (int i = 0; i < common; i++)
+		{
+			int difference = (buffer[offset + i] & 0xFF) - (aid[i] & 0xFF);
+			if (difference != 0)
+				return difference;
+		}
+		return length - aid.length;
+	}
+
+	private static int hash(byte[] buffer, int offset, int length)
+	{
+		int hash = length;
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + buffer[i];
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,131 @@
+package org.kevinvalk.hce.framework;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring of the frames exchanged with the terminal
+ *
+ * The APDU thread records every frame into preallocated slots without locking or allocating, an
+ * observer drains them from its own thread whenever it likes. When the ring is full the frame is
+ * dropped and counted, recording never waits for the observer.
+ */
+public class ApduTrace
+{
+	public static final int COMMAND = 0;
+	public static final int RESPONSE = 1;
+
+	/**
+	 * Receives drained records
+	 */
+	public interface Observer
+	{
+		/**
+		 * Called for every record in the order they were recorded
+		 *
+		 * @param timestamp From {@link System#nanoTime()}
+		 * @param direction {@link #COMMAND} or {@link #RESPONSE}
+		 * @param data Holds the first bytes of the frame, only valid during the call
+		 * @param length The length of the frame, more than data holds when it was truncated
+		 */
+		void onApdu(long timestamp, int direction, byte[] data, int length);
+	}
+
+	private final int mask;
+	private final long[] timestamps;
+	private final int[] directions;
+	private final int[] lengths;
+	private final byte[][] data;
+
+	// A slot is free to write at position p when its sequence is p, readable when it is p + 1
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private long head = 0;
+
+	/**
+	 * @param capacity The number of records, rounded up to a power of two
+	 * @param recordSize The number of frame bytes kept per record
+	 */
+	public ApduTrace(int capacity, int recordSize)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		timestamps = new long[size];
+		directions = new int[size];
+		lengths = new int[size];
+		data = new byte[size][recordSize];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Records a frame, safe to call from any thread
+	 *
+	 * @param direction
+	 * @param frame
+	 * @param offset
+	 * @param length
+	 * @return False when the ring was full and the frame was dropped
+	 */
+	public boolean record(int direction, byte[] frame, int offset, int length)
+	{
+		long position;
+		int slot;
+		while (true)
+		{
+			position = tail.get();
+			slot = (int) position & mask;
+			long sequence = sequences.get(slot);
+			if (sequence < position)
+			{
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (sequence == position && tail.compareAndSet(position, position + 1))
+				break;
+		}
+
+		timestamps[slot] = System.nanoTime();
+		directions[slot] = direction;
+		lengths[slot] = length;
+		System.arraycopy(frame, offset, data[slot], 0, Math.min(length, data[slot].length));
+		sequences.lazySet(slot, position + 1);
+		return true;
+	}
+
+	/**
+	 * Hands the recorded frames to observer, only one thread may drain
+	 *
+	 * @param observer
+	 * @param max The largest number of records to drain
+	 * @return The number of records drained
+	 */
+	public int drain(Observer observer, int max)
+	{
+		int count = 0;
+		while (count < max)
+		{
+			int slot = (int) head & mask;
+			if (sequences.get(slot) != head + 1)
+				break;
+
+			observer.onApdu(timestamps[slot], directions[slot], data[slot], lengths[slot]);
+			sequences.lazySet(slot, head + mask + 1);
+			head++;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of frames dropped because the ring was full
+	 *
+	 * @return
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+}
@@ -6,6 +6,8 @@ import org.kevinvalk.hce.framework.apdu.ResponseApdu;
 
 public abstract class Applet
 {
+	private int maxResponseLength = Iso7816.LE_MAX;
+	
 	/**
 	 * Processes an incoming command APDU
 	 * 
@@ -14,6 +16,30 @@ public abstract class Applet
 	 */
 	public abstract ResponseApdu process(CommandApdu apdu);
 	
+	/**
+	 * Processes an incoming command APDU and hands the response to callback, possibly from another thread
+	 * 
+	 * Transports that serve many terminals from one thread use this so a slow command does not hold
+	 * up the others. The caller sends no further command until the callback ran, but the command
+	 * buffer is only valid until this method returns; an applet completing later must copy it.
+	 * The default completes on the calling thread.
+	 * @param apdu incoming APDU
+	 * @param callback
+	 */
+	public void process(CommandApdu apdu, ResponseCallback callback)
+	{
+		ResponseApdu response;
+		try
+		{
+			response = process(apdu);
+		}
+		catch(IsoException iso)
+		{
+			response = new ResponseApdu(iso.getErrorCode());
+		}
+		callback.onResponse(response);
+	}
+	
 	
 	/**
 	 * To let you know you have been selected by a terminal
@@ -25,6 +51,38 @@ public abstract class Applet
 	 */
 	public void deselect() {};
 	
+	/**
+	 * Asks a deselected applet to carry on with the state of its last session
+	 * 
+	 * Called when a new terminal session starts with a command other than SELECT, as it does when a
+	 * reader comes back after a brief loss of the field.
+	 * @return True when the applet resumed and takes the command
+	 */
+	public boolean resume()
+	{
+		return false;
+	}
+	
+	/**
+	 * Tells the applet how many response data bytes the terminal accepts in one frame
+	 * 
+	 * @param maxResponseLength
+	 */
+	public void setMaxResponseLength(int maxResponseLength)
+	{
+		this.maxResponseLength = maxResponseLength;
+	}
+	
+	/**
+	 * Get the number of response data bytes that fit in one frame
+	 * 
+	 * @return
+	 */
+	public int getMaxResponseLength()
+	{
+		return maxResponseLength;
+	}
+	
 	/**
 	 * Get the applets name
 	 * @return
@@ -47,7 +105,10 @@ public abstract class Applet
 	public boolean selectingApplet(CommandApdu apdu)
 	{
 		if (apdu.cla == Iso7816.CLA_ISO7816 && apdu.ins == Iso7816.INS_SELECT && apdu.p1 == 0x04 && apdu.p2 == 0x0C)
-			return Util.equal(apdu.getData(), getAid());
+		{
+			byte[] aid = getAid();
+			return apdu.getLc() == aid.length && Util.equal(apdu.getBuffer(), apdu.getDataOffset(), aid, 0, aid.length);
+		}
 		return false;
 	}
 	
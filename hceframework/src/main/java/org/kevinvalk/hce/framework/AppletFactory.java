@@ -0,0 +1,21 @@
+package org.kevinvalk.hce.framework;
+
+/**
+ * Creates applet instances so every terminal session gets its own applet state
+ */
+public interface AppletFactory
+{
+	/**
+	 * Get the application identifier the created applets answer to
+	 * 
+	 * @return
+	 */
+	byte[] getAid();
+	
+	/**
+	 * Creates a fresh applet for a new session
+	 * 
+	 * @return
+	 */
+	Applet createApplet();
+}
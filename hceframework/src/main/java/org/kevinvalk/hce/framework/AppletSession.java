@@ -0,0 +1,194 @@
+package org.kevinvalk.hce.framework;
+
+import org.kevinvalk.hce.framework.apdu.CommandApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApduEncoder;
+
+/**
+ * Routes the commands of one terminal session
+ * 
+ * A SELECT by AID, full or partial, picks the applet, every other command goes to the selected
+ * applet. A SELECT no AID matches answers SW_FILE_NOT_FOUND and keeps the selection. Applets are created on their first SELECT and kept for the rest of the session. Nothing
+ * here depends on how frames reach the terminal so every transport can share it.
+ */
+public class AppletSession
+{
+	private final AppletFactory[] factories;
+	private final Applet[] applets;
+	private final AidRouter router;
+	private int maxResponseLength;
+	private final CommandApdu commandApdu = new CommandApdu();
+	private final ResponseApduEncoder encoder;
+	private final ResponseApdu selected = new ResponseApdu(Iso7816.SW_NO_ERROR);
+	private final ResponseApdu notFound = new ResponseApdu(Iso7816.SW_FILE_NOT_FOUND);
+	private Applet activeApplet = null;
+	private int activeIndex = -1;
+	
+	// The applet of the last session, it may resume
+	private int lastIndex = -1;
+	
+	public AppletSession(AppletFactory[] factories, int maxTransceiveLength)
+	{
+		this.factories = factories;
+		this.applets = new Applet[factories.length];
+		this.maxResponseLength = ResponseApduEncoder.getMaxResponseLength(maxTransceiveLength);
+		this.encoder = new ResponseApduEncoder(maxTransceiveLength);
+		
+		byte[][] aids = new byte[factories.length][];
+		for (int i = 0; i < factories.length; i++)
+			aids[i] = factories[i].getAid();
+		this.router = new AidRouter(aids);
+	}
+	
+	/**
+	 * Tells the applets how many response data bytes fit in a frame, for sessions that outlive a transport
+	 * 
+	 * @param maxResponseLength
+	 */
+	public void setMaxResponseLength(int maxResponseLength)
+	{
+		this.maxResponseLength = maxResponseLength;
+		for (Applet applet : applets)
+			if (applet != null)
+				applet.setMaxResponseLength(maxResponseLength);
+	}
+	
+	/**
+	 * Processes one command frame
+	 * 
+	 * @param buffer
+	 * @param length
+	 * @return The response frame, valid until the next call
+	 */
+	public byte[] process(byte[] buffer, int length)
+	{
+		try
+		{
+			return encoder.encode(process(commandApdu.wrap(buffer, length)));
+		}
+		catch(IsoException iso)
+		{
+			// Soft error, the terminal gets the status word
+			return encoder.encode(iso.getErrorCode());
+		}
+	}
+	
+	/**
+	 * Processes one command frame, the response may arrive from another thread
+	 * 
+	 * @param buffer Only read until this method returns
+	 * @param length
+	 * @param callback Gets the response, turn it into a frame with {@link #encode(ResponseApdu)}
+	 */
+	public void process(byte[] buffer, int length, ResponseCallback callback)
+	{
+		CommandApdu apdu;
+		ResponseApdu response;
+		try
+		{
+			apdu = commandApdu.wrap(buffer, length);
+			response = route(apdu);
+		}
+		catch(IsoException iso)
+		{
+			response = new ResponseApdu(iso.getErrorCode());
+			apdu = null;
+		}
+		
+		if (response != null)
+			callback.onResponse(response);
+		else
+			activeApplet.process(apdu, callback);
+	}
+	
+	/**
+	 * Encodes a response into a frame
+	 * 
+	 * @param response
+	 * @return The response frame, valid until the next call
+	 */
+	public byte[] encode(ResponseApdu response)
+	{
+		return encoder.encode(response);
+	}
+	
+	/**
+	 * Processes one command
+	 * 
+	 * @param apdu
+	 * @return
+	 */
+	public ResponseApdu process(CommandApdu apdu)
+	{
+		ResponseApdu response = route(apdu);
+		if (response != null)
+			return response;
+		return activeApplet.process(apdu);
+	}
+	
+	/**
+	 * Handles what the session answers itself
+	 * 
+	 * @param apdu
+	 * @return The response, null when the command is for the active applet
+	 */
+	private ResponseApdu route(CommandApdu apdu)
+	{
+		// SELECT by AID
+		if (apdu.cla == Iso7816.CLA_ISO7816 && apdu.ins == Iso7816.INS_SELECT && apdu.p1 == 0x04)
+		{
+			int index = router.select(apdu.getBuffer(), apdu.getDataOffset(), apdu.getLc(), apdu.p2, activeIndex);
+			if (index >= 0)
+			{
+				select(index);
+				return selected;
+			}
+			// No applet has that name, whatever is selected stays selected
+			return notFound;
+		}
+		
+		if (activeApplet == null && lastIndex >= 0 && applets[lastIndex].resume())
+		{
+			activeApplet = applets[lastIndex];
+			activeIndex = lastIndex;
+		}
+		if (activeApplet == null)
+			return new ResponseApdu(Iso7816.SW_INS_NOT_SUPPORTED);
+		return null;
+	}
+	
+	private void select(int index)
+	{
+		if (applets[index] == null)
+		{
+			applets[index] = factories[index].createApplet();
+			applets[index].setMaxResponseLength(maxResponseLength);
+		}
+		
+		if (activeApplet != null)
+			activeApplet.deselect();
+		activeApplet = applets[index];
+		activeIndex = index;
+		lastIndex = -1;
+		activeApplet.select();
+	}
+	
+	/**
+	 * Ends the session, the selected applet is deselected but may resume in the next one
+	 */
+	public void deselect()
+	{
+		if (activeApplet != null)
+		{
+			activeApplet.deselect();
+			lastIndex = activeIndex;
+		}
+		activeApplet = null;
+		activeIndex = -1;
+	}
+	
+	public Applet getActiveApplet()
+	{
+		return activeApplet;
+	}
+}
@@ -3,72 +3,290 @@ package org.kevinvalk.hce.framework;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.kevinvalk.hce.framework.apdu.Apdu;
 import org.kevinvalk.hce.framework.apdu.CommandApdu;
 import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+import org.kevinvalk.hce.framework.apdu.ResponseApduEncoder;
 
 public class AppletThread implements Runnable
 {
 
-	public static final String LAST_APDUS = "lastApdus";
 	public static final String LAST_ERROR = "lastError";
+	
+	// Room for a burst of short APDUs between two drains
+	private static final int TRACE_CAPACITY = 256;
+	private static final int TRACE_RECORD_SIZE = Iso7816.LE_MAX + Iso7816.OFFSET_CDATA;
+	private static final byte[] NO_DATA = new byte[0];
 	private final String TAG = getClass().getSimpleName();
 
 	private volatile boolean isRunning = false;
-	private Applet applet = null;
-	private Apdu firstApdu = null;
-	private TagWrapper tag = null;
+	private Transport transport = null;
+	
+	// Owned by the worker
+	private ResponseApduEncoder encoder = null;
+	private int encoderMaxLength;
+
+	// Handoff between the framework and the worker
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private volatile Thread worker = null;
+	private AppletSession pendingSession = null;
+	private Transport pendingTransport = null;
+	private Apdu pendingApdu = null;
+	private boolean isServing = false;
+	private boolean isShutdown = false;
+	
+	// Set once the watchdog ended the session, the error is reported already
+	private volatile boolean isExpired = false;
+	
+	// An abandoned worker still inside an applet, nobody else touches the applets until it returns
+	private volatile Thread stalledWorker = null;
 
 	private PropertyChangeSupport propertyChangeSupport = new PropertyChangeSupport(this);
-	private Apdu[] lastApdus;
-	private Exception lastError;
+	private final ApduTrace trace = new ApduTrace(TRACE_CAPACITY, TRACE_RECORD_SIZE);
+	private volatile Exception lastError;
+	
+	private final Watchdog watchdog = new Watchdog(new Watchdog.Listener()
+	{
+		@Override
+		public void onOverrun(int ins, long budget)
+		{
+			expire(ins, budget);
+		}
+	});
 
 	public AppletThread(PropertyChangeListener propertyChangeListener)
 	{
 		this.propertyChangeSupport.addPropertyChangeListener(propertyChangeListener);
 	}
 	
-	public synchronized void stop()
+	/**
+	 * Ends the session being served and waits until the worker let go of its applets
+	 */
+	public void stop()
 	{
-		isRunning = false;
+		lock.lock();
 		try
 		{
-			if (tag != null)
-				tag.close();
+			isRunning = false;
+			pendingSession = null;
+			pendingTransport = null;
+			pendingApdu = null;
+			if (isServing)
+				closeTransport(transport);
+			
+			// The worker itself can not wait for itself
+			if (Thread.currentThread() != worker)
+				while (isServing)
+					changed.awaitUninterruptibly();
 		}
-		catch(Exception e)
+		finally
 		{
-			Thread.currentThread().interrupt();
-			throw new RuntimeException(e.getMessage());
+			lock.unlock();
 		}
 	}
 	
-	public synchronized boolean setApplet(Applet applet, TagWrapper tag)
+	/**
+	 * Stops the worker thread for good
+	 */
+	public void shutdown()
 	{
-		// If we are busy then deny
-		if(isRunning)
-			return false;
-		
-		// Select the new one
-		this.applet = applet;
-		this.tag = tag;
+		watchdog.stop();
+		lock.lock();
+		try
+		{
+			isShutdown = true;
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		stop();
+	}
+	
+	/**
+	 * Hands a terminal session to the worker
+	 * 
+	 * The worker is started on first use and reused afterwards, a session it is still serving is closed.
+	 * @param session Routes the commands, a SELECT switches applets without leaving the worker
+	 * @param transport
+	 * @param apdu The first APDU of the session
+	 */
+	public void bind(AppletSession session, Transport transport, Apdu apdu)
+	{
+		watchdog.start();
 		
-		return true;
+		lock.lock();
+		try
+		{
+			if (isServing && this.transport != transport)
+				closeTransport(this.transport);
+			
+			isRunning = false;
+			pendingSession = session;
+			pendingTransport = transport;
+			pendingApdu = apdu;
+			
+			if (worker == null)
+			{
+				worker = new Thread(this);
+				worker.setName("AppletThread");
+				worker.setDaemon(true);
+				worker.start();
+			}
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Ends the session whose deadline passed
+	 * 
+	 * A terminal that went quiet is cut off by closing the transport. An applet that hangs keeps its
+	 * worker, that worker is abandoned and the next session gets a new one, so no tap waits for it.
+	 * The applets stay with the abandoned worker though, the new one refuses every command until
+	 * it returned from them.
+	 * @param ins
+	 * @param budget
+	 */
+	private void expire(int ins, long budget)
+	{
+		lock.lock();
+		try
+		{
+			if (!isServing)
+				return;
+			
+			isExpired = true;
+			if (ins == Watchdog.TERMINAL)
+				setLastError(new TimeoutException(String.format("No command within %d ms", budget)));
+			else
+				setLastError(new TimeoutException(String.format("INS %02X took longer than %d ms", ins, budget)));
+			closeTransport(transport);
+			
+			if (ins != Watchdog.TERMINAL)
+			{
+				Util.w(TAG, "Abandoning stalled worker %s", worker.getName());
+				stalledWorker = worker;
+				worker = null;
+				isServing = false;
+				isRunning = false;
+				changed.signalAll();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	private boolean isAbandoned()
+	{
+		return worker != Thread.currentThread();
+	}
+	
+	/**
+	 * Whether an abandoned worker is still inside the applets, they must not be touched meanwhile
+	 * 
+	 * @return
+	 */
+	public boolean isStalled()
+	{
+		return stalledWorker != null;
 	}
 	
-	public synchronized void setApdu(Apdu apdu)
+	private void closeTransport(Transport transport)
 	{
-		this.firstApdu = apdu;
+		try
+		{
+			if (transport != null)
+				transport.close();
+		}
+		catch(Exception e)
+		{
+			// Closing only serves to unblock a transceive
+		}
 	}
 
 	@Override
 	public void run()
 	{
-		// Initialize
-		Apdu apdu = firstApdu;
-		firstApdu = null;
-		isRunning = true;
+		// Owned by this worker, an abandoned one may still be reading its own
+		CommandApdu commandApdu = new CommandApdu();
+		Thread self = Thread.currentThread();
+		while (true)
+		{
+			// Wait for a session
+			AppletSession session;
+			Apdu apdu;
+			lock.lock();
+			try
+			{
+				while (pendingSession == null && !isShutdown && worker == self)
+					changed.awaitUninterruptibly();
+				if (isShutdown || worker != self)
+					return;
+				
+				session = pendingSession;
+				transport = pendingTransport;
+				apdu = pendingApdu;
+				pendingSession = null;
+				pendingTransport = null;
+				pendingApdu = null;
+				isServing = true;
+				isRunning = true;
+				isExpired = false;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			
+			serve(session, apdu, commandApdu);
+			
+			// Back from the applet that overran, end its session and hand the applets over
+			if (stalledWorker == self)
+			{
+				session.deselect();
+				stalledWorker = null;
+				Util.w(TAG, "Stalled worker %s returned", self.getName());
+			}
+			
+			lock.lock();
+			try
+			{
+				if (worker != self)
+					return;
+				isServing = false;
+				isRunning = false;
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Handles all traffic of one session until it ends
+	 * 
+	 * @param session Only this worker touches it, a watchdog that gave up on us leaves it to us as well
+	 * @param apdu
+	 * @param commandApdu
+	 */
+	private void serve(AppletSession session, Apdu apdu, CommandApdu commandApdu)
+	{
+		boolean isBound = false;
 		
 		// Lets start handling all incoming traffic
 		while(isRunning)
@@ -78,31 +296,61 @@ public class AppletThread implements Runnable
 				ResponseApdu responseApdu = null;
 				try
 				{
-					// Let the applet handle the APDU
-					responseApdu = applet.process(new CommandApdu(apdu));
+					// The applets still belong to a worker that overran
+					if (isStalled())
+					{
+						apdu = exchange(new ResponseApdu(Iso7816.SW_CONDITIONS_NOT_SATISFIED));
+						continue;
+					}
+					if (!isBound)
+					{
+						session.setMaxResponseLength(ResponseApduEncoder.getMaxResponseLength(transport.getMaxTransceiveLength()));
+						isBound = true;
+					}
+					
+					// Let the selected applet handle the APDU
+					commandApdu.wrap(apdu.getBuffer());
+					long deadline = watchdog.armCommand(commandApdu.ins);
+					try
+					{
+						responseApdu = session.process(commandApdu);
+					}
+					finally
+					{
+						watchdog.disarm(deadline);
+					}
+					
+					// The watchdog gave up on us, the terminal belongs to another worker now
+					if (isAbandoned())
+						return;
 
 					// If we have a response send it, else just wait
-					if (responseApdu != null) {
-						apdu = sendApdu(tag, responseApdu);
-					} else {
-						apdu = getApdu(tag);
-					}
+					apdu = exchange(responseApdu);
 
 				}
 				catch(IsoException iso)
 				{
+					if (isAbandoned())
+						return;
+					
 					// We got an soft error so send response to our terminal
 					setLastError(iso);
-					apdu = sendApdu(tag, new ResponseApdu(iso.getErrorCode()));
+					apdu = exchange(new ResponseApdu(iso.getErrorCode()));
 
 				}
 			}
 			catch(Exception e)
 			{
-				// We got a hard error so stop this
-				setLastError(e);
-				Util.d(TAG, "Caught exception `%s` at %s", e.getMessage(), e.getStackTrace()[0].toString());
-				isRunning = false;
+				// A closed transport is how a stop or a new session gets us out of transceive
+				if (!isRunning || isAbandoned())
+					break;
+				
+				// We got a hard error such as a lost field so stop this, the applet may resume later
+				if (!isExpired)
+					setLastError(e);
+				Util.w(TAG, "Caught exception `%s` at %s", e.getMessage(), e.getStackTrace()[0]);
+				if (!isStalled())
+					session.deselect();
 				return;
 			}
 		}
@@ -110,6 +358,26 @@ public class AppletThread implements Runnable
 		Util.d(TAG, "Graceful stop");
 	}
 
+	/**
+	 * Sends a response, or nothing, within the terminal budget and waits for the next command
+	 * 
+	 * @param responseApdu
+	 * @return
+	 * @throws IOException
+	 */
+	private Apdu exchange(ResponseApdu responseApdu) throws IOException
+	{
+		long deadline = watchdog.armTerminal();
+		try
+		{
+			return sendApdu(transport, responseApdu);
+		}
+		finally
+		{
+			watchdog.disarm(deadline);
+		}
+	}
+
 	private void setLastError(Exception lastError) {
 		propertyChangeSupport.firePropertyChange(LAST_ERROR, this.lastError, this.lastError = lastError);
 	}
@@ -118,41 +386,67 @@ public class AppletThread implements Runnable
 		return lastError;
 	}
 
-	public Apdu[] getLastApdus() {
-		return lastApdus;
+	/**
+	 * Get the frames exchanged with the terminal, drain it from the observing thread
+	 * 
+	 * @return
+	 */
+	public ApduTrace getTrace() {
+		return trace;
 	}
 
-	public void setLastApdus(Apdu... lastApdus) {
-		propertyChangeSupport.firePropertyChange(LAST_APDUS, this.lastApdus, this.lastApdus = lastApdus);
+	/**
+	 * Get the deadlines of the frames, set budgets and read overruns on it
+	 * 
+	 * @return
+	 */
+	public Watchdog getWatchdog() {
+		return watchdog;
 	}
 
 	/**
 	 * Sends an APDU to the terminal and waits for the next one
 	 * 
-	 * @param tag
+	 * @param transport
 	 * @param responseApdu The APDU to send
 	 * @return Apdu response
 	 */
-	public Apdu sendApdu(TagWrapper tag, ResponseApdu responseApdu) throws IOException
-	{	
-		if(responseApdu != null) {
-			Util.d(TAG, "<- %s", Util.toHex(responseApdu.getBuffer()));
+	private Apdu sendApdu(Transport transport, ResponseApdu responseApdu) throws IOException
+	{
+		if (responseApdu == null)
+			return receive(transport, NO_DATA);
+		
+		// Output buffers live as long as the worker, only a reader that takes other frame sizes gets new ones
+		int maxLength = transport.getMaxTransceiveLength();
+		if (encoder == null || encoderMaxLength != maxLength)
+		{
+			encoder = new ResponseApduEncoder(maxLength);
+			encoderMaxLength = maxLength;
 		}
-		byte [] response = tag.transceive((responseApdu == null ? new byte[0] : responseApdu.getBuffer()));
-		Util.d(TAG, "-> %s", Util.toHex(response));
-		Apdu commandApdu = new Apdu(response);
-		setLastApdus(commandApdu, responseApdu);
-		return commandApdu;
+		
+		byte[] frame = encoder.encode(responseApdu);
+		Util.dump(TAG, "<-", frame, 0, frame.length);
+		trace.record(ApduTrace.RESPONSE, frame, 0, frame.length);
+		return receive(transport, frame);
+	}
+	
+	private Apdu receive(Transport transport, byte[] frame) throws IOException
+	{
+		byte [] response = transport.transceive(frame);
+		Util.dump(TAG, "->", response, 0, response.length);
+		trace.record(ApduTrace.COMMAND, response, 0, response.length);
+		return new Apdu(response);
 	}
 	
 	/**
 	 * Waits for a new APDU from the terminal
 	 * 
-	 * @param tag
+	 * Nothing the worker owns is touched, so this is safe while it still serves another terminal.
+	 * @param transport
 	 * @return Apdu response
 	 */
-	public Apdu getApdu(TagWrapper tag) throws IOException
+	public Apdu getApdu(Transport transport) throws IOException
 	{
-		return sendApdu(tag, null);
+		return receive(transport, NO_DATA);
 	}
 }
@@ -2,13 +2,9 @@ package org.kevinvalk.hce.framework;
 
 import org.spongycastle.util.Arrays;
 
-import struct.ArrayLengthMarker;
-import struct.JavaStruct;
-import struct.StructClass;
-import struct.StructException;
-import struct.StructField;
-
-@StructClass
+/**
+ * View over a DO87 (padding indicator followed by the cryptogram) in a secure messaging body
+ */
 public class Do87
 {
 	public enum Type
@@ -24,57 +20,100 @@ public class Do87
 	
 	public static final byte DO_87 = (byte) 0x87;
 	
-	@StructField(order = 0)
-	public byte do87 = DO_87;
+	private byte[] buffer;
+	private int offset;
+	private int length;
+	private int tlvLength;
 	
-	@StructField(order = 1)
-	@ArrayLengthMarker(fieldName = "data")
-	public byte length;
+	/**
+	 * Points this object at the current object of reader
+	 * 
+	 * @param reader
+	 * @return this
+	 */
+	public Do87 wrap(TlvReader reader)
+	{
+		if (reader.getValueLength() < 1)
+			IsoException.throwIt(Iso7816.SW_WRONG_DATA);
 		
-	@StructField(order = 2)
-	public byte[] data;
+		this.buffer = reader.getBuffer();
+		this.offset = reader.getValueOffset();
+		this.length = reader.getValueLength();
+		this.tlvLength = reader.getTlvLength();
+		return this;
+	}
 	
 	public Type getType()
 	{
-		if (data != null && data.length >= 1)
-			return Type.values()[data[0]];
-		return Type.NO_INDICATION;
+		int type = buffer[offset];
+		if (type < 0 || type >= Type.values().length)
+			IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+		return Type.values()[type];
 	}
 	
-	public void setType(Type type)
+	/**
+	 * Get the offset of the cryptogram in {@link #getBuffer()}
+	 * 
+	 * @return
+	 */
+	public int getDataOffset()
 	{
-		if (data == null || data.length <= 0)
-			data = new byte[1];
-		data[0] = type.getValue();
+		return offset + 1;
 	}
 	
+	public int getDataLength()
+	{
+		return length - 1;
+	}
+	
+	/**
+	 * Gets a copy of the cryptogram
+	 * 
+	 * @return
+	 */
 	public byte[] getData()
 	{
-		return Arrays.copyOfRange(data, 1, length);
+		return Arrays.copyOfRange(buffer, offset + 1, offset + length);
 	}
 	
-	public void setData(byte[] data)
+	public byte[] getBuffer()
 	{
-		Type type = getType();
-		this.data = new byte[data.length+1];
-		setType(type);
-		System.arraycopy(data, 0, this.data, 1, data.length);
+		return buffer;
 	}
 	
+	/**
+	 * Get the number of bytes this object takes including tag and length
+	 * 
+	 * @return
+	 */
 	public int getLength()
 	{
-		return length + 2;
+		return tlvLength;
+	}
+	
+	/**
+	 * Opens a DO87 on writer and writes the padding indicator, the cryptogram goes at the returned offset
+	 * 
+	 * @param writer
+	 * @param type
+	 * @param maxDataLength
+	 * @return
+	 */
+	public static int begin(TlvWriter writer, Type type, int maxDataLength)
+	{
+		writer.begin(DO_87 & 0xFF, maxDataLength + 1);
+		writer.put(type.getValue());
+		return writer.getPosition();
 	}
 	
-	public Do87(byte [] buffer)
+	/**
+	 * Closes a DO87 opened with {@link #begin(TlvWriter, Type, int)}
+	 * 
+	 * @param writer
+	 * @param dataLength
+	 */
+	public static void end(TlvWriter writer, int dataLength)
 	{
-		try
-		{
-			JavaStruct.unpack(this, buffer);
-		}
-		catch(StructException e)
-		{
-			IsoException.throwIt(Iso7816.SW_INTERNAL_ERROR);
-		}
+		writer.end(dataLength + 1);
 	}
 }
@@ -1,36 +1,72 @@
 package org.kevinvalk.hce.framework;
 
-import struct.ArrayLengthMarker;
-import struct.JavaStruct;
-import struct.StructClass;
-import struct.StructException;
-import struct.StructField;
+import org.spongycastle.util.Arrays;
 
-@StructClass
+/**
+ * View over a DO8E (cryptographic checksum) in a secure messaging body
+ */
 public class Do8e
 {
 	public static final byte DO_8E = (byte) 0x8E;
 	
-	@StructField(order = 0)
-	public byte do8e = DO_8E;
+	private byte[] buffer;
+	private int offset;
+	private int length;
 	
-	@StructField(order = 1)
-	@ArrayLengthMarker(fieldName = "checksum")
-	public byte length;
+	/**
+	 * Points this object at the current object of reader
+	 * 
+	 * @param reader
+	 * @return this
+	 */
+	public Do8e wrap(TlvReader reader)
+	{
+		this.buffer = reader.getBuffer();
+		this.offset = reader.getValueOffset();
+		this.length = reader.getValueLength();
+		return this;
+	}
+	
+	/**
+	 * Get the offset of the checksum in {@link #getBuffer()}
+	 * 
+	 * @return
+	 */
+	public int getChecksumOffset()
+	{
+		return offset;
+	}
+	
+	public int getChecksumLength()
+	{
+		return length;
+	}
 	
-	@StructField(order = 2)
-	public byte[] checksum;
+	/**
+	 * Gets a copy of the checksum
+	 * 
+	 * @return
+	 */
+	public byte[] getChecksum()
+	{
+		return Arrays.copyOfRange(buffer, offset, offset + length);
+	}
 	
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
 	
-	public Do8e(byte [] buffer)
+	/**
+	 * Writes a DO8E holding length bytes of checksum
+	 * 
+	 * @param writer
+	 * @param checksum
+	 * @param offset
+	 * @param length
+	 */
+	public static void write(TlvWriter writer, byte[] checksum, int offset, int length)
 	{
-		try
-		{
-			JavaStruct.unpack(this, buffer);
-		}
-		catch(StructException e)
-		{
-			IsoException.throwIt(Iso7816.SW_INTERNAL_ERROR);
-		}
+		writer.put(DO_8E & 0xFF, checksum, offset, length);
 	}
 }
@@ -0,0 +1,53 @@
+package org.kevinvalk.hce.framework;
+
+/**
+ * View over a DO97 (protected Le) in a secure messaging body
+ */
+public class Do97
+{
+	public static final byte DO_97 = (byte) 0x97;
+	
+	private int le;
+	private int tlvLength;
+	
+	/**
+	 * Reads the Le held by the current object of reader
+	 * 
+	 * @param reader
+	 * @return this
+	 */
+	public Do97 wrap(TlvReader reader)
+	{
+		int length = reader.getValueLength();
+		if (length > 2)
+			IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+		
+		byte[] buffer = reader.getBuffer();
+		int offset = reader.getValueOffset();
+		le = 0;
+		for (int i = 0; i < length; i++)
+			le = (le << 8) | (buffer[offset + i] & 0xFF);
+		tlvLength = reader.getTlvLength();
+		return this;
+	}
+	
+	/**
+	 * Get the protected Le, 0 stands for the maximum
+	 * 
+	 * @return
+	 */
+	public int getLe()
+	{
+		return le;
+	}
+	
+	/**
+	 * Get the number of bytes this object takes including tag and length
+	 * 
+	 * @return
+	 */
+	public int getLength()
+	{
+		return tlvLength;
+	}
+}
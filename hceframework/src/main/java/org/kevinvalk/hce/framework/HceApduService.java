@@ -0,0 +1,107 @@
+package org.kevinvalk.hce.framework;
+
+import java.util.Arrays;
+
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+import android.nfc.cardemulation.HostApduService;
+import android.os.Bundle;
+
+/**
+ * Backend on top of the stock host card emulation service
+ * 
+ * Android hands every command to {@link #processCommandApdu(byte[], Bundle)} and sends back what it
+ * returns, so no thread of our own blocks on the reader. Routing is done by an {@link AppletSession}
+ * that lives as long as the service, applets keep their state between taps. A command an applet
+ * completes on another thread is answered through {@link #sendResponseApdu(byte[])}.
+ */
+public abstract class HceApduService extends HostApduService implements ResponseCallback
+{
+	private final String TAG = getClass().getSimpleName();
+	
+	private AppletSession session = null;
+	
+	// A response that arrives before processCommandApdu returns is returned directly
+	private boolean isProcessing = false;
+	private ResponseApdu immediate = null;
+	
+	/**
+	 * Get the factories of the applets this service hosts, the AIDs must match the service metadata
+	 * 
+	 * @return
+	 */
+	protected abstract AppletFactory[] getAppletFactories();
+	
+	/**
+	 * Get the largest frame the controller forwards, 0 when unknown
+	 * 
+	 * @return
+	 */
+	protected int getMaxTransceiveLength()
+	{
+		return 0;
+	}
+	
+	@Override
+	public byte[] processCommandApdu(byte[] commandApdu, Bundle extras)
+	{
+		if (session == null)
+			session = new AppletSession(getAppletFactories(), getMaxTransceiveLength());
+		
+		try
+		{
+			synchronized (this)
+			{
+				isProcessing = true;
+				immediate = null;
+			}
+			session.process(commandApdu, commandApdu.length, this);
+			synchronized (this)
+			{
+				isProcessing = false;
+				if (immediate == null)
+					return null;
+				return toFrame(immediate);
+			}
+		}
+		catch(Exception e)
+		{
+			// A hard error ends the applet session but not the service
+			Util.w(TAG, "Caught exception `%s`", e.getMessage());
+			synchronized (this)
+			{
+				isProcessing = false;
+			}
+			session.deselect();
+			return Util.toBytes(Iso7816.SW_UNKNOWN);
+		}
+	}
+	
+	@Override
+	public void onResponse(ResponseApdu response)
+	{
+		synchronized (this)
+		{
+			if (isProcessing)
+			{
+				immediate = response;
+				return;
+			}
+			sendResponseApdu(toFrame(response));
+		}
+	}
+	
+	private byte[] toFrame(ResponseApdu response)
+	{
+		// The frame belongs to the session encoder, hand out a copy
+		byte[] frame = session.encode(response);
+		return Arrays.copyOf(frame, frame.length);
+	}
+	
+	@Override
+	public void onDeactivated(int reason)
+	{
+		if (session != null)
+			session.deselect();
+	}
+}
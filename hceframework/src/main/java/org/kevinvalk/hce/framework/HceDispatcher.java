@@ -0,0 +1,198 @@
+package org.kevinvalk.hce.framework;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+/**
+ * Serves many terminal sessions from one thread
+ *
+ * Every session owns its applet state through an {@link AppletSession}. Transports wake the
+ * dispatcher when a frame arrives, the dispatcher then drains that session and goes back to
+ * sleep, so idle sessions cost no thread and no polling. An applet that completes a command on
+ * another thread wakes the dispatcher the same way, the other sessions are served meanwhile.
+ */
+public class HceDispatcher implements Runnable
+{
+	private final String TAG = getClass().getSimpleName();
+
+	private final LinkedBlockingQueue<Session> ready = new LinkedBlockingQueue<Session>();
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	private volatile boolean isRunning = false;
+	private volatile Thread thread = null;
+
+	/**
+	 * One transport and the applet state that belongs to it
+	 */
+	private class Session implements Runnable, ResponseCallback
+	{
+		final NonBlockingTransport transport;
+		final AppletSession appletSession;
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		
+		// Its own, an applet completing later never sees the command of another session
+		final byte[] buffer;
+		
+		// Only touched by the dispatcher thread
+		boolean isWaiting = false;
+		boolean isDetached = false;
+		
+		// Set by the applet, possibly from another thread
+		volatile ResponseApdu completed = null;
+
+		Session(NonBlockingTransport transport, AppletSession appletSession)
+		{
+			this.transport = transport;
+			this.appletSession = appletSession;
+			
+			int maxLength = transport.getMaxTransceiveLength();
+			this.buffer = new byte[maxLength > 0 ? maxLength : Iso7816.LE_MAX_EXTENDED + Iso7816.OFFSET_CDATA + 4];
+		}
+
+		/**
+		 * Ready listener, queues the session once no matter how many frames arrive
+		 */
+		@Override
+		public void run()
+		{
+			if (scheduled.compareAndSet(false, true))
+				ready.offer(this);
+		}
+		
+		/**
+		 * Completion of the command being processed
+		 */
+		@Override
+		public void onResponse(ResponseApdu response)
+		{
+			completed = response;
+			
+			// Completed while draining, the drain loop picks it up
+			if (Thread.currentThread() != thread)
+				run();
+		}
+	}
+
+	/**
+	 * Starts the dispatcher thread
+	 */
+	public synchronized void start()
+	{
+		if (thread != null)
+			return;
+		isRunning = true;
+		thread = new Thread(this);
+		thread.setName(TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the dispatcher thread, sessions still attached are left as they are
+	 */
+	public synchronized void stop()
+	{
+		isRunning = false;
+		if (thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+	/**
+	 * Adds a session to this dispatcher
+	 *
+	 * @param transport
+	 * @param appletSession The applet state for this transport alone
+	 */
+	public void attach(NonBlockingTransport transport, AppletSession appletSession)
+	{
+		Session session = new Session(transport, appletSession);
+		sessionCount.incrementAndGet();
+		transport.setReadyListener(session);
+
+		// Frames may have arrived before the listener was set
+		session.run();
+	}
+
+	/**
+	 * Get the number of sessions attached
+	 *
+	 * @return
+	 */
+	public int getSessionCount()
+	{
+		return sessionCount.get();
+	}
+
+	@Override
+	public void run()
+	{
+		while (isRunning)
+		{
+			Session session;
+			try
+			{
+				session = ready.take();
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+
+			// Clear first so a frame arriving while we drain schedules us again
+			session.scheduled.set(false);
+			drain(session);
+		}
+		Util.d(TAG, "Graceful stop");
+	}
+
+	private void drain(Session session)
+	{
+		if (session.isDetached)
+			return;
+		
+		try
+		{
+			int length;
+			while (true)
+			{
+				// One command at a time, wait for the applet before taking the next
+				if (session.isWaiting)
+				{
+					ResponseApdu response = session.completed;
+					if (response == null)
+						return;
+					session.completed = null;
+					session.isWaiting = false;
+					
+					byte[] frame = session.appletSession.encode(response);
+					session.transport.send(frame, frame.length);
+				}
+				
+				if ((length = session.transport.poll(session.buffer)) <= 0)
+					break;
+				session.isWaiting = true;
+				session.appletSession.process(session.buffer, length, session);
+			}
+			if (length < 0)
+				detach(session);
+		}
+		catch (Exception e)
+		{
+			// A hard error only ends this session
+			Util.w(TAG, "Caught exception `%s`, closing session", e.getMessage());
+			session.transport.close();
+			detach(session);
+		}
+	}
+
+	private void detach(Session session)
+	{
+		session.isDetached = true;
+		session.transport.setReadyListener(null);
+		session.appletSession.deselect();
+		sessionCount.decrementAndGet();
+	}
+}
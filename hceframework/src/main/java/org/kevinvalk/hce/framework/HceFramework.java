@@ -1,20 +1,19 @@
 package org.kevinvalk.hce.framework;
 
 import java.beans.PropertyChangeListener;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.kevinvalk.hce.framework.apdu.Apdu;
-import org.kevinvalk.hce.framework.apdu.CommandApdu;
-import org.kevinvalk.hce.framework.apdu.ResponseApdu;
 
 public class HceFramework
 {
 
-	private Map<ByteBuffer, Applet> applets;
-	private Applet activeApplet;
+	private final List<Applet> applets = new ArrayList<Applet>();
+	private AppletSession session = null;
 	private volatile AppletThread appletThread;
+	private final List<AppletFactory> factories = new ArrayList<AppletFactory>();
+	private HceDispatcher dispatcher = null;
 
 	public HceFramework() {
 		this(null);
@@ -22,8 +21,6 @@ public class HceFramework
 
 	public HceFramework(PropertyChangeListener propertyChangeListener)
 	{
-		activeApplet = null;
-		applets = new HashMap<ByteBuffer, Applet>();
 		appletThread = new AppletThread(propertyChangeListener);
 	}
 	
@@ -33,83 +30,147 @@ public class HceFramework
 	 * @param applet
 	 * @return boolean
 	 */
-	public boolean register(Applet applet)
+	public synchronized boolean register(Applet applet)
 	{
 		// If it already contains this AID then just return true
-		if (applets.containsKey(ByteBuffer.wrap(applet.getAid())))
-			return true;
-		return (applets.put(ByteBuffer.wrap(applet.getAid()), applet) == null);
+		for (Applet registered : applets)
+			if (Util.equal(registered.getAid(), applet.getAid()))
+				return true;
+		
+		// The next terminal gets a session that routes to this applet as well
+		session = null;
+		return applets.add(applet);
+	}
+	
+	/**
+	 * Get the session routing the terminals handled by {@link #handleTag(Transport)}, it outlives them
+	 * 
+	 * @return
+	 */
+	private synchronized AppletSession getSession()
+	{
+		if (session == null)
+		{
+			AppletFactory[] registered = new AppletFactory[applets.size()];
+			for (int i = 0; i < registered.length; i++)
+				registered[i] = new InstanceFactory(applets.get(i));
+			session = new AppletSession(registered, 0);
+		}
+		return session;
+	}
+	
+	/**
+	 * Hands out an applet registered as an instance
+	 */
+	private static class InstanceFactory implements AppletFactory
+	{
+		private final Applet applet;
+		
+		InstanceFactory(Applet applet)
+		{
+			this.applet = applet;
+		}
+		
+		@Override
+		public byte[] getAid()
+		{
+			return applet.getAid();
+		}
+		
+		@Override
+		public Applet createApplet()
+		{
+			return applet;
+		}
 	}
 
+	/**
+	 * Registers an applet factory for sessions served by the dispatcher
+	 * 
+	 * @param factory
+	 * @return boolean
+	 */
+	public synchronized boolean register(AppletFactory factory)
+	{
+		for (AppletFactory registered : factories)
+			if (Util.equal(registered.getAid(), factory.getAid()))
+				return registered == factory;
+		return factories.add(factory);
+	}
+	
+	/**
+	 * Serves a terminal from the shared dispatcher thread instead of a thread of its own
+	 * 
+	 * Every attached transport gets fresh applets from the registered factories.
+	 * @param transport
+	 */
+	public synchronized void attach(NonBlockingTransport transport)
+	{
+		if (dispatcher == null)
+		{
+			dispatcher = new HceDispatcher();
+			dispatcher.start();
+		}
+		AppletFactory[] snapshot = factories.toArray(new AppletFactory[factories.size()]);
+		dispatcher.attach(transport, new AppletSession(snapshot, transport.getMaxTransceiveLength()));
+	}
+	
+	/**
+	 * Get the frames the worker exchanged with the terminal
+	 * 
+	 * @return
+	 */
+	public ApduTrace getTrace()
+	{
+		return appletThread.getTrace();
+	}
+	
+	/**
+	 * Get the deadlines the worker keeps for every frame
+	 * 
+	 * @return
+	 */
+	public Watchdog getWatchdog()
+	{
+		return appletThread.getWatchdog();
+	}
+	
+	/**
+	 * Stops the worker and the dispatcher
+	 */
+	public synchronized void shutdown()
+	{
+		appletThread.shutdown();
+		if (dispatcher != null)
+			dispatcher.stop();
+		dispatcher = null;
+	}
+	
 	/**
 	 * Handles a new terminal
 	 * 
-	 * @param tag
+	 * The worker routes every command including the first, so a SELECT switches between the
+	 * registered applets without leaving it.
+	 * @param tag The link to the terminal, a {@link TagWrapper} or a {@link LoopbackTransport}
 	 * @return boolean
 	 */
-	public boolean handleTag(TagWrapper tag)
+	public boolean handleTag(Transport tag)
 	{
 		try
 		{
 			// Get the first APDU from the tag
 			Apdu apdu = appletThread.getApdu(tag);
-
-			// Keep trying
-			do
-			{
-				CommandApdu commandApdu = new CommandApdu(apdu);
-				
-				// SELECT
-				if (commandApdu.cla == Iso7816.CLA_ISO7816 && commandApdu.ins == Iso7816.INS_SELECT)
-				{
-					
-					// We have an applet
-					if (applets.containsKey(ByteBuffer.wrap(commandApdu.getData())))
-					{					
-						// If we have an active applet deselect it
-						if (activeApplet != null)
-							activeApplet.deselect();
-											
-						// Set the applet to active and select it
-						activeApplet = applets.get(ByteBuffer.wrap(commandApdu.getData()));
-						activeApplet.select();
-						
-						// Send an OK and start the applet
-						Apdu response = appletThread.sendApdu(tag, new ResponseApdu(Iso7816.SW_NO_ERROR));
-						
-						// Stop current applet thread and wait just a bit
-						appletThread.stop();
-						Thread.sleep(100);
-						
-						// Set the applet to the active runnable
-						appletThread.setApplet(activeApplet, tag);
-						appletThread.setApdu(response);
-						
-						// Run it
-						Thread thread= new Thread(appletThread);
-						thread.setName("AppletThread");
-						thread.start();
-						
-						// Stop trying
-						return true;
-					}
-					else
-					{
-						// Something went wrong
-						apdu = appletThread.sendApdu(tag, new ResponseApdu(Iso7816.SW_APPLET_SELECT_FAILED));
-						continue;
-					}
-				}
-				
-				// This is as defined in the specifications
-				// If we have an active applet let them process this commandApdu
-				if (activeApplet != null) {
-					apdu = appletThread.sendApdu(tag, activeApplet.process(commandApdu));
-				} else {
-					apdu = appletThread.sendApdu(tag, new ResponseApdu(Iso7816.SW_INS_NOT_SUPPORTED));
-				}
-			}
-			while(true);
+			
+			// Take the worker off whatever session it still serves, its applet may resume in this one
+			appletThread.stop();
+			AppletSession session = getSession();
+			
+			// A worker that overran deselects once it returns, its applets are not ours to touch
+			if (!appletThread.isStalled())
+				session.deselect();
+			
+			appletThread.bind(session, tag, apdu);
+			return true;
 		}
 		catch(Exception e)
 		{
@@ -8,6 +8,7 @@ public abstract class Iso7816
 	static final byte DO87_END = 0x01;
 	
 	public static final int LE_MAX = 256;
+	public static final int LE_MAX_EXTENDED = 65536;
     /**
      * Response status : No Error = (short)0x9000
      */
@@ -96,6 +97,14 @@ public abstract class Iso7816
      * Response status : Card does not support secure messaging = 0x6882
      */
     public static final short SW_SECURE_MESSAGING_NOT_SUPPORTED = 26754;
+    /**
+     * Response status : Expected secure messaging data objects missing = 0x6987
+     */
+    public static final short SW_SM_DATA_MISSING = 27015;
+    /**
+     * Response status : Secure messaging data objects incorrect = 0x6988
+     */
+    public static final short SW_SM_DATA_INCORRECT = 27016;
     /**
      * Response status : Warning, card state unchanged  = 0x6200
      */
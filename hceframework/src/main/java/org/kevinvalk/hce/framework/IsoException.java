@@ -16,6 +16,15 @@ public class IsoException extends RuntimeException
 		return errorCode;
 	}
 	
+	/**
+	 * A status word needs no stack trace, skipping it keeps error answers cheap
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace()
+	{
+		return this;
+	}
+	
 	public static void throwIt(short sw) throws IsoException
 	{
 		throw new IsoException(sw);
@@ -0,0 +1,125 @@
+package org.kevinvalk.hce.framework;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A transport in memory, the card end of a link whose other end is driven by a simulated terminal
+ * 
+ * Hand this to {@link HceFramework#handleTag(Transport)} and exchange APDUs through
+ * {@link #getTerminal()}. Frames are copied on the way across since the sender may reuse its buffers.
+ */
+public class LoopbackTransport implements Transport
+{
+	// Put in a queue to wake the other end once closed, it is put back so every later call fails too
+	private static final byte[] CLOSED = new byte[0];
+	
+	private final LinkedBlockingQueue<byte[]> commands = new LinkedBlockingQueue<byte[]>();
+	private final LinkedBlockingQueue<byte[]> responses = new LinkedBlockingQueue<byte[]>();
+	private final int maxTransceiveLength;
+	private final Transport terminal;
+	private volatile boolean isClosed = false;
+	
+	// The card owes the terminal a response for the last command it took
+	private boolean isAnswering = false;
+	
+	public LoopbackTransport()
+	{
+		this(0);
+	}
+	
+	/**
+	 * @param maxTransceiveLength The largest frame the simulated terminal accepts, 0 when unknown
+	 */
+	public LoopbackTransport(int maxTransceiveLength)
+	{
+		this.maxTransceiveLength = maxTransceiveLength;
+		this.terminal = new Transport()
+		{
+			@Override
+			public byte[] transceive(byte[] command) throws IOException
+			{
+				put(commands, command, command.length);
+				return take(responses);
+			}
+			
+			@Override
+			public void close()
+			{
+				LoopbackTransport.this.close();
+			}
+			
+			@Override
+			public int getMaxTransceiveLength()
+			{
+				return LoopbackTransport.this.maxTransceiveLength;
+			}
+		};
+	}
+	
+	/**
+	 * Get the terminal end, its transceive sends a command and waits for the response
+	 * 
+	 * @return
+	 */
+	public Transport getTerminal()
+	{
+		return terminal;
+	}
+	
+	@Override
+	public byte[] transceive(byte[] response) throws IOException
+	{
+		// The first frame of a session answers nothing
+		if (isAnswering)
+			put(responses, response, response.length);
+		byte[] command = take(commands);
+		isAnswering = true;
+		return command;
+	}
+	
+	@Override
+	public void close()
+	{
+		if (isClosed)
+			return;
+		isClosed = true;
+		commands.offer(CLOSED);
+		responses.offer(CLOSED);
+	}
+	
+	@Override
+	public int getMaxTransceiveLength()
+	{
+		return maxTransceiveLength;
+	}
+	
+	private void put(LinkedBlockingQueue<byte[]> queue, byte[] frame, int length) throws IOException
+	{
+		if (isClosed)
+			throw new IOException("Transport closed");
+		queue.offer(Arrays.copyOf(frame, length));
+	}
+	
+	private byte[] take(LinkedBlockingQueue<byte[]> queue) throws IOException
+	{
+		byte[] frame;
+		try
+		{
+			frame = queue.take();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		
+		if (frame == CLOSED)
+		{
+			queue.offer(CLOSED);
+			throw new IOException("Transport closed");
+		}
+		return frame;
+	}
+}
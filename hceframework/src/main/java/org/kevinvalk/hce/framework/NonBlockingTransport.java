@@ -0,0 +1,46 @@
+package org.kevinvalk.hce.framework;
+
+import java.io.IOException;
+
+/**
+ * A link to a terminal that never blocks the caller
+ * 
+ * Used by {@link HceDispatcher} to serve many sessions from one thread. The transport calls the
+ * ready listener from its own thread whenever a command frame arrives or the link closes.
+ */
+public interface NonBlockingTransport
+{
+	/**
+	 * Copies the next command frame into buffer without waiting
+	 * 
+	 * @param buffer
+	 * @return The frame length, 0 when no frame is waiting, -1 when the transport is closed
+	 * @throws IOException
+	 */
+	int poll(byte[] buffer) throws IOException;
+	
+	/**
+	 * Sends a response frame without waiting for the next command
+	 * 
+	 * @param frame
+	 * @param length
+	 * @throws IOException
+	 */
+	void send(byte[] frame, int length) throws IOException;
+	
+	/**
+	 * Get the largest frame the terminal accepts, 0 when unknown
+	 * 
+	 * @return
+	 */
+	int getMaxTransceiveLength();
+	
+	void close();
+	
+	/**
+	 * Registers the callback to run when a frame arrives or the transport closes
+	 * 
+	 * @param listener
+	 */
+	void setReadyListener(Runnable listener);
+}
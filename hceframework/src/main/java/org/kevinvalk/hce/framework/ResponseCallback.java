@@ -0,0 +1,18 @@
+package org.kevinvalk.hce.framework;
+
+import org.kevinvalk.hce.framework.apdu.ResponseApdu;
+
+/**
+ * Receives the response of an applet that may complete a command on another thread
+ * 
+ * @see Applet#process(org.kevinvalk.hce.framework.apdu.CommandApdu, ResponseCallback)
+ */
+public interface ResponseCallback
+{
+	/**
+	 * Called exactly once per command, soft errors arrive as a status only response
+	 * 
+	 * @param response The response, valid until the next command is processed
+	 */
+	void onResponse(ResponseApdu response);
+}
@@ -7,7 +7,10 @@ import java.lang.reflect.Method;
 import android.nfc.Tag;
 import android.nfc.tech.TagTechnology;
 
-public class TagWrapper implements TagTechnology
+/**
+ * Transport over a hidden tag technology such as IsoPcdA, reached through reflection
+ */
+public class TagWrapper implements TagTechnology, Transport
 {
 
     private Method isConnected;
@@ -128,6 +131,7 @@ public class TagWrapper implements TagTechnology
         }
     }
 
+    @Override
     public int getMaxTransceiveLength() {
         try {
             return (Integer) getMaxTransceiveLength.invoke(tagTech);
@@ -142,13 +146,7 @@ public class TagWrapper implements TagTechnology
         return 0;
     }
 
-    /**
-     * Sends the data to the other end and blocks until it has received data
-     * 
-     * @param data
-     * @return
-     * @throws IOException
-     */
+    @Override
     public byte[] transceive(byte[] data) throws IOException {
         try {
             return (byte[]) transceive.invoke(tagTech, data);
@@ -0,0 +1,173 @@
+package org.kevinvalk.hce.framework;
+
+/**
+ * Cursor over the BER-TLV objects in a range of a buffer
+ *
+ * Tags, lengths and values are reported as offsets into the wrapped buffer so iterating
+ * does not allocate. A single instance can be reused for every frame by calling
+ * {@link #wrap(byte[], int, int)}.
+ */
+public class TlvReader
+{
+	private byte[] buffer;
+	private int position;
+	private int end;
+
+	// The current object
+	private int tag;
+	private int tagOffset;
+	private int valueOffset;
+	private int valueLength;
+
+	/**
+	 * Points the reader at length bytes of buffer starting at offset
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return this
+	 */
+	public TlvReader wrap(byte[] buffer, int offset, int length)
+	{
+		this.buffer = buffer;
+		this.position = offset;
+		this.end = offset + length;
+		this.tag = 0;
+		this.tagOffset = offset;
+		this.valueOffset = offset;
+		this.valueLength = 0;
+		return this;
+	}
+
+	/**
+	 * Moves to the next object
+	 *
+	 * Padding bytes (00 or FF) between objects are skipped.
+	 * @return False when there are no more objects
+	 * @throws IsoException SW_WRONG_DATA when the object does not fit or is malformed
+	 */
+	public boolean next()
+	{
+		while (position < end && (buffer[position] == (byte) 0x00 || buffer[position] == (byte) 0xFF))
+			position++;
+		if (position >= end)
+			return false;
+
+		// Tag, the low five bits all set means more tag bytes follow
+		tagOffset = position;
+		tag = buffer[position++] & 0xFF;
+		if ((tag & 0x1F) == 0x1F)
+		{
+			do
+			{
+				if (position >= end || position - tagOffset > 3)
+					IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+				tag = (tag << 8) | (buffer[position] & 0xFF);
+			}
+			while ((buffer[position++] & 0x80) == 0x80);
+		}
+
+		// Length, either short form or 81 xx, 82 xx xx, 83 xx xx xx
+		if (position >= end)
+			IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+		int length = buffer[position++] & 0xFF;
+		if (length > 0x80)
+		{
+			int size = length & 0x7F;
+			if (size > 3 || position + size > end)
+				IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+			length = 0;
+			for (int i = 0; i < size; i++)
+				length = (length << 8) | (buffer[position++] & 0xFF);
+		}
+		else if (length == 0x80)
+		{
+			// Indefinite length has no place in a flat APDU body
+			IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+		}
+		if (length > end - position)
+			IsoException.throwIt(Iso7816.SW_WRONG_DATA);
+
+		valueOffset = position;
+		valueLength = length;
+		position += length;
+		return true;
+	}
+
+	/**
+	 * Moves forward to the next object with the given tag
+	 *
+	 * @param tag
+	 * @return False when the tag does not occur in the rest of the range
+	 */
+	public boolean find(int tag)
+	{
+		while (next())
+			if (this.tag == tag)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Checks if there is data left after the current object
+	 *
+	 * @return
+	 */
+	public boolean hasRemaining()
+	{
+		return position < end;
+	}
+
+	public int getTag()
+	{
+		return tag;
+	}
+
+	/**
+	 * Checks if the current object holds other objects
+	 *
+	 * @return
+	 */
+	public boolean isConstructed()
+	{
+		int first = tag;
+		while (first > 0xFF)
+			first >>>= 8;
+		return (first & 0x20) == 0x20;
+	}
+
+	/**
+	 * Get the offset of the first tag byte of the current object
+	 *
+	 * @return
+	 */
+	public int getTagOffset()
+	{
+		return tagOffset;
+	}
+
+	public int getValueOffset()
+	{
+		return valueOffset;
+	}
+
+	public int getValueLength()
+	{
+		return valueLength;
+	}
+
+	/**
+	 * Get the number of bytes of the current object including tag and length
+	 *
+	 * @return
+	 */
+	public int getTlvLength()
+	{
+		return valueOffset + valueLength - tagOffset;
+	}
+
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+}
@@ -0,0 +1,207 @@
+package org.kevinvalk.hce.framework;
+
+/**
+ * Writes BER-TLV objects straight into an output buffer
+ *
+ * Values can be copied in with {@link #put(int, byte[], int, int)} or produced in place: {@link #begin(int, int)}
+ * reserves room for the length, the caller writes the value at the returned offset and {@link #end(int)}
+ * fills in the length. Nothing is allocated.
+ */
+public class TlvWriter
+{
+	private byte[] buffer;
+	private int position;
+
+	// The object opened with begin
+	private int lengthOffset = -1;
+	private int lengthSize;
+
+	/**
+	 * Points the writer at buffer, the first object is written at offset
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @return this
+	 */
+	public TlvWriter wrap(byte[] buffer, int offset)
+	{
+		this.buffer = buffer;
+		this.position = offset;
+		this.lengthOffset = -1;
+		return this;
+	}
+
+	/**
+	 * Get the offset the next byte will be written to
+	 *
+	 * @return
+	 */
+	public int getPosition()
+	{
+		return position;
+	}
+
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Writes a complete object
+	 *
+	 * @param tag
+	 * @param value
+	 * @param offset
+	 * @param length
+	 * @return this
+	 */
+	public TlvWriter put(int tag, byte[] value, int offset, int length)
+	{
+		putTag(tag);
+		putLength(length, sizeOfLength(length));
+		System.arraycopy(value, offset, buffer, position, length);
+		position += length;
+		return this;
+	}
+
+	/**
+	 * Writes a complete object with a one byte value
+	 *
+	 * @param tag
+	 * @param value
+	 * @return this
+	 */
+	public TlvWriter put(int tag, byte value)
+	{
+		putTag(tag);
+		buffer[position++] = 0x01;
+		buffer[position++] = value;
+		return this;
+	}
+
+	/**
+	 * Appends raw bytes, used to write the value of an object opened with begin
+	 *
+	 * @param value
+	 * @return this
+	 */
+	public TlvWriter put(byte value)
+	{
+		buffer[position++] = value;
+		return this;
+	}
+
+	/**
+	 * Appends raw bytes, used to write the value of an object opened with begin
+	 *
+	 * @param value
+	 * @param offset
+	 * @param length
+	 * @return this
+	 */
+	public TlvWriter put(byte[] value, int offset, int length)
+	{
+		System.arraycopy(value, offset, buffer, position, length);
+		position += length;
+		return this;
+	}
+
+	/**
+	 * Opens an object whose value will be written in place
+	 *
+	 * @param tag
+	 * @param maxLength The largest value that will be written
+	 * @return The offset the value starts at
+	 */
+	public int begin(int tag, int maxLength)
+	{
+		if (lengthOffset >= 0)
+			throw new IllegalStateException("TLV object already open");
+
+		putTag(tag);
+		lengthOffset = position;
+		lengthSize = sizeOfLength(maxLength);
+		position += lengthSize;
+		return position;
+	}
+
+	/**
+	 * Closes the object opened with begin
+	 *
+	 * When the length needs fewer bytes than were reserved the value is moved down so the
+	 * encoding stays minimal.
+	 * @param length The number of value bytes written at the offset begin returned
+	 * @return this
+	 */
+	public TlvWriter end(int length)
+	{
+		if (lengthOffset < 0)
+			throw new IllegalStateException("No TLV object open");
+
+		int size = sizeOfLength(length);
+		if (size > lengthSize)
+			throw new IllegalArgumentException("TLV value larger than reserved");
+
+		int valueOffset = lengthOffset + lengthSize;
+		if (size < lengthSize)
+			System.arraycopy(buffer, valueOffset, buffer, lengthOffset + size, length);
+
+		position = lengthOffset;
+		putLength(length, size);
+		position += length;
+		lengthOffset = -1;
+		return this;
+	}
+
+	private void putTag(int tag)
+	{
+		for (int shift = (sizeOfTag(tag) - 1) * 8; shift >= 0; shift -= 8)
+			buffer[position++] = (byte) (tag >>> shift);
+	}
+
+	private void putLength(int length, int size)
+	{
+		if (size == 1)
+		{
+			buffer[position++] = (byte) length;
+			return;
+		}
+		buffer[position++] = (byte) (0x80 | (size - 1));
+		for (int shift = (size - 2) * 8; shift >= 0; shift -= 8)
+			buffer[position++] = (byte) (length >>> shift);
+	}
+
+	/**
+	 * Get the number of bytes a tag takes
+	 *
+	 * @param tag
+	 * @return
+	 */
+	public static int sizeOfTag(int tag)
+	{
+		if ((tag & 0xFF000000) != 0)
+			return 4;
+		if ((tag & 0xFF0000) != 0)
+			return 3;
+		if ((tag & 0xFF00) != 0)
+			return 2;
+		return 1;
+	}
+
+	/**
+	 * Get the number of bytes the length field of a value of the given length takes
+	 *
+	 * @param length
+	 * @return
+	 */
+	public static int sizeOfLength(int length)
+	{
+		if (length < 0x80)
+			return 1;
+		if (length <= 0xFF)
+			return 2;
+		if (length <= 0xFFFF)
+			return 3;
+		return 4;
+	}
+}
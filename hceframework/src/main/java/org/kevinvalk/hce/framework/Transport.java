@@ -0,0 +1,36 @@
+package org.kevinvalk.hce.framework;
+
+import java.io.IOException;
+
+/**
+ * A blocking link to a terminal
+ * 
+ * The card side sends a response and waits for the next command in one call, the first call
+ * sends an empty frame. {@link TagWrapper} is the link over the NFC controller,
+ * {@link LoopbackTransport} one in memory.
+ */
+public interface Transport
+{
+	/**
+	 * Sends the data to the other end and blocks until it has received data
+	 * 
+	 * @param data
+	 * @return
+	 * @throws IOException When the link is closed or lost
+	 */
+	byte[] transceive(byte[] data) throws IOException;
+	
+	/**
+	 * Closes the link, a transceive blocked on it fails
+	 * 
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+	
+	/**
+	 * Get the largest frame the terminal accepts, 0 when unknown
+	 * 
+	 * @return
+	 */
+	int getMaxTransceiveLength();
+}
@@ -24,6 +24,27 @@ public final class Util
 		return Arrays.equals(array1, array2);
 	}
 	
+	/**
+	 * Checks if a range of an array is equal to a range of another array
+	 * 
+	 * @param array1
+	 * @param offset1
+	 * @param array2
+	 * @param offset2
+	 * @param length
+	 * @return
+	 */
+	public static boolean equal(byte[] array1, int offset1, byte[] array2, int offset2, int length)
+	{
+		if (array1.length < offset1 + length || array2.length < offset2 + length)
+			return false;
+		
+		for (int i = 0; i < length; i++)
+			if (array1[offset1 + i] != array2[offset2 + i])
+				return false;
+		return true;
+	}
+	
 	public static byte[] xorArray(byte[] array1, byte[] array2)
 	{
 		if (array1.length != array2.length)
@@ -85,14 +106,99 @@ public final class Util
 	}
 	
 	/**** START Debugging functions ****/
+	/**
+	 * Lowest level built in, raise it to {@link Log#ASSERT} and everything below is dead code after inlining
+	 */
+	public static final int LOG_LEVEL_COMPILED = Log.DEBUG;
+	
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	
+	// Lowest level logged at runtime, debug output is off unless asked for
+	private static volatile int logLevel = Log.INFO;
+	
+	// Reused by dump, guarded by itself
+	private static final StringBuilder dumpBuilder = new StringBuilder();
+	
+	/**
+	 * Sets the lowest level that is logged
+	 * 
+	 * @param level One of the {@link Log} levels
+	 */
+	public static void setLogLevel(int level)
+	{
+		logLevel = level;
+	}
+	
+	/**
+	 * Checks if a message of the given level would be logged, guard costly arguments with it
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public static boolean isLoggable(int level)
+	{
+		return level >= LOG_LEVEL_COMPILED && level >= logLevel;
+	}
+	
 	public static void d(String tag, String msg)
 	{
-		Log.i(tag, msg);
+		if (isLoggable(Log.DEBUG))
+			Log.d(tag, msg);
+	}
+	
+	public static void d(String tag, String format, Object arg)
+	{
+		if (isLoggable(Log.DEBUG))
+			Log.d(tag, String.format(format, arg));
+	}
+	
+	public static void d(String tag, String format, Object arg1, Object arg2)
+	{
+		if (isLoggable(Log.DEBUG))
+			Log.d(tag, String.format(format, arg1, arg2));
 	}
 	
 	public static void d(String tag, String format, Object... args)
 	{
-		Log.i(tag, String.format(format, (Object[])args));
+		if (isLoggable(Log.DEBUG))
+			Log.d(tag, String.format(format, (Object[])args));
+	}
+	
+	public static void w(String tag, String format, Object arg)
+	{
+		if (isLoggable(Log.WARN))
+			Log.w(tag, String.format(format, arg));
+	}
+	
+	public static void w(String tag, String format, Object arg1, Object arg2)
+	{
+		if (isLoggable(Log.WARN))
+			Log.w(tag, String.format(format, arg1, arg2));
+	}
+	
+	/**
+	 * Logs a frame in hex at debug level, nothing is formatted when debug output is off
+	 * 
+	 * @param tag
+	 * @param prefix
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public static void dump(String tag, String prefix, byte[] buffer, int offset, int length)
+	{
+		if (!isLoggable(Log.DEBUG))
+			return;
+		
+		String message;
+		synchronized (dumpBuilder)
+		{
+			dumpBuilder.setLength(0);
+			dumpBuilder.append(prefix).append(' ');
+			appendHex(dumpBuilder, buffer, offset, length);
+			message = dumpBuilder.toString();
+		}
+		Log.d(tag, message);
 	}
 	
 	public static String toHex(byte[] buffer)
@@ -102,15 +208,49 @@ public final class Util
 	
 	public static String toUnspacedHex(byte[] buffer)
 	{
-		return toHex(buffer).replace(" ", "");
+		char[] hex = new char[buffer.length * 2];
+		for (int i = 0; i < buffer.length; i++)
+		{
+			hex[i * 2] = HEX[(buffer[i] >> 4) & 0x0F];
+			hex[i * 2 + 1] = HEX[buffer[i] & 0x0F];
+		}
+		return new String(hex);
 	}
 		
 	public static String toHex(byte[] buffer, int offset, int length)
 	{
-		String hex = "";
-		for(int i = offset; i < offset+length; i++)
-			hex = hex.concat(String.format("%02X ", buffer[i]));		
-		return hex.trim();
+		if (length <= 0)
+			return "";
+		char[] hex = new char[length * 3 - 1];
+		for (int i = 0; i < length; i++)
+		{
+			byte value = buffer[offset + i];
+			if (i > 0)
+				hex[i * 3 - 1] = ' ';
+			hex[i * 3] = HEX[(value >> 4) & 0x0F];
+			hex[i * 3 + 1] = HEX[value & 0x0F];
+		}
+		return new String(hex);
+	}
+	
+	/**
+	 * Appends bytes as space separated hex
+	 * 
+	 * @param builder
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return builder
+	 */
+	public static StringBuilder appendHex(StringBuilder builder, byte[] buffer, int offset, int length)
+	{
+		for (int i = offset; i < offset + length; i++)
+		{
+			if (i > offset)
+				builder.append(' ');
+			builder.append(HEX[(buffer[i] >> 4) & 0x0F]).append(HEX[buffer[i] & 0x0F]);
+		}
+		return builder;
 	}
 	/**** END Debugging functions ****/
 }
@@ -0,0 +1,263 @@
+package org.kevinvalk.hce.framework;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Deadlines for the frames of one worker
+ *
+ * The worker arms a deadline before it hands a command to an applet or waits for the terminal and
+ * disarms it afterwards with the token the arm returned, so a worker that was abandoned meanwhile
+ * does not disarm the deadline of the one that replaced it. The watchdog thread sleeps until the nearest deadline and is only woken
+ * when an earlier one is armed, so most frames cost a lock and a few writes. A deadline that
+ * passes while still armed is counted and reported to the listener.
+ */
+public class Watchdog implements Runnable
+{
+	public static final long DEFAULT_COMMAND_BUDGET = 1000;
+	public static final long DEFAULT_TERMINAL_BUDGET = 5000;
+
+	/**
+	 * Instruction reported while waiting for the terminal
+	 */
+	public static final int TERMINAL = -1;
+
+	/**
+	 * Told about deadlines that passed
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called from the watchdog thread, the deadline is disarmed once this returns
+		 *
+		 * @param ins The instruction being processed or {@link #TERMINAL}
+		 * @param budget The budget that was exceeded in milliseconds
+		 */
+		void onOverrun(int ins, long budget);
+	}
+
+	private final String TAG = getClass().getSimpleName();
+	private final Listener listener;
+
+	// Budgets in nanoseconds, 0 in the table falls back to the command budget
+	private final long[] budgets = new long[256];
+	private volatile long commandBudget = TimeUnit.MILLISECONDS.toNanos(DEFAULT_COMMAND_BUDGET);
+	private volatile long terminalBudget = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TERMINAL_BUDGET);
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private Thread thread = null;
+	private boolean isStopped = false;
+	private boolean isArmed = false;
+	private long deadline;
+	private long armedBudget;
+	private int armedIns;
+	private long generation = 0;
+
+	// The deadline the watchdog thread sleeps towards, 0 while it sleeps until armed
+	private long wakeup = 0;
+	private volatile long overruns = 0;
+
+	public Watchdog(Listener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the budget of one instruction
+	 *
+	 * @param ins
+	 * @param millis 0 to use the command budget
+	 */
+	public void setBudget(byte ins, long millis)
+	{
+		budgets[ins & 0xFF] = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Sets the budget of instructions without one of their own
+	 *
+	 * @param millis 0 for no deadline
+	 */
+	public void setCommandBudget(long millis)
+	{
+		commandBudget = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Sets how long the terminal may take to send the next command
+	 *
+	 * @param millis 0 for no deadline
+	 */
+	public void setTerminalBudget(long millis)
+	{
+		terminalBudget = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Get the number of deadlines that passed
+	 *
+	 * @return
+	 */
+	public long getOverruns()
+	{
+		return overruns;
+	}
+
+	/**
+	 * Starts the watchdog thread, does nothing when it runs already
+	 */
+	public void start()
+	{
+		lock.lock();
+		try
+		{
+			if (thread != null)
+				return;
+			isStopped = false;
+			thread = new Thread(this);
+			thread.setName(TAG);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the watchdog thread, an armed deadline no longer fires
+	 */
+	public void stop()
+	{
+		lock.lock();
+		try
+		{
+			isStopped = true;
+			isArmed = false;
+			thread = null;
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Arms the deadline for processing a command
+	 *
+	 * @param ins
+	 * @return The token to disarm it with
+	 */
+	public long armCommand(byte ins)
+	{
+		long budget = budgets[ins & 0xFF];
+		return arm(ins & 0xFF, budget != 0 ? budget : commandBudget);
+	}
+
+	/**
+	 * Arms the deadline for the terminal to send the next command
+	 *
+	 * @return The token to disarm it with
+	 */
+	public long armTerminal()
+	{
+		return arm(TERMINAL, terminalBudget);
+	}
+
+	private long arm(int ins, long budget)
+	{
+		lock.lock();
+		try
+		{
+			isArmed = budget > 0;
+			if (!isArmed)
+				return ++generation;
+			armedIns = ins;
+			armedBudget = budget;
+			deadline = System.nanoTime() + budget;
+
+			// A later deadline is picked up when the thread wakes for the one it sleeps towards
+			if (wakeup == 0 || deadline - wakeup < 0)
+				changed.signal();
+			return ++generation;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Disarms the deadline, once this returns the listener is no longer called for it
+	 *
+	 * @param token Returned by the arm, a deadline armed since then stays armed
+	 */
+	public void disarm(long token)
+	{
+		lock.lock();
+		try
+		{
+			if (token == generation)
+				isArmed = false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		lock.lock();
+		try
+		{
+			while (!isStopped)
+			{
+				if (!isArmed)
+				{
+					wakeup = 0;
+					changed.awaitUninterruptibly();
+					continue;
+				}
+
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0)
+				{
+					wakeup = deadline;
+					try
+					{
+						changed.awaitNanos(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+					continue;
+				}
+
+				// Still under the lock so a disarm that returned never sees a late overrun
+				isArmed = false;
+				overruns++;
+				try
+				{
+					listener.onOverrun(armedIns, TimeUnit.NANOSECONDS.toMillis(armedBudget));
+				}
+				catch (Exception e)
+				{
+					Util.w(TAG, "Caught exception `%s` in overrun listener", e.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			wakeup = 0;
+			lock.unlock();
+		}
+	}
+}
@@ -4,96 +4,152 @@ import java.util.Arrays;
 
 import org.kevinvalk.hce.framework.Iso7816;
 import org.kevinvalk.hce.framework.IsoException;
-import org.kevinvalk.hce.framework.Util;
 
-import struct.JavaStruct;
-import struct.StructClass;
-import struct.StructException;
-import struct.StructField;
-
-@StructClass
+/**
+ * Flyweight view over a raw command APDU
+ *
+ * The header fields are copied out, Lc, Le and the command data are kept as offsets
+ * into the original wire bytes so parsing does not allocate. A single instance can be
+ * reused for every incoming frame by calling {@link #wrap(byte[], int)}.
+ */
 public class CommandApdu extends Apdu
 {
-	@StructField(order = 0)
 	public byte cla;
-	
-	@StructField(order = 1)
 	public byte ins;
-	
-	@StructField(order = 2)
 	public byte p1;
-	
-	@StructField(order = 3)
 	public byte p2;
-	
-	@StructField(order = 4)
-	public byte[] body;
-	
+
 	// State variables
+	private byte[] buffer;
+	private int length;
 	private int lc;
 	private int le;
+	private int ne;
+	private int dataOffset;
+	private boolean extended;
 	private byte[] cdata = null;
 
+	/**
+	 * Creates an empty flyweight, use {@link #wrap(byte[], int)} before reading from it
+	 */
+	public CommandApdu()
+	{
+		super();
+	}
+
 	public CommandApdu(byte[] buffer, int length)
 	{
-		this(Arrays.copyOf(buffer, length));
+		wrap(buffer, length);
 	}
-	
+
 	public CommandApdu(byte[] buffer)
 	{
-		this(new Apdu(buffer));
+		this(buffer, buffer.length);
 	}
 
 	public CommandApdu(Apdu apdu)
 	{
-		try
+		this(apdu.getBuffer(), apdu instanceof CommandApdu ? ((CommandApdu) apdu).getLength() : apdu.getBuffer().length);
+	}
+
+	/**
+	 * Points this APDU at a new frame
+	 *
+	 * @param buffer
+	 * @return this
+	 */
+	public CommandApdu wrap(byte[] buffer)
+	{
+		return wrap(buffer, buffer.length);
+	}
+
+	/**
+	 * Points this APDU at the first length bytes of buffer and parses the header
+	 *
+	 * @param buffer
+	 * @param length
+	 * @return this
+	 * @throws IsoException SW_WRONG_LENGTH when the frame is shorter than its header or its Lc
+	 */
+	public CommandApdu wrap(byte[] buffer, int length)
+	{
+		if (buffer == null || length > buffer.length)
+			throw new IllegalArgumentException("Frame length outside the buffer");
+		// Without a complete header this is not an APDU at all
+		if (length < Iso7816.OFFSET_LC)
+			IsoException.throwIt(Iso7816.SW_WRONG_LENGTH);
+
+		this.buffer = buffer;
+		this.length = length;
+		this.cdata = null;
+
+		cla = buffer[Iso7816.OFFSET_CLA];
+		ins = buffer[Iso7816.OFFSET_INS];
+		p1 = buffer[Iso7816.OFFSET_P1];
+		p2 = buffer[Iso7816.OFFSET_P2];
+
+		lc = 0;
+		le = 0;
+		ne = 0;
+		extended = false;
+		dataOffset = Iso7816.OFFSET_CDATA;
+
+		// Parse Lc and Le and the body (if Lc is short then Le is short, if Lc is extended then Le is extended)
+		int body = length - Iso7816.OFFSET_LC;
+		if (body == 1)
+		{
+			// We only have a short Le
+			le = buffer[Iso7816.OFFSET_LC] & 0xFF;
+			ne = (le == 0 ? Iso7816.LE_MAX : le);
+		}
+		else if (body > 1)
 		{
-			body = new byte[apdu.getBuffer().length-4];
-			JavaStruct.unpack(this, apdu.getBuffer());
-			
-			// Parse Lc and Le and the body (if Lc is short then Le is short, if Lc is extended then Le is extended)
-			if(body.length > 0)
+			// We running extended or not, if so we expect at least 2 more bytes
+			extended = (buffer[Iso7816.OFFSET_LC] == 0x0 && body >= 3);
+			if (extended)
 			{
-				// We running extended or not
-				boolean extended = (body[0] == 0x0 && body.length >= 3); // If extended flag is true, we expect at least 2 more bytes
-				int size = (extended ? 3 : 1); //1
-				int offset = (extended ? 1 : 0); //0
-				int lSize = (extended ? 2 : 1); //1
-				
-				// Parse the body
-				if (body.length == size)
+				if (body == 3)
 				{
-					// We only have Le
-					le = (int) Util.getSomething(body, offset, lSize);
+					// We only have an extended Le
+					le = getShort(buffer, Iso7816.OFFSET_LC + 1);
+					ne = (le == 0 ? Iso7816.LE_MAX_EXTENDED : le);
 				}
 				else
 				{
-					// We have Lc
-					lc = (int) Util.getSomething(body, offset, lSize);
-					
-					// Check if we have Le field
-					if (body.length - lc - size > 0)
-						le = (int) Util.getSomething(body, size + lc, lSize);
+					lc = getShort(buffer, Iso7816.OFFSET_LC + 1);
+					dataOffset = Iso7816.OFFSET_CDATA + 2;
+					if (body - lc - 3 >= 2)
+					{
+						le = getShort(buffer, dataOffset + lc);
+						ne = (le == 0 ? Iso7816.LE_MAX_EXTENDED : le);
+					}
 				}
-				
-				// Extract the Data if we have some
-				if (lc >= 1)
-					cdata = Arrays.copyOfRange(body, size, size + lc);
 			}
 			else
 			{
-				// We have no body!
-				cdata = new byte[0];
-				le = 0;
-				lc = 0;
+				lc = buffer[Iso7816.OFFSET_LC] & 0xFF;
+				if (body - lc - 1 >= 1)
+				{
+					le = buffer[dataOffset + lc] & 0xFF;
+					ne = (le == 0 ? Iso7816.LE_MAX : le);
+				}
 			}
 		}
-		catch (StructException e)
+
+		// The handlers read Lc bytes, past the frame they would see whatever the buffer held before
+		if (lc > 0 && dataOffset + lc > length)
 		{
-			IsoException.throwIt(Iso7816.SW_INTERNAL_ERROR);
+			lc = 0;
+			IsoException.throwIt(Iso7816.SW_WRONG_LENGTH);
 		}
+		return this;
+	}
+
+	private static int getShort(byte[] buffer, int offset)
+	{
+		return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
 	}
-	
+
 	/**
 	 * Get the length of the body
 	 * @return
@@ -102,38 +158,81 @@ public class CommandApdu extends Apdu
 	{
 		return lc;
 	}
-	
+
 	/**
 	 * Get the expected length
-	 * 
+	 *
 	 * @return
 	 */
 	public int getLe()
 	{
 		return le;
 	}
-	
+
+	/**
+	 * Get the maximum number of response bytes the terminal expects
+	 *
+	 * A zero Le stands for 256 (short) or 65536 (extended), 0 means no Le was sent.
+	 * @return
+	 */
+	public int getNe()
+	{
+		return ne;
+	}
+
+	/**
+	 * Get the offset of the command data in {@link #getBuffer()}
+	 *
+	 * @return
+	 */
+	public int getDataOffset()
+	{
+		return dataOffset;
+	}
+
 	/**
-	 * Gets the command data
+	 * Checks if Lc and Le are encoded in the extended (three byte) form
+	 *
+	 * @return
+	 */
+	public boolean isExtended()
+	{
+		return extended;
+	}
+
+	/**
+	 * Get the number of bytes on the wire
+	 *
+	 * @return
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Gets a copy of the command data
+	 *
+	 * Prefer reading {@link #getLc()} bytes from {@link #getBuffer()} at {@link #getDataOffset()}
+	 * on hot paths, this copies on first use.
 	 * @return
 	 */
 	public byte[] getData()
 	{
+		if (cdata == null)
+			cdata = Arrays.copyOfRange(buffer, dataOffset, dataOffset + lc);
 		return cdata;
 	}
 
+	/**
+	 * Gets the buffer this APDU was parsed from
+	 *
+	 * The buffer is not copied and may be larger than the frame, only the first {@link #getLength()}
+	 * bytes belong to this APDU.
+	 */
 	@Override
 	public byte[] getBuffer()
 	{
-		byte[] bytes = null;
-		try
-		{
-			bytes = JavaStruct.pack(this);
-		}
-		catch (StructException e)
-		{
-			IsoException.throwIt(Iso7816.SW_INTERNAL_ERROR);
-		}
-		return bytes;
+		return buffer;
 	}
 }
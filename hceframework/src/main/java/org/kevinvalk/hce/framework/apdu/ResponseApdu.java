@@ -4,80 +4,105 @@ import org.kevinvalk.hce.framework.Iso7816;
 import org.kevinvalk.hce.framework.IsoException;
 import org.spongycastle.util.Arrays;
 
-import struct.JavaStruct;
-import struct.StructClass;
-import struct.StructException;
-import struct.StructField;
-
-@StructClass
 public class ResponseApdu extends Apdu
 {
-	@StructField(order = 0)
+	private static final byte[] NO_DATA = new byte[0];
+
 	public byte[] data;
-		
-	@StructField(order = 1)
+
 	public short sw;
 
-	// FIXME: Introduced for jmrt port
+	/**
+	 * Number of bytes of data that belong to this response
+	 */
 	public int length = 0;
-	
+
 	public ResponseApdu(short status)
 	{
-		this(new byte[0], status);
+		this(NO_DATA, status);
 	}
-	
+
 	public ResponseApdu(byte[] data)
 	{
 		this(data, Iso7816.SW_NO_ERROR);
 	}
-	
+
 	public ResponseApdu(Apdu apdu)
 	{
-		try
-		{
-			JavaStruct.unpack(this, apdu.getBuffer());
-		}
-		catch (StructException e)
-		{
-			IsoException.throwIt(Iso7816.SW_INTERNAL_ERROR);
-		}
+		byte[] buffer = apdu.getBuffer();
+		if (buffer == null || buffer.length < 2)
+			IsoException.throwIt(Iso7816.SW_WRONG_LENGTH);
+
+		this.length = buffer.length - 2;
+		this.data = Arrays.copyOf(buffer, length);
+		this.sw = (short) (((buffer[length] & 0xFF) << 8) | (buffer[length + 1] & 0xFF));
 	}
-	
+
 	public ResponseApdu(byte[] data, short status)
 	{
 		if (data == null)
-			data = new byte[0];
+			data = NO_DATA;
 		this.data = data;
+		this.length = data.length;
 		this.sw = status;
 	}
-	
+
 	public ResponseApdu(int size)
 	{
 		this.data = new byte[size];
+		this.length = size;
 	}
-	
+
 	public ResponseApdu(byte[] data, int size)
 	{
-		this(Arrays.copyOfRange(data, 0, size));
+		this(data, size, Iso7816.SW_NO_ERROR);
 	}
-	
+
+	/**
+	 * Creates a response over the first size bytes of data, the bytes are not copied
+	 *
+	 * @param data
+	 * @param size
+	 * @param status
+	 */
 	public ResponseApdu(byte[] data, int size, short status)
 	{
-		this(Arrays.copyOfRange(data, 0, size), status);
+		this.data = data;
+		this.length = size;
+		this.sw = status;
+	}
+
+	/**
+	 * Get the number of bytes this response takes on the wire
+	 *
+	 * @return
+	 */
+	public int getLength()
+	{
+		return length + 2;
 	}
-	
+
+	/**
+	 * Writes the data followed by SW1 SW2 into buffer
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @return The number of bytes written
+	 */
+	public int encode(byte[] buffer, int offset)
+	{
+		if (length > 0)
+			System.arraycopy(data, 0, buffer, offset, length);
+		buffer[offset + length] = (byte) (sw >> 8);
+		buffer[offset + length + 1] = (byte) sw;
+		return length + 2;
+	}
+
 	@Override
 	public byte[] getBuffer()
 	{
-		byte[] bytes = null;
-		try
-		{
-			bytes = JavaStruct.pack(this);
-		}
-		catch (StructException e)
-		{
-			IsoException.throwIt(Iso7816.SW_INTERNAL_ERROR);
-		}
+		byte[] bytes = new byte[getLength()];
+		encode(bytes, 0);
 		return bytes;
 	}
 }
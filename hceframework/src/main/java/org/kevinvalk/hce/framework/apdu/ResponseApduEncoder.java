@@ -0,0 +1,110 @@
+package org.kevinvalk.hce.framework.apdu;
+
+import org.kevinvalk.hce.framework.Iso7816;
+
+/**
+ * Encodes response APDUs into output buffers owned by one terminal session
+ *
+ * A transceive call sends the whole array it is given, so a frame must be exactly as long as the
+ * response. A few frames are kept for the lengths seen last, the full frames of a chain and its
+ * tail hit them, other lengths take the oldest slot. The returned array is only valid until the
+ * next call to encode.
+ */
+public class ResponseApduEncoder
+{
+	/**
+	 * Frame size used when the tag does not report a maximum transceive length
+	 */
+	public static final int DEFAULT_MAX_LENGTH = Iso7816.LE_MAX + 2;
+
+	private static final short OPERATION_OK = (short) 0x9100;
+	private static final int FRAME_SLOTS = 4;
+
+	private final int maxLength;
+	private final byte[][] frames = new byte[FRAME_SLOTS][];
+	private int nextSlot = 0;
+	private final byte[] noData = new byte[0];
+	private final byte[] noError = {(byte) (Iso7816.SW_NO_ERROR >> 8), (byte) Iso7816.SW_NO_ERROR};
+	private final byte[] operationOk = {(byte) (OPERATION_OK >> 8), (byte) OPERATION_OK};
+	private final byte[] status = new byte[2];
+
+	public ResponseApduEncoder(int maxLength)
+	{
+		this.maxLength = (maxLength > 2 ? maxLength : DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * Get the number of response data bytes that fit in a frame of the given transceive length
+	 *
+	 * @param maxTransceiveLength As reported by the tag, 0 when unknown
+	 * @return
+	 */
+	public static int getMaxResponseLength(int maxTransceiveLength)
+	{
+		// Extended length is only possible when the tag takes frames beyond the short Le
+		if (maxTransceiveLength <= 2)
+			maxTransceiveLength = DEFAULT_MAX_LENGTH;
+		return Math.min(maxTransceiveLength - 2, Iso7816.LE_MAX_EXTENDED);
+	}
+
+	/**
+	 * Get the largest frame this encoder keeps a buffer for
+	 *
+	 * @return
+	 */
+	public int getMaxLength()
+	{
+		return maxLength;
+	}
+
+	/**
+	 * Encodes a response, null encodes as an empty frame
+	 *
+	 * @param responseApdu
+	 * @return The frame to hand to the tag
+	 */
+	public byte[] encode(ResponseApdu responseApdu)
+	{
+		if (responseApdu == null)
+			return noData;
+		if (responseApdu.length == 0)
+			return encode(responseApdu.sw);
+
+		byte[] frame = frame(responseApdu.getLength());
+		responseApdu.encode(frame, 0);
+		return frame;
+	}
+
+	/**
+	 * Encodes a status only response
+	 *
+	 * @param sw
+	 * @return The frame to hand to the tag
+	 */
+	public byte[] encode(short sw)
+	{
+		if (sw == Iso7816.SW_NO_ERROR)
+			return noError;
+		if (sw == OPERATION_OK)
+			return operationOk;
+
+		status[0] = (byte) (sw >> 8);
+		status[1] = (byte) sw;
+		return status;
+	}
+
+	private byte[] frame(int length)
+	{
+		// Larger than the tag accepts, let the transceive fail on a one off buffer
+		if (length > maxLength)
+			return new byte[length];
+
+		for (byte[] frame : frames)
+			if (frame != null && frame.length == length)
+				return frame;
+
+		byte[] frame = frames[nextSlot] = new byte[length];
+		nextSlot = (nextSlot + 1) % FRAME_SLOTS;
+		return frame;
+	}
+}
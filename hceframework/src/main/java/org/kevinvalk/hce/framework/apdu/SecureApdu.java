@@ -2,48 +2,258 @@ package org.kevinvalk.hce.framework.apdu;
 
 import org.kevinvalk.hce.framework.Do87;
 import org.kevinvalk.hce.framework.Do8e;
-import org.spongycastle.util.Arrays;
+import org.kevinvalk.hce.framework.Do97;
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.IsoException;
+import org.kevinvalk.hce.framework.TlvReader;
+import org.kevinvalk.hce.framework.TlvWriter;
 
+/**
+ * Unwraps protected command APDUs and wraps their responses (ISO 7816-4 secure messaging)
+ *
+ * One instance belongs to one secure messaging session. The plain command and the protected
+ * response are built in buffers owned by the instance, they are valid until the next call.
+ */
 public class SecureApdu
 {
-	public static CommandApdu unwrapCommandApdu(CommandApdu apdu)
-	{
-		// Default info easy to get
-		byte cla = apdu.cla;
-		byte ins = apdu.ins;
-		byte p1 = apdu.p1;
-		byte p2 = apdu.p2;
-		int lc = apdu.getLc();
-		
-		// Check if we have data
-		byte[] body = apdu.getData();
-		if (body.length >= 1)
+	/**
+	 * CLA bits that mark a command as protected
+	 */
+	public static final byte CLA_SECURE_MESSAGING = 0x0C;
+	
+	public static final byte DO_99 = (byte) 0x99;
+	
+	private final SecureMessaging session;
+	
+	private final TlvReader reader = new TlvReader();
+	private final Do87 do87 = new Do87();
+	private final Do97 do97 = new Do97();
+	private final Do8e do8e = new Do8e();
+	
+	private boolean hasDo87;
+	private boolean hasDo97;
+	private boolean hasDo8e;
+	private int checksumEnd;
+	
+	// Output state
+	private final CommandApdu command = new CommandApdu();
+	private final ResponseApdu response = new ResponseApdu(0);
+	private final TlvWriter writer = new TlvWriter();
+	private final byte[] status = new byte[2];
+	private final byte[] checksum = new byte[SecureMessaging.MAC_LENGTH];
+	private byte[] commandBuffer = new byte[Iso7816.LE_MAX + Iso7816.OFFSET_CDATA + 1];
+	private byte[] responseBuffer = new byte[Iso7816.LE_MAX + 32];
+	
+	public SecureApdu(SecureMessaging session)
+	{
+		this.session = session;
+	}
+	
+	/**
+	 * Locates DO87, DO97 and DO8E in the command data, the objects are views over the APDU buffer
+	 * 
+	 * @param apdu
+	 * @return this
+	 */
+	public SecureApdu parse(CommandApdu apdu)
+	{
+		hasDo87 = hasDo97 = hasDo8e = false;
+		checksumEnd = apdu.getDataOffset();
+		
+		reader.wrap(apdu.getBuffer(), apdu.getDataOffset(), apdu.getLc());
+		while (reader.next())
 		{
-			int offset = 0;
-			
-			// Check for DO87
-			if (body[offset] == Do87.DO_87)
+			switch (reader.getTag())
 			{
-				Do87 do87 = new Do87(body);
-				offset += do87.getLength(); 
+				case Do87.DO_87 & 0xFF:
+					do87.wrap(reader);
+					hasDo87 = true;
+					break;
+				case Do97.DO_97 & 0xFF:
+					do97.wrap(reader);
+					hasDo97 = true;
+					break;
+				case Do8e.DO_8E & 0xFF:
+					do8e.wrap(reader);
+					hasDo8e = true;
+					checksumEnd = reader.getTagOffset();
+					break;
+				default:
+					break;
 			}
-			
-			// Check for DO97
-			if (body[offset] == (byte) 0x97)
+		}
+		return this;
+	}
+	
+	public boolean hasDo87()
+	{
+		return hasDo87;
+	}
+	
+	public Do87 getDo87()
+	{
+		return do87;
+	}
+	
+	public boolean hasDo97()
+	{
+		return hasDo97;
+	}
+	
+	public Do97 getDo97()
+	{
+		return do97;
+	}
+	
+	public boolean hasDo8e()
+	{
+		return hasDo8e;
+	}
+	
+	public Do8e getDo8e()
+	{
+		return do8e;
+	}
+	
+	/**
+	 * Get the offset in the APDU buffer where the data covered by the checksum ends
+	 * 
+	 * @return
+	 */
+	public int getChecksumEnd()
+	{
+		return checksumEnd;
+	}
+	
+	/**
+	 * Verifies and decrypts a protected command
+	 * 
+	 * @param apdu
+	 * @return The plain command
+	 * @throws IsoException SW_SM_DATA_MISSING or SW_SM_DATA_INCORRECT when the command does not verify
+	 */
+	public CommandApdu unwrap(CommandApdu apdu)
+	{
+		parse(apdu);
+		if (!hasDo8e)
+			IsoException.throwIt(Iso7816.SW_SM_DATA_MISSING);
+		
+		// Check the MAC over the header and the data objects in front of DO8E
+		byte[] buffer = apdu.getBuffer();
+		session.increment();
+		session.startMac();
+		session.updateMac(buffer, Iso7816.OFFSET_CLA, Iso7816.OFFSET_LC);
+		session.padMac();
+		if (checksumEnd > apdu.getDataOffset())
+		{
+			session.updateMac(buffer, apdu.getDataOffset(), checksumEnd - apdu.getDataOffset());
+			session.padMac();
+		}
+		int checksumLength = session.finishMac(checksum, 0);
+		if (do8e.getChecksumLength() != checksumLength || !equal(checksum, do8e.getBuffer(), do8e.getChecksumOffset(), checksumLength))
+			IsoException.throwIt(Iso7816.SW_SM_DATA_INCORRECT);
+		
+		// Only a wrapped command can be larger than what it wraps, so the plain one keeps the Lc form
+		boolean extended = apdu.isExtended();
+		int dataOffset = extended ? Iso7816.OFFSET_CDATA + 2 : Iso7816.OFFSET_CDATA;
+		if (hasDo87 && do87.getType() != Do87.Type.HAS_PADDING)
+			IsoException.throwIt(Iso7816.SW_SM_DATA_INCORRECT);
+		int cryptogramLength = hasDo87 ? do87.getDataLength() : 0;
+		if (commandBuffer.length < dataOffset + cryptogramLength + 3)
+			commandBuffer = new byte[dataOffset + cryptogramLength + 3];
+		
+		byte[] plain = commandBuffer;
+		plain[Iso7816.OFFSET_CLA] = (byte) (apdu.cla & ~CLA_SECURE_MESSAGING);
+		plain[Iso7816.OFFSET_INS] = apdu.ins;
+		plain[Iso7816.OFFSET_P1] = apdu.p1;
+		plain[Iso7816.OFFSET_P2] = apdu.p2;
+		int length = Iso7816.OFFSET_LC;
+		
+		int lc = hasDo87 ? session.decrypt(do87.getBuffer(), do87.getDataOffset(), cryptogramLength, plain, dataOffset) : 0;
+		if (lc > 0)
+		{
+			if (extended)
 			{
-				
+				plain[length++] = 0x00;
+				plain[length++] = (byte) (lc >> 8);
 			}
-			
-			// Check for DO8E
-			if (body[offset] == Do8e.DO_8E)
+			plain[length++] = (byte) lc;
+			length += lc;
+		}
+		if (hasDo97)
+		{
+			int le = do97.getLe();
+			if (extended)
 			{
-				Do8e do8e = new Do8e(Arrays.copyOfRange(body, offset, lc));
+				if (lc == 0)
+					plain[length++] = 0x00;
+				plain[length++] = (byte) (le >> 8);
 			}
+			plain[length++] = (byte) le;
 		}
+		return command.wrap(plain, length);
+	}
+	
+	/**
+	 * Get the number of plain response bytes that still fit maxLength bytes once protected
+	 * 
+	 * @param maxLength
+	 * @return
+	 */
+	public int getMaxPlainLength(int maxLength)
+	{
+		// DO87 tag and padding indicator, DO99 and DO8E take 16 bytes next to the DO87 length
+		int blockSize = session.getBlockSize();
+		int padded = (maxLength - 16) / blockSize * blockSize;
+		while (padded > 0 && 16 + TlvWriter.sizeOfLength(padded + 1) + padded > maxLength)
+			padded -= blockSize;
+		return Math.max(padded - 1, 0);
+	}
+	
+	/**
+	 * Protects a response with DO87, DO99 and DO8E
+	 * 
+	 * @param responseApdu
+	 * @return The protected response, valid until the next call
+	 */
+	public ResponseApdu wrap(ResponseApdu responseApdu)
+	{
+		int blockSize = session.getBlockSize();
+		int needed = responseApdu.length + blockSize + 20;
+		if (responseBuffer.length < needed)
+			responseBuffer = new byte[needed];
 		
+		session.increment();
+		writer.wrap(responseBuffer, 0);
+		if (responseApdu.length > 0)
+		{
+			int offset = Do87.begin(writer, Do87.Type.HAS_PADDING, session.getPaddedLength(responseApdu.length));
+			Do87.end(writer, session.encrypt(responseApdu.data, 0, responseApdu.length, responseBuffer, offset));
+		}
+		status[0] = (byte) (responseApdu.sw >> 8);
+		status[1] = (byte) responseApdu.sw;
+		writer.put(DO_99 & 0xFF, status, 0, 2);
 		
-		return null;
+		session.startMac();
+		session.updateMac(responseBuffer, 0, writer.getPosition());
+		session.padMac();
+		int checksumLength = session.finishMac(checksum, 0);
+		Do8e.write(writer, checksum, 0, checksumLength);
 		
+		response.data = responseBuffer;
+		response.length = writer.getPosition();
+		response.sw = responseApdu.sw;
+		return response;
+	}
+	
+	/**
+	 * Compares without leaving early so the timing does not tell how much of a MAC was right
+	 */
+	private static boolean equal(byte[] expected, byte[] buffer, int offset, int length)
+	{
+		int difference = 0;
+		for (int i = 0; i < length; i++)
+			difference |= expected[i] ^ buffer[offset + i];
+		return difference == 0;
 	}
-
 }
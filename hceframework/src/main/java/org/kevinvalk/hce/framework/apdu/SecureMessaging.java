@@ -0,0 +1,287 @@
+package org.kevinvalk.hce.framework.apdu;
+
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.kevinvalk.hce.framework.Iso7816;
+import org.kevinvalk.hce.framework.IsoException;
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.Mac;
+import org.spongycastle.crypto.engines.AESFastEngine;
+import org.spongycastle.crypto.engines.DESEngine;
+import org.spongycastle.crypto.engines.DESedeEngine;
+import org.spongycastle.crypto.macs.CMac;
+import org.spongycastle.crypto.macs.ISO9797Alg3Mac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Cipher and MAC state of one secure messaging session
+ *
+ * 3DES keys use CBC with a zero IV and the retail MAC (ISO 9797-1 algorithm 3), AES keys use CBC
+ * with the encrypted send sequence counter as IV and an 8 byte CMAC. The engines are keyed once
+ * when the session is established and reused for every APDU.
+ */
+public class SecureMessaging
+{
+	public static final int MAC_LENGTH = 8;
+
+	/**
+	 * Key derivation counters for the encryption and the MAC key
+	 */
+	public static final int KDF_ENC = 1;
+	public static final int KDF_MAC = 2;
+
+	private final boolean aes;
+	private final int blockSize;
+	private final BlockCipher encryptEngine;
+	private final BlockCipher decryptEngine;
+	private final Mac mac;
+
+	// Send sequence counter and scratch blocks
+	private final byte[] ssc;
+	private final byte[] chain;
+	private final byte[] block;
+	private final byte[] padding;
+	private int macCount;
+
+	public SecureMessaging(Key encKey, Key macKey)
+	{
+		aes = "AES".equals(encKey.getAlgorithm());
+		if (aes)
+		{
+			encryptEngine = new AESFastEngine();
+			decryptEngine = new AESFastEngine();
+			mac = new CMac(new AESFastEngine(), MAC_LENGTH * 8);
+		}
+		else
+		{
+			encryptEngine = new DESedeEngine();
+			decryptEngine = new DESedeEngine();
+			mac = new ISO9797Alg3Mac(new DESEngine());
+		}
+		encryptEngine.init(true, new KeyParameter(keyBytes(encKey)));
+		decryptEngine.init(false, new KeyParameter(keyBytes(encKey)));
+		mac.init(new KeyParameter(keyBytes(macKey)));
+
+		blockSize = encryptEngine.getBlockSize();
+		ssc = new byte[blockSize];
+		chain = new byte[blockSize];
+		block = new byte[blockSize];
+		padding = new byte[blockSize];
+		padding[0] = (byte) 0x80;
+	}
+
+	/**
+	 * Starts the secure messaging session that follows an authentication
+	 *
+	 * The encryption and MAC keys are derived apart from the session key and the send sequence counter
+	 * starts at the last four bytes of each random, so a MAC of one session does not verify in another.
+	 * @param sessionKey
+	 * @param cardRandom RND.B
+	 * @param terminalRandom RND.A
+	 * @return
+	 */
+	public static SecureMessaging forSession(Key sessionKey, byte[] cardRandom, byte[] terminalRandom)
+	{
+		SecureMessaging session = new SecureMessaging(deriveKey(sessionKey, KDF_ENC), deriveKey(sessionKey, KDF_MAC));
+		byte[] counter = new byte[8];
+		System.arraycopy(cardRandom, cardRandom.length - 4, counter, 0, 4);
+		System.arraycopy(terminalRandom, terminalRandom.length - 4, counter, 4, 4);
+		session.setSendSequenceCounter(counter, 0, counter.length);
+		return session;
+	}
+
+	/**
+	 * Derives a key as ICAO 9303 does, the leading bytes of SHA-1 over the key and a 32 bit counter
+	 *
+	 * 3DES and DES keys give a two key 3DES key, AES keys one of their own length, SHA-256 for the
+	 * ones longer than 128 bits.
+	 * @param key
+	 * @param counter {@link #KDF_ENC} or {@link #KDF_MAC}
+	 * @return
+	 */
+	public static Key deriveKey(Key key, int counter)
+	{
+		boolean aes = "AES".equals(key.getAlgorithm());
+		byte[] seed = key.getEncoded();
+		int length = aes ? seed.length : 16;
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance(length > 16 ? "SHA-256" : "SHA-1");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		digest.update(seed);
+		digest.update(new byte[]{(byte) (counter >>> 24), (byte) (counter >>> 16), (byte) (counter >>> 8), (byte) counter});
+		return new SecretKeySpec(Arrays.copyOf(digest.digest(), length), aes ? "AES" : "DESede");
+	}
+
+	private byte[] keyBytes(Key key)
+	{
+		byte[] bytes = key.getEncoded();
+		if (aes || bytes.length != 8)
+			return bytes;
+
+		// Single DES runs as 3DES with K1 = K2
+		byte[] doubled = new byte[16];
+		System.arraycopy(bytes, 0, doubled, 0, 8);
+		System.arraycopy(bytes, 0, doubled, 8, 8);
+		return doubled;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * Get the number of bytes length bytes of data take once padded
+	 *
+	 * @param length
+	 * @return
+	 */
+	public int getPaddedLength(int length)
+	{
+		return (length / blockSize + 1) * blockSize;
+	}
+
+	/**
+	 * Sets the send sequence counter, the counter is right aligned
+	 *
+	 * @param counter
+	 * @param offset
+	 * @param length
+	 */
+	public void setSendSequenceCounter(byte[] counter, int offset, int length)
+	{
+		Arrays.fill(ssc, (byte) 0);
+		System.arraycopy(counter, offset, ssc, blockSize - length, length);
+	}
+
+	/**
+	 * Increments the send sequence counter, done once for every command and once for every response
+	 */
+	public void increment()
+	{
+		for (int i = blockSize - 1; i >= 0; i--)
+			if (++ssc[i] != 0)
+				break;
+	}
+
+	/**
+	 * Pads length bytes of in and encrypts them into out
+	 *
+	 * in and out may be the same buffer at the same offset.
+	 * @param in
+	 * @param inOffset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 * @return The length of the cryptogram
+	 */
+	public int encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset)
+	{
+		int padded = getPaddedLength(length);
+		System.arraycopy(in, inOffset, out, outOffset, length);
+		System.arraycopy(padding, 0, out, outOffset + length, padded - length);
+
+		initialVector(chain);
+		for (int i = outOffset; i < outOffset + padded; i += blockSize)
+		{
+			for (int j = 0; j < blockSize; j++)
+				out[i + j] ^= chain[j];
+			encryptEngine.processBlock(out, i, out, i);
+			System.arraycopy(out, i, chain, 0, blockSize);
+		}
+		return padded;
+	}
+
+	/**
+	 * Decrypts a cryptogram into out and strips the padding
+	 *
+	 * in and out may be the same buffer at the same offset.
+	 * @param in
+	 * @param inOffset
+	 * @param length
+	 * @param out
+	 * @param outOffset
+	 * @return The length of the plain data
+	 * @throws IsoException SW_SM_DATA_INCORRECT when the cryptogram or its padding is malformed
+	 */
+	public int decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset)
+	{
+		if (length == 0 || length % blockSize != 0)
+			IsoException.throwIt(Iso7816.SW_SM_DATA_INCORRECT);
+
+		initialVector(chain);
+		for (int i = 0; i < length; i += blockSize)
+		{
+			System.arraycopy(in, inOffset + i, block, 0, blockSize);
+			decryptEngine.processBlock(in, inOffset + i, out, outOffset + i);
+			for (int j = 0; j < blockSize; j++)
+				out[outOffset + i + j] ^= chain[j];
+			System.arraycopy(block, 0, chain, 0, blockSize);
+		}
+
+		// Strip the 80 00 .. 00 padding
+		int end = outOffset + length - 1;
+		while (end > outOffset && out[end] == 0x00 && outOffset + length - end < blockSize)
+			end--;
+		if (out[end] != (byte) 0x80)
+			IsoException.throwIt(Iso7816.SW_SM_DATA_INCORRECT);
+		return end - outOffset;
+	}
+
+	private void initialVector(byte[] iv)
+	{
+		if (aes)
+			encryptEngine.processBlock(ssc, 0, iv, 0);
+		else
+			Arrays.fill(iv, (byte) 0);
+	}
+
+	/**
+	 * Starts a MAC over the send sequence counter
+	 */
+	public void startMac()
+	{
+		mac.reset();
+		mac.update(ssc, 0, blockSize);
+		macCount = blockSize;
+	}
+
+	public void updateMac(byte[] data, int offset, int length)
+	{
+		mac.update(data, offset, length);
+		macCount += length;
+	}
+
+	/**
+	 * Pads the MAC input to the next block boundary
+	 */
+	public void padMac()
+	{
+		int length = blockSize - macCount % blockSize;
+		mac.update(padding, 0, length);
+		macCount += length;
+	}
+
+	/**
+	 * Finishes the MAC, the input must be padded
+	 *
+	 * @param out
+	 * @param offset
+	 * @return The length of the MAC
+	 */
+	public int finishMac(byte[] out, int offset)
+	{
+		return mac.doFinal(out, offset);
+	}
+}